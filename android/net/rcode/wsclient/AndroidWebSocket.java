@@ -1,16 +1,29 @@
 package net.rcode.wsclient;
 
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executor;
+
 import android.os.Handler;
 
 /**
  * Android specific WebSocket client that interfaces with the Looper
- * to provide threading control.
+ * to provide threading control.  Events are gathered by a CoalescingDispatcher
+ * so that a burst of messages costs one Handler message per time budget instead
+ * of one per event.
+ * <p>
+ * EVENT_MESSAGE_STREAM is the exception.  Its MessageInputStream reads straight
+ * off of the socket, so it is delivered on the reader thread rather than the
+ * Looper.  The listener may hand the stream to another thread but must not
+ * read it on the main thread.  Messages received before it may still be
+ * waiting for the Looper when it arrives.
  * 
  * @author stella
  *
  */
 public class AndroidWebSocket extends WebSocket {
-	private Handler handler;
+	private final Handler handler;
+	private final CoalescingDispatcher dispatcher;
 	
 	/**
 	 * Instantiate the class so that events are directed back at the Looper
@@ -42,16 +55,57 @@ public class AndroidWebSocket extends WebSocket {
 	 */
 	public AndroidWebSocket(Handler handler, String url, String... requestedProtocols) {
 		super(url, requestedProtocols);
-		this.handler=new Handler();
+		this.handler=handler;
+		this.dispatcher=new CoalescingDispatcher(new Executor() {
+			@Override
+			public void execute(Runnable command) {
+				AndroidWebSocket.this.handler.post(command);
+			}
+		});
+	}
+	
+	/**
+	 * @return the dispatcher events are delivered through, for example to change
+	 * its time budget
+	 */
+	public CoalescingDispatcher getDispatcher() {
+		return dispatcher;
 	}
 
 	@Override
 	protected void dispatchEvent(final Event event, final EventListener l) {
-		handler.post(new Runnable() {
+		if (event.getType()==EVENT_MESSAGE_STREAM) {
+			// Reading it blocks on the network
+			l.handleEvent(event);
+			return;
+		}
+		dispatcher.dispatch(new Runnable() {
 			@Override
 			public void run() {
 				l.handleEvent(event);
 			}
 		});
 	}
+	
+	@Override
+	protected void dispatchMessage(final Message message, final MessageListener l) {
+		dispatcher.dispatch(new Runnable() {
+			@Override
+			public void run() {
+				l.handleMessage(AndroidWebSocket.this, message);
+			}
+		});
+	}
+	
+	@Override
+	protected void dispatchMessages(List<Message> messages, final BatchListener l) {
+		// The batch is reused once this returns
+		final List<Message> copy=new ArrayList<Message>(messages);
+		dispatcher.dispatch(new Runnable() {
+			@Override
+			public void run() {
+				l.handleMessages(AndroidWebSocket.this, copy);
+			}
+		});
+	}
 }
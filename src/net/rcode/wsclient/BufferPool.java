@@ -0,0 +1,188 @@
+package net.rcode.wsclient;
+
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Size classed pool of byte arrays for received message payloads.  Enable it by
+ * setting it on the NetConfig.  Messages received while a pool is configured hold
+ * pooled buffers and must be handed back with Message.release() once the listener
+ * is done with them.
+ * <p>
+ * Buffers are kept in power of two size classes from 64 bytes up to the maximum
+ * buffer size.  Requests above the maximum are allocated exactly and never pooled.
+ * <p>
+ * Leak detection can be turned on with setLeakDetection or by setting the system
+ * property net.rcode.wsclient.bufferLeakDetection=true.  It records where each
+ * pooled message was received and reports messages that are garbage collected
+ * without having been released.  It costs an allocation per message, so it is
+ * intended for debug builds.
+ * 
+ * @author stella
+ *
+ */
+public class BufferPool {
+	public static final String LEAK_DETECTION_PROPERTY="net.rcode.wsclient.bufferLeakDetection";
+	
+	private static final int MIN_SHIFT=6;
+	
+	private final SizeClass[] sizeClasses;
+	private final int maxBufferSize;
+	private final AtomicLong hitCount=new AtomicLong();
+	private final AtomicLong missCount=new AtomicLong();
+	private final AtomicLong leakCount=new AtomicLong();
+	
+	private volatile boolean leakDetection=Boolean.getBoolean(LEAK_DETECTION_PROPERTY);
+	private final ReferenceQueue<Message> collected=new ReferenceQueue<Message>();
+	private final Map<LeakTracker, Boolean> tracked=new ConcurrentHashMap<LeakTracker, Boolean>();
+	
+	public BufferPool() {
+		this(65536, 32);
+	}
+	
+	/**
+	 * @param maxBufferSize the largest buffer that is pooled (rounded up to a power of two)
+	 * @param buffersPerClass how many free buffers each size class retains
+	 */
+	public BufferPool(int maxBufferSize, int buffersPerClass) {
+		if (maxBufferSize<1 || maxBufferSize>(1<<30) || buffersPerClass<0) throw new IllegalArgumentException();
+		int classCount=shiftFor(maxBufferSize) - MIN_SHIFT + 1;
+		sizeClasses=new SizeClass[classCount];
+		for (int i=0; i<classCount; i++) {
+			sizeClasses[i]=new SizeClass(1 << (i+MIN_SHIFT), buffersPerClass);
+		}
+		this.maxBufferSize=1 << (classCount-1+MIN_SHIFT);
+	}
+	
+	/**
+	 * @return a buffer of at least length bytes
+	 */
+	public byte[] acquire(int length) {
+		if (length>maxBufferSize) {
+			missCount.incrementAndGet();
+			return new byte[length];
+		}
+		
+		SizeClass sizeClass=sizeClasses[shiftFor(length) - MIN_SHIFT];
+		byte[] buffer=sizeClass.pop();
+		if (buffer!=null) {
+			hitCount.incrementAndGet();
+			return buffer;
+		}
+		missCount.incrementAndGet();
+		return new byte[sizeClass.size];
+	}
+	
+	/**
+	 * Return a buffer obtained from acquire.  Buffers that do not belong to a size
+	 * class or that would overfill it are left to the garbage collector.
+	 */
+	public void release(byte[] buffer) {
+		int length=buffer.length;
+		if (length>maxBufferSize || length<(1<<MIN_SHIFT) || (length & (length-1))!=0) return;
+		sizeClasses[shiftFor(length) - MIN_SHIFT].push(buffer);
+	}
+	
+	/**
+	 * @return number of acquires satisfied from the pool
+	 */
+	public long getHitCount() {
+		return hitCount.get();
+	}
+	
+	/**
+	 * @return number of acquires that had to allocate
+	 */
+	public long getMissCount() {
+		return missCount.get();
+	}
+	
+	/**
+	 * @return number of messages detected as garbage collected without release
+	 * (only counted with leak detection on)
+	 */
+	public long getLeakCount() {
+		return leakCount.get();
+	}
+	
+	public boolean isLeakDetection() {
+		return leakDetection;
+	}
+	
+	public void setLeakDetection(boolean leakDetection) {
+		this.leakDetection = leakDetection;
+	}
+	
+	/**
+	 * Start tracking a pooled message for leaks.  Also reports anything collected
+	 * since the last call.
+	 */
+	LeakTracker track(Message message) {
+		reportLeaks();
+		LeakTracker tracker=new LeakTracker(message, collected);
+		tracked.put(tracker, Boolean.TRUE);
+		return tracker;
+	}
+	
+	void untrack(LeakTracker tracker) {
+		tracked.remove(tracker);
+	}
+	
+	/**
+	 * Report pooled messages that were collected without being released
+	 */
+	public void reportLeaks() {
+		for (;;) {
+			LeakTracker tracker=(LeakTracker)collected.poll();
+			if (tracker==null) break;
+			if (tracked.remove(tracker)!=null) {
+				leakCount.incrementAndGet();
+				System.err.println("Pooled WebSocket message was never released.  Received at:");
+				tracker.receivedAt.printStackTrace();
+			}
+		}
+	}
+	
+	private static int shiftFor(int length) {
+		int shift=MIN_SHIFT;
+		while ((1 << shift)<length) shift++;
+		return shift;
+	}
+	
+	/**
+	 * Bounded stack of free buffers of one size.  Guarded by its own monitor, which
+	 * is only contended between the reader thread and whoever releases.
+	 */
+	private static final class SizeClass {
+		final int size;
+		private final byte[][] free;
+		private int count;
+		
+		SizeClass(int size, int capacity) {
+			this.size=size;
+			this.free=new byte[capacity][];
+		}
+		
+		synchronized byte[] pop() {
+			if (count==0) return null;
+			byte[] buffer=free[--count];
+			free[count]=null;
+			return buffer;
+		}
+		
+		synchronized void push(byte[] buffer) {
+			if (count<free.length) free[count++]=buffer;
+		}
+	}
+	
+	static final class LeakTracker extends WeakReference<Message> {
+		final Throwable receivedAt=new Throwable("Message received");
+		
+		LeakTracker(Message message, ReferenceQueue<Message> queue) {
+			super(message, queue);
+		}
+	}
+}
@@ -0,0 +1,109 @@
+package net.rcode.wsclient;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Hands tasks from the IO threads to a single UI thread without flooding its
+ * message loop.  Tasks gather in a lock-free inbox and at most one drain task is
+ * posted to the executor at a time.  A drain runs tasks until the inbox is empty
+ * or its time budget is used up, in which case it posts itself again so that the
+ * loop gets to process input and draw in between.
+ * <p>
+ * The executor is typically a thin wrapper around an android Handler.  Tasks run
+ * in the order they were dispatched.
+ * </p>
+ * 
+ * @author stella
+ *
+ */
+public class CoalescingDispatcher {
+	private final Executor executor;
+	private final ConcurrentLinkedQueue<Runnable> inbox=new ConcurrentLinkedQueue<Runnable>();
+	
+	/**
+	 * Set while a drain is posted or running
+	 */
+	private final AtomicBoolean scheduled=new AtomicBoolean();
+	private volatile long budgetNanos=8000000L;
+	
+	private final Runnable drainTask=new Runnable() {
+		public void run() {
+			drain();
+		}
+	};
+	
+	/**
+	 * @param executor runs the drain task on the target thread
+	 */
+	public CoalescingDispatcher(Executor executor) {
+		this.executor=executor;
+	}
+	
+	/**
+	 * @return the time one drain may spend running tasks in milliseconds
+	 */
+	public long getBudgetMillis() {
+		return budgetNanos / 1000000L;
+	}
+	/**
+	 * Set the time one drain may spend running tasks before it yields to the loop.
+	 * At least one task runs per drain regardless.  The default of 8ms is half of a
+	 * frame at 60Hz.
+	 * @param budgetMillis
+	 */
+	public void setBudgetMillis(long budgetMillis) {
+		if (budgetMillis<0) throw new IllegalArgumentException();
+		this.budgetNanos = budgetMillis * 1000000L;
+	}
+	
+	/**
+	 * Queue a task for the target thread.  May be called from any thread.
+	 */
+	public void dispatch(Runnable task) {
+		inbox.add(task);
+		if (scheduled.compareAndSet(false, true)) {
+			executor.execute(drainTask);
+		}
+	}
+	
+	/**
+	 * @return the number of tasks waiting for a drain
+	 */
+	public int getPendingCount() {
+		return inbox.size();
+	}
+	
+	private void drain() {
+		long deadline=System.nanoTime() + budgetNanos;
+		boolean completed=false;
+		try {
+			for (;;) {
+				Runnable task=inbox.poll();
+				if (task==null) {
+					scheduled.set(false);
+					// A dispatch between the poll and the reset saw scheduled still set
+					if (inbox.isEmpty() || !scheduled.compareAndSet(false, true)) {
+						completed=true;
+						return;
+					}
+					continue;
+				}
+				
+				task.run();
+				if (System.nanoTime()-deadline>=0 && !inbox.isEmpty()) {
+					// Out of time.  Come back after the loop has had its turn.
+					break;
+				}
+			}
+			completed=true;
+			executor.execute(drainTask);
+		} finally {
+			if (!completed) {
+				// A task threw.  Keep the rest going rather than stranding them.
+				executor.execute(drainTask);
+			}
+		}
+	}
+}
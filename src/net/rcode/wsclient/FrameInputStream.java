@@ -0,0 +1,247 @@
+package net.rcode.wsclient;
+
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Buffered data stream used for reading frames off of the socket.  In addition
+ * to the usual DataInputStream methods, it can scan for a terminator byte
+ * directly in its buffer, copying whole runs at a time into a scratch area that
+ * is reused for the life of the connection.
+ * 
+ * @author stella
+ *
+ */
+public class FrameInputStream extends DataInputStream {
+	private static final int INITIAL_SCRATCH_SIZE=256;
+	/**
+	 * Scratch areas grown beyond this are released after the frame is read so that
+	 * one large frame does not pin memory for the life of the connection
+	 */
+	private static final int RETAINED_SCRATCH_SIZE=65536;
+	
+	private final ScanningInputStream buffer;
+	private byte[] scratch=new byte[INITIAL_SCRATCH_SIZE];
+	
+	public FrameInputStream(InputStream in, int bufferSize) {
+		this(new ScanningInputStream(in, bufferSize));
+	}
+	
+	private FrameInputStream(ScanningInputStream buffer) {
+		super(buffer);
+		this.buffer=buffer;
+	}
+	
+	/**
+	 * Read bytes up to (and consuming) the given terminator
+	 * @param terminator byte value that ends the run
+	 * @param maxLength the most bytes that may precede the terminator
+	 * @return the bytes before the terminator
+	 * @throws EOFException if the stream ends first
+	 * @throws IOException if more than maxLength bytes precede the terminator
+	 */
+	public byte[] readUntil(int terminator, int maxLength) throws IOException {
+		int length=scanUntil(terminator, maxLength);
+		byte[] ret=new byte[length];
+		copyScanned(ret, length);
+		return ret;
+	}
+	
+	/**
+	 * Read bytes up to (and consuming) the given terminator into the scratch area.
+	 * Follow with copyScanned to retrieve them.
+	 * @param terminator byte value that ends the run
+	 * @param maxLength the most bytes that may precede the terminator
+	 * @return the number of bytes before the terminator
+	 * @throws EOFException if the stream ends first
+	 * @throws IOException if more than maxLength bytes precede the terminator
+	 */
+	public int scanUntil(int terminator, int maxLength) throws IOException {
+		return buffer.scan((byte)terminator, this, maxLength);
+	}
+	
+	/**
+	 * Copy the bytes read by the last scanUntil into dest
+	 * @param dest
+	 * @param length the value returned by scanUntil
+	 */
+	public void copyScanned(byte[] dest, int length) {
+		System.arraycopy(scratch, 0, dest, 0, length);
+		if (scratch.length>RETAINED_SCRATCH_SIZE) scratch=new byte[INITIAL_SCRATCH_SIZE];
+	}
+	
+	/**
+	 * Run the protocol's frame scan over what is buffered, without reading from the
+	 * underlying stream
+	 * @return what WireProtocol.scanFrames returns, 0 if nothing is buffered
+	 */
+	public int scanBuffered(WireProtocol protocol, WebSocket socket) {
+		return buffer.scanBuffered(protocol, socket);
+	}
+	
+	private void ensureScratch(int capacity) {
+		if (capacity<=scratch.length) return;
+		int newLength=scratch.length;
+		while (newLength<capacity) {
+			newLength*=2;
+			if (newLength<0) {
+				newLength=Integer.MAX_VALUE;
+				break;
+			}
+		}
+		byte[] grown=new byte[newLength];
+		System.arraycopy(scratch, 0, grown, 0, scratch.length);
+		scratch=grown;
+	}
+	
+	/**
+	 * Owns its buffer rather than extending BufferedInputStream, whose methods hold
+	 * a monitor across the blocking socket read.  That pins the carrier of a virtual
+	 * thread on JDK 21 through 23.  Only ever used by the one thread reading the
+	 * connection, so nothing here is synchronized.
+	 */
+	private static final class ScanningInputStream extends InputStream {
+		private final InputStream in;
+		private byte[] buf;
+		private int pos;
+		private int count;
+		/**
+		 * Position reset() returns to or -1.  While set, refills append to the
+		 * buffer instead of replacing it.
+		 */
+		private int markpos=-1;
+		
+		ScanningInputStream(InputStream in, int size) {
+			this.in=in;
+			this.buf=new byte[Math.max(size, 1)];
+		}
+		
+		private byte[] ensureOpen() throws IOException {
+			byte[] localBuf=buf;
+			if (localBuf==null) throw new IOException("Stream closed");
+			return localBuf;
+		}
+		
+		/**
+		 * Read more from the underlying stream once everything buffered is consumed
+		 * @return the number of bytes read or -1 at the end of the stream
+		 */
+		private int fill() throws IOException {
+			byte[] localBuf=ensureOpen();
+			if (markpos<0 || count>=localBuf.length) {
+				markpos=-1;
+				pos=0;
+				count=0;
+			}
+			int n=in.read(localBuf, count, localBuf.length-count);
+			if (n>0) count+=n;
+			return n;
+		}
+		
+		@Override
+		public int read() throws IOException {
+			if (pos>=count && fill()<=0) return -1;
+			return buf[pos++] & 0xff;
+		}
+		
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException {
+			byte[] localBuf=ensureOpen();
+			if (len==0) return 0;
+			if (pos>=count) {
+				// Nothing to gain from copying a large read through the buffer
+				if (len>=localBuf.length && markpos<0) return in.read(b, off, len);
+				if (fill()<=0) return -1;
+			}
+			int n=Math.min(len, count-pos);
+			System.arraycopy(buf, pos, b, off, n);
+			pos+=n;
+			return n;
+		}
+		
+		@Override
+		public long skip(long n) throws IOException {
+			ensureOpen();
+			if (n<=0) return 0;
+			if (pos>=count) {
+				if (markpos<0) return in.skip(n);
+				if (fill()<=0) return 0;
+			}
+			int skipped=(int)Math.min(n, count-pos);
+			pos+=skipped;
+			return skipped;
+		}
+		
+		@Override
+		public int available() throws IOException {
+			ensureOpen();
+			int buffered=count-pos;
+			int available=in.available();
+			return buffered>Integer.MAX_VALUE-available ? Integer.MAX_VALUE : buffered+available;
+		}
+		
+		@Override
+		public boolean markSupported() {
+			return true;
+		}
+		
+		@Override
+		public void mark(int readlimit) {
+			byte[] localBuf=buf;
+			if (localBuf==null) return;
+			// Move what is left to the front so that readlimit bytes fit behind it
+			int remaining=count-pos;
+			byte[] dest=readlimit>localBuf.length ? new byte[readlimit] : localBuf;
+			System.arraycopy(localBuf, pos, dest, 0, remaining);
+			buf=dest;
+			pos=0;
+			count=remaining;
+			markpos=0;
+		}
+		
+		@Override
+		public void reset() throws IOException {
+			ensureOpen();
+			if (markpos<0) throw new IOException("Resetting to invalid mark");
+			pos=markpos;
+		}
+		
+		@Override
+		public void close() throws IOException {
+			buf=null;
+			in.close();
+		}
+		
+		int scanBuffered(WireProtocol protocol, WebSocket socket) {
+			byte[] localBuf=buf;
+			if (localBuf==null || pos>=count) return 0;
+			return protocol.scanFrames(socket, localBuf, pos, count-pos);
+		}
+		
+		int scan(byte terminator, FrameInputStream owner, int maxLength) throws IOException {
+			int length=0;
+			for (;;) {
+				if (pos>=count && fill()<=0) throw new EOFException();
+				
+				byte[] localBuf=buf;
+				int start=pos, end=count, i=start;
+				while (i<end && localBuf[i]!=terminator) i++;
+				
+				int run=i-start;
+				if (run>maxLength-length) throw new IOException("Frame exceeds maximum size of " + maxLength);
+				owner.ensureScratch(length+run);
+				System.arraycopy(localBuf, start, owner.scratch, length, run);
+				length+=run;
+				
+				if (i<end) {
+					// Found it
+					pos=i+1;
+					return length;
+				}
+				pos=end;
+			}
+		}
+	}
+}
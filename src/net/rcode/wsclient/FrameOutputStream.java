@@ -0,0 +1,178 @@
+package net.rcode.wsclient;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Buffered data stream used for writing frames to the socket.  In addition to
+ * the usual DataOutputStream methods, it can encode text as UTF-8 directly into
+ * its buffer so that text payloads need no intermediate byte array.
+ * 
+ * @author stella
+ *
+ */
+public class FrameOutputStream extends DataOutputStream {
+	private final EncodingOutputStream buffer;
+	
+	public FrameOutputStream(OutputStream out, int bufferSize) {
+		this(new EncodingOutputStream(out, bufferSize));
+	}
+	
+	private FrameOutputStream(EncodingOutputStream buffer) {
+		super(buffer);
+		this.buffer=buffer;
+	}
+	
+	/**
+	 * Mask everything written from now on with the given key until clearMask()
+	 * @param key 4 byte masking key
+	 */
+	public void setMask(byte[] key) {
+		buffer.setMask(key);
+	}
+	
+	public void clearMask() {
+		buffer.setMask(null);
+	}
+	
+	/**
+	 * Write text encoded as UTF-8.  Exactly Util.getUTF8Length(text) bytes are written.
+	 * @param text
+	 * @throws IOException
+	 */
+	public void writeUTF8(CharSequence text) throws IOException {
+		written+=buffer.encode(text);
+	}
+	
+	// DataOutputStream synchronizes these and a write that fills the buffer
+	// blocks on the socket while holding the monitor
+	@Override
+	public void write(int b) throws IOException {
+		buffer.write(b);
+		written++;
+	}
+	
+	@Override
+	public void write(byte[] b, int off, int len) throws IOException {
+		buffer.write(b, off, len);
+		written+=len;
+	}
+	
+	/**
+	 * Owns its buffer rather than extending BufferedOutputStream, whose methods hold
+	 * a monitor across the blocking socket write.  That pins the carrier of a
+	 * virtual thread on JDK 21 through 23.  Writers are serialized by the caller,
+	 * so nothing here is synchronized.
+	 */
+	private static final class EncodingOutputStream extends OutputStream {
+		private final OutputStream out;
+		private final byte[] buf;
+		private int count;
+		private byte[] mask;
+		private int maskPhase;
+		
+		EncodingOutputStream(OutputStream out, int size) {
+			this.out=out;
+			this.buf=new byte[Math.max(size, 8)];
+		}
+		
+		void setMask(byte[] mask) {
+			this.mask=mask;
+			this.maskPhase=0;
+		}
+		
+		private void drain() throws IOException {
+			if (count>0) {
+				out.write(buf, 0, count);
+				count=0;
+			}
+		}
+		
+		@Override
+		public void write(int b) throws IOException {
+			if (count>=buf.length) drain();
+			if (mask==null) {
+				buf[count++]=(byte)b;
+				return;
+			}
+			buf[count++]=(byte)(b ^ mask[maskPhase]);
+			maskPhase=(maskPhase+1)&3;
+		}
+		
+		@Override
+		public void write(byte[] b, int off, int len) throws IOException {
+			if (mask==null) {
+				if (len>=buf.length) {
+					// Too big to be worth copying
+					drain();
+					out.write(b, off, len);
+					return;
+				}
+				if (len>buf.length-count) drain();
+				System.arraycopy(b, off, buf, count, len);
+				count+=len;
+				return;
+			}
+			// Masked bytes always go through the buffer since the caller's array
+			// can not be modified
+			while (len>0) {
+				int n=Math.min(len, buf.length-count);
+				if (n==0) {
+					drain();
+					continue;
+				}
+				System.arraycopy(b, off, buf, count, n);
+				applyMask(count, n);
+				count+=n;
+				off+=n;
+				len-=n;
+			}
+		}
+		
+		@Override
+		public void flush() throws IOException {
+			drain();
+			out.flush();
+		}
+		
+		@Override
+		public void close() throws IOException {
+			try {
+				flush();
+			} finally {
+				out.close();
+			}
+		}
+		
+		private void applyMask(int offset, int length) {
+			Util.mask(buf, offset, length, mask, maskPhase);
+			maskPhase=(maskPhase+length)&3;
+		}
+		
+		/**
+		 * @return the number of bytes written
+		 */
+		int encode(CharSequence text) throws IOException {
+			int index=0, end=text.length(), total=0;
+			while (index<end) {
+				// No char takes more than 3 bytes and a surrogate pair takes 4
+				int chars=Math.min(end-index, (buf.length-count)/3);
+				if (chars>0 && index+chars<end && Character.isHighSurrogate(text.charAt(index+chars-1))) {
+					// Keep the pair together
+					chars--;
+				}
+				if (chars==0) {
+					drain();
+					continue;
+				}
+				int start=count;
+				count=Util.encodeUTF8(text, index, index+chars, buf, count);
+				if (mask!=null) applyMask(start, count-start);
+				total+=count-start;
+				index+=chars;
+			}
+			return total;
+		}
+	}
+}
@@ -0,0 +1,214 @@
+package net.rcode.wsclient;
+
+import java.util.Collection;
+import java.util.LinkedList;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Bounded queue of received messages for consumers that pull instead of being
+ * called back.  Set one on a WebSocket with setInboundQueue and take messages off
+ * of it with poll, take or drainTo from any number of threads.
+ * <p>
+ * The queue is full once it holds the maximum number of messages or bytes.  While
+ * it is full the connection stops reading from the socket, so TCP flow control
+ * pushes back on the server instead of the heap growing.  Only the reader adds
+ * messages, and a message larger than the byte limit still goes into an empty
+ * queue.
+ * <p>
+ * Once the connection has closed and the queue has been drained, the blocking
+ * methods return null.
+ * 
+ * @author stella
+ *
+ */
+public class InboundQueue extends InboundSink {
+	private final int maxMessages;
+	private final long maxBytes;
+	private final LinkedList<Message> messages=new LinkedList<Message>();
+	private long bytes;
+	private boolean closing;
+	private boolean closed;
+	private Runnable spaceListener;
+	
+	/**
+	 * @param maxMessages most messages held before reading stops
+	 * @param maxBytes most payload bytes held before reading stops
+	 */
+	public InboundQueue(int maxMessages, long maxBytes) {
+		if (maxMessages<1 || maxBytes<1) throw new IllegalArgumentException();
+		this.maxMessages=maxMessages;
+		this.maxBytes=maxBytes;
+	}
+	
+	public int getMaxMessages() {
+		return maxMessages;
+	}
+	
+	public long getMaxBytes() {
+		return maxBytes;
+	}
+	
+	/**
+	 * @return number of messages waiting
+	 */
+	public synchronized int getSize() {
+		return messages.size();
+	}
+	
+	/**
+	 * @return payload bytes of the messages waiting
+	 */
+	public synchronized long getBytes() {
+		return bytes;
+	}
+	
+	/**
+	 * @return true while nothing more is read.  Never once the connection has
+	 * started to close, so that the close handshake can complete.
+	 */
+	public synchronized boolean isFull() {
+		if (closing) return false;
+		return messages.size()>=maxMessages || bytes>=maxBytes;
+	}
+	
+	/**
+	 * @return true once the connection has closed.  Messages may still be waiting.
+	 */
+	public synchronized boolean isClosed() {
+		return closed;
+	}
+	
+	/**
+	 * @return the next message or null if none is waiting
+	 */
+	public Message poll() {
+		Message ret;
+		boolean wasFull;
+		synchronized (this) {
+			if (messages.isEmpty()) return null;
+			wasFull=isFull();
+			ret=remove();
+		}
+		if (wasFull) notifySpace();
+		return ret;
+	}
+	
+	/**
+	 * Wait up to the given time for a message
+	 * @return the next message or null if none arrived in time or the connection
+	 * has closed
+	 */
+	public Message poll(long timeout, TimeUnit unit) throws InterruptedException {
+		long deadline=System.nanoTime() + unit.toNanos(timeout);
+		Message ret;
+		boolean wasFull;
+		synchronized (this) {
+			while (messages.isEmpty()) {
+				if (closed) return null;
+				long remaining=deadline-System.nanoTime();
+				if (remaining<=0) return null;
+				TimeUnit.NANOSECONDS.timedWait(this, remaining);
+			}
+			wasFull=isFull();
+			ret=remove();
+		}
+		if (wasFull) notifySpace();
+		return ret;
+	}
+	
+	/**
+	 * Wait for a message
+	 * @return the next message or null once the connection has closed and every
+	 * message has been taken
+	 */
+	public Message take() throws InterruptedException {
+		Message ret;
+		boolean wasFull;
+		synchronized (this) {
+			while (messages.isEmpty()) {
+				if (closed) return null;
+				wait();
+			}
+			wasFull=isFull();
+			ret=remove();
+		}
+		if (wasFull) notifySpace();
+		return ret;
+	}
+	
+	/**
+	 * Move up to maxMessages waiting messages to the collection without waiting
+	 * @return the number of messages moved
+	 */
+	public int drainTo(Collection<? super Message> target, int maxMessages) {
+		int count=0;
+		boolean wasFull;
+		synchronized (this) {
+			wasFull=isFull();
+			while (count<maxMessages && !messages.isEmpty()) {
+				target.add(remove());
+				count++;
+			}
+		}
+		if (wasFull && count>0) notifySpace();
+		return count;
+	}
+	
+	private Message remove() {
+		Message ret=messages.removeFirst();
+		bytes-=ret.getBytes();
+		return ret;
+	}
+	
+	// -- producer side
+	synchronized void awaitSpace() throws InterruptedException {
+		while (isFull() && !closed) {
+			wait();
+		}
+	}
+	
+	synchronized void put(Message message) throws InterruptedException {
+		awaitSpace();
+		add(message);
+	}
+	
+	synchronized void add(Message message) {
+		messages.addLast(message);
+		bytes+=message.getBytes();
+		notifyAll();
+	}
+	
+	void closing() {
+		synchronized (this) {
+			if (closing) return;
+			closing=true;
+		}
+		notifySpace();
+	}
+	
+	synchronized void reopen() {
+		closing=false;
+	}
+	
+	/**
+	 * Wakes up waiting consumers once the queue is empty
+	 */
+	synchronized void close() {
+		closed=true;
+		notifyAll();
+	}
+	
+	synchronized void setSpaceListener(Runnable spaceListener) {
+		this.spaceListener=spaceListener;
+	}
+	
+	private void notifySpace() {
+		Runnable listener;
+		synchronized (this) {
+			// Also wakes a reader waiting in put
+			notifyAll();
+			listener=spaceListener;
+		}
+		if (listener!=null) listener.run();
+	}
+}
@@ -0,0 +1,51 @@
+package net.rcode.wsclient;
+
+/**
+ * Where a connection puts the messages it receives when something other than the
+ * listeners consumes them at its own pace.  While the sink is full the connection
+ * stops reading from the socket.
+ * 
+ * @author stella
+ *
+ */
+abstract class InboundSink {
+	/**
+	 * @return true while no more messages should be read
+	 */
+	abstract boolean isFull();
+	
+	/**
+	 * Wait until the sink is not full.  Called by the reader thread before it reads
+	 * the next message.
+	 */
+	abstract void awaitSpace() throws InterruptedException;
+	
+	/**
+	 * Add a message without waiting.  The connection checks isFull (or waits in
+	 * awaitSpace) before reading each message.
+	 */
+	abstract void add(Message message);
+	
+	/**
+	 * The connection has started to close.  From now on the sink must not be full
+	 * since the close handshake needs the reader to get to the close frame.
+	 */
+	abstract void closing();
+	
+	/**
+	 * The connection is being made again after closing().  The sink may be full
+	 * again from now on.
+	 */
+	abstract void reopen();
+	
+	/**
+	 * The connection has closed and no more messages will arrive
+	 */
+	abstract void close();
+	
+	/**
+	 * Set the listener that is called, outside of any lock, when a full sink can
+	 * take messages again
+	 */
+	abstract void setSpaceListener(Runnable spaceListener);
+}
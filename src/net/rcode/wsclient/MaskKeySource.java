@@ -0,0 +1,49 @@
+package net.rcode.wsclient;
+
+import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
+
+/**
+ * Masking keys for the frames one connection sends.  RFC 6455 requires them to be
+ * unpredictable so they come from a SecureRandom.  Each connection has its own,
+ * so writers do not contend for one, and it is drawn from in batches.
+ * <p>
+ * Only used by the writer of the connection.
+ * </p>
+ * 
+ * @author stella
+ *
+ */
+class MaskKeySource {
+	private static final int BATCH_SIZE=256;
+	
+	private final SecureRandom random=createRandom();
+	private final byte[] batch=new byte[BATCH_SIZE];
+	private int batchPosition=BATCH_SIZE;
+	private final byte[] key=new byte[4];
+	
+	/**
+	 * @return the next masking key.  The array is reused by the following call.
+	 */
+	byte[] nextKey() {
+		if (batchPosition==BATCH_SIZE) {
+			random.nextBytes(batch);
+			batchPosition=0;
+		}
+		System.arraycopy(batch, batchPosition, key, 0, 4);
+		batchPosition+=4;
+		return key;
+	}
+	
+	/**
+	 * SHA1PRNG keeps its state per instance (and seeds itself from the system on
+	 * first use), where the default provider may share one behind a lock
+	 */
+	private static SecureRandom createRandom() {
+		try {
+			return SecureRandom.getInstance("SHA1PRNG");
+		} catch (NoSuchAlgorithmException e) {
+			return new SecureRandom();
+		}
+	}
+}
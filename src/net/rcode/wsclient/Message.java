@@ -1,9 +1,20 @@
 package net.rcode.wsclient;
 
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.concurrent.atomic.AtomicReferenceFieldUpdater;
+
 
 public class Message {
 	private static final byte[] EMPTY_BYTES=new byte[0];
-	
+	private static final int CHUNK_SIZE=8192;
+	private static final AtomicReferenceFieldUpdater<Message, BufferPool> POOL_UPDATER=
+		AtomicReferenceFieldUpdater.newUpdater(Message.class, BufferPool.class, "pool");
+
 	// -- message opcodes
 	public static final int OPCODE_CONTINUATION=0;
 	public static final int OPCODE_CLOSE=1;
@@ -11,33 +22,146 @@ public class Message {
 	public static final int OPCODE_PONG=3;
 	public static final int OPCODE_TEXT=4;
 	public static final int OPCODE_BINARY=5;
-	
+
 	private int opcode;
 	private byte[] messageData;
+	private int length;
 	private boolean userMessage;
+	private volatile BufferPool pool;
+	private BufferPool.LeakTracker leakTracker;
+	
+	/**
+	 * Decoded text of a text message.  Racing threads may both decode it but
+	 * always arrive at an equal String.
+	 */
+	private String text;
+
+	// -- payload sources for messages not held in memory
+	private InputStream sourceStream;
+	private ByteBuffer sourceBuffer;
+	private FileChannel sourceChannel;
+	private long sourcePosition;
+	private int streamPosition;
+	private boolean streamStarted;
 	
+	/**
+	 * Text of an outbound message that is encoded as it is written, and its bytes
+	 * if anything needed them in memory after all
+	 */
+	private String sourceText;
+	private volatile byte[] encodedText;
+
+	/**
+	 * Completed once the message has been written out, for messages sent with
+	 * WebSocket.sendAsync.  Set before the message is queued.
+	 */
+	private WebSocketFuture<Message> sendFuture;
+
 	public Message(int opcode, byte[] messageData, boolean userMessage) {
 		if (messageData==null) messageData=EMPTY_BYTES;
 		this.opcode=opcode;
 		this.messageData=messageData;
+		this.length=messageData.length;
 		this.userMessage=userMessage;
 	}
-	
+
+	/**
+	 * Construct a received user message whose payload is the first length bytes of
+	 * a buffer acquired from pool.  The buffer goes back to the pool on release().
+	 * @param opcode
+	 * @param buffer
+	 * @param length
+	 * @param pool
+	 */
+	public Message(int opcode, byte[] buffer, int length, BufferPool pool) {
+		if (length<0 || length>buffer.length) throw new IllegalArgumentException();
+		this.opcode=opcode;
+		this.messageData=buffer;
+		this.length=length;
+		this.userMessage=true;
+		this.pool=pool;
+		if (pool!=null && pool.isLeakDetection()) leakTracker=pool.track(this);
+	}
+
+	/**
+	 * Construct a user message whose payload is read from a stream as it is written.
+	 * The stream is closed once the message has been written.
+	 * @param opcode OPCODE_TEXT or OPCODE_BINARY
+	 * @param payload
+	 * @param length the exact number of bytes that will be read from the stream
+	 */
+	public Message(int opcode, InputStream payload, int length) {
+		if (length<0) throw new IllegalArgumentException();
+		this.opcode=opcode;
+		this.sourceStream=payload;
+		this.length=length;
+		this.userMessage=true;
+	}
+
+	/**
+	 * Construct a user message whose payload is the remaining content of a buffer.
+	 * The buffer is not copied and its position is not changed, so it must not be
+	 * modified until the message has been written.
+	 * @param opcode OPCODE_TEXT or OPCODE_BINARY
+	 * @param payload
+	 */
+	public Message(int opcode, ByteBuffer payload) {
+		this.opcode=opcode;
+		this.sourceBuffer=payload.duplicate();
+		this.length=payload.remaining();
+		this.userMessage=true;
+	}
+
+	/**
+	 * Construct a user message whose payload is a region of a file.  The region is
+	 * read in chunks as the message is written, so it is never held in memory as a
+	 * whole.  It only goes to the socket with FileChannel.transferTo when the
+	 * protocol does not mask payloads (not RFC 6455) and the connection is plain and
+	 * was created from a SocketChannel, which the default SocketFactory does not do.
+	 * @param opcode OPCODE_TEXT or OPCODE_BINARY
+	 * @param payload
+	 * @param position offset of the region in the file
+	 * @param length length of the region
+	 */
+	public Message(int opcode, FileChannel payload, long position, int length) {
+		if (position<0 || length<0) throw new IllegalArgumentException();
+		this.opcode=opcode;
+		this.sourceChannel=payload;
+		this.sourcePosition=position;
+		this.length=length;
+		this.userMessage=true;
+	}
+
+	/**
+	 * Construct a text message.  Strings are immutable, so their encoding is
+	 * deferred until the message is written and then goes straight into the
+	 * output buffer.  Other CharSequences are encoded immediately.
+	 * @param textMessage
+	 */
 	public Message(CharSequence textMessage) {
-		this(OPCODE_TEXT, Util.getUTF8Bytes(textMessage), true);
+		this.opcode=OPCODE_TEXT;
+		this.userMessage=true;
+		if (textMessage instanceof String) {
+			this.text=(String)textMessage;
+			this.sourceText=text;
+			this.length=Util.getUTF8Length(textMessage);
+		} else {
+			this.messageData=Util.getUTF8Bytes(textMessage);
+			this.length=messageData.length;
+		}
 	}
-	
+
 	public Message(byte[] binaryMessage) {
 		this(OPCODE_BINARY, binaryMessage, true);
 	}
-	
+
 	/**
 	 * @return the size in bytes of the user data portion of the message
 	 */
 	public int getBytes() {
-		return messageData.length;
+		return length;
 	}
-	
+
 	/**
 	 * @return true if the message is generated by or targeted at users.  false if it is
 	 * system framing.
@@ -45,32 +169,215 @@ public class Message {
 	public boolean isUserMessage() {
 		return userMessage;
 	}
-	
+
 	public boolean isText() {
 		return opcode==OPCODE_TEXT;
 	}
-	
+
+	/**
+	 * Decode the payload as UTF-8.  It is decoded on the first call and the result
+	 * is kept for later ones.
+	 * @return the text of the message
+	 * @throws IllegalArgumentException if the payload is not valid UTF-8
+	 */
 	public CharSequence getMessageText() {
-		return Util.fromUTF8Bytes(messageData);
+		String ret=text;
+		if (ret==null) {
+			ret=Util.decodeUTF8(getMessageBuffer(), 0, length);
+			text=ret;
+		}
+		return ret;
 	}
-	
+
 	public int getOpcode() {
 		return opcode;
 	}
-	
+
+	/**
+	 * @return the payload as an array of exactly getBytes() length.  For a pooled
+	 * message this is a copy.  Use getMessageBuffer() to avoid it.
+	 */
 	public byte[] getMessageData() {
-		return messageData;
+		byte[] data=getMessageBuffer();
+		if (data.length==length) return data;
+
+		byte[] ret=new byte[length];
+		System.arraycopy(data, 0, ret, 0, length);
+		return ret;
+	}
+
+	/**
+	 * @return the array backing the payload.  Only the first getBytes() bytes are
+	 * valid.  For a pooled message the array must not be used after release().
+	 */
+	public byte[] getMessageBuffer() {
+		byte[] data=messageData;
+		if (data==null) {
+			if (sourceText!=null) {
+				data=encodedText;
+				if (data==null) {
+					data=Util.getUTF8Bytes(sourceText);
+					encodedText=data;
+				}
+				return data;
+			}
+			if (isStreamed()) throw new IllegalStateException("Message payload is not held in memory");
+			throw new IllegalStateException("Message has been released");
+		}
+		return data;
+	}
+
+	/**
+	 * @return true if the payload comes from a stream, buffer or file rather than
+	 * a byte array.  Such messages can only be written, not inspected.
+	 */
+	public boolean isStreamed() {
+		return sourceStream!=null || sourceBuffer!=null || sourceChannel!=null;
+	}
+
+	/**
+	 * @return false once reading an InputStream payload has begun, since it can
+	 * not be written again from the start
+	 */
+	boolean isReplayable() {
+		return sourceStream==null || !streamStarted;
+	}
+
+	/**
+	 * Write the payload.  Streamed payloads are copied in chunks that bypass the
+	 * buffering of out.  File payloads are transferred directly if channel is given.
+	 * @param out
+	 * @param channel the raw channel underneath out or null if there is none
+	 * @throws IOException
+	 */
+	public void writePayload(OutputStream out, WritableByteChannel channel) throws IOException {
+		writePayload(out, channel, 0, length);
 	}
 	
+	/**
+	 * Write part of the payload.  A message backed by an InputStream can only be
+	 * written in consecutive ranges.
+	 * @param out
+	 * @param channel the raw channel underneath out or null if there is none
+	 * @param offset
+	 * @param count
+	 * @throws IOException
+	 */
+	public void writePayload(OutputStream out, WritableByteChannel channel, int offset, int count) throws IOException {
+		if (offset<0 || count<0 || count>length-offset) throw new IndexOutOfBoundsException();
+		if (sourceChannel!=null) {
+			if (channel!=null) {
+				// Zero copy.  Everything buffered so far has to go first.
+				out.flush();
+				long position=sourcePosition + offset, end=position + count;
+				while (position<end) {
+					long transferred=sourceChannel.transferTo(position, end-position, channel);
+					if (transferred<=0) throw new IOException("File region ended before declared length");
+					position+=transferred;
+				}
+			} else {
+				ByteBuffer chunk=ByteBuffer.allocate(Math.min(CHUNK_SIZE, count));
+				long position=sourcePosition + offset;
+				int remaining=count;
+				while (remaining>0) {
+					chunk.clear();
+					if (remaining<chunk.capacity()) chunk.limit(remaining);
+					int r=sourceChannel.read(chunk, position);
+					if (r<0) throw new IOException("File region ended before declared length");
+					out.write(chunk.array(), 0, r);
+					position+=r;
+					remaining-=r;
+				}
+			}
+		} else if (sourceBuffer!=null) {
+			ByteBuffer payload=sourceBuffer.duplicate();
+			payload.position(payload.position() + offset);
+			payload.limit(payload.position() + count);
+			if (payload.hasArray()) {
+				out.write(payload.array(), payload.arrayOffset() + payload.position(), payload.remaining());
+			} else {
+				byte[] chunk=new byte[Math.min(CHUNK_SIZE, count)];
+				while (payload.hasRemaining()) {
+					int n=Math.min(chunk.length, payload.remaining());
+					payload.get(chunk, 0, n);
+					out.write(chunk, 0, n);
+				}
+			}
+		} else if (sourceStream!=null) {
+			if (offset!=streamPosition) throw new IllegalStateException("Stream payloads must be written in order");
+			streamStarted=true;
+			byte[] chunk=new byte[Math.min(CHUNK_SIZE, count)];
+			int remaining=count;
+			boolean done=false;
+			try {
+				while (remaining>0) {
+					int r=sourceStream.read(chunk, 0, Math.min(chunk.length, remaining));
+					if (r<0) throw new IOException("Stream ended before declared length");
+					out.write(chunk, 0, r);
+					remaining-=r;
+				}
+				streamPosition+=count;
+				done=streamPosition==length;
+			} finally {
+				if (done || remaining>0) sourceStream.close();
+			}
+		} else if (sourceText!=null && encodedText==null && count==length && out instanceof FrameOutputStream) {
+			((FrameOutputStream)out).writeUTF8(sourceText);
+		} else {
+			out.write(getMessageBuffer(), offset, count);
+		}
+	}
+
+	/**
+	 * @return true if the payload came from a BufferPool and has not yet been released
+	 */
+	public boolean isPooled() {
+		return pool!=null;
+	}
+
+	/**
+	 * Give a pooled payload back to its pool.  The payload can not be accessed
+	 * afterwards.  Does nothing for messages that are not pooled or already released.
+	 */
+	public void release() {
+		BufferPool localPool=pool;
+		if (localPool==null || !POOL_UPDATER.compareAndSet(this, localPool, null)) return;
+
+		byte[] data=messageData;
+		messageData=null;
+		text=null;
+		if (leakTracker!=null) {
+			localPool.untrack(leakTracker);
+			leakTracker=null;
+		}
+		localPool.release(data);
+	}
+
+	WebSocketFuture<Message> getSendFuture() {
+		return sendFuture;
+	}
+	void setSendFuture(WebSocketFuture<Message> sendFuture) {
+		this.sendFuture = sendFuture;
+	}
+
 	@Override
 	public String toString() {
-		if (opcode==OPCODE_TEXT) return getMessageText().toString();
-		else if (messageData!=null ){
+		if (isStreamed()) return "<streamed " + length + " bytes>";
+		if (sourceText!=null) return sourceText;
+		if (messageData==null) return "<released>";
+		if (opcode==OPCODE_TEXT) {
+			try {
+				return getMessageText().toString();
+			} catch (IllegalArgumentException e) {
+				// Still show something for malformed text
+				return Util.fromUTF8Bytes(messageData, 0, length).toString();
+			}
+		} else {
 			StringBuilder ret=new StringBuilder();
-			for (byte b: messageData) {
-				ret.append(Integer.toHexString(b)).append(" ");
+			for (int i=0; i<length; i++) {
+				ret.append(Integer.toHexString(messageData[i])).append(" ");
 			}
 			return ret.toString();
-		} else return "";
+		}
 	}
 }
@@ -0,0 +1,144 @@
+package net.rcode.wsclient;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Payload of a large inbound message, read directly off of the socket as it
+ * arrives.  Delivered with WebSocket.EVENT_MESSAGE_STREAM.
+ * <p>
+ * The reader thread does not move on to the next frame until this stream has
+ * been closed (or read to the end), so listeners must always close it, either
+ * from within the event handler or later from another thread.  Anything left
+ * unread at close is discarded.
+ * <p>
+ * Guarded by a ReentrantLock rather than the monitor so that a virtual thread
+ * reading it is not pinned while the socket blocks.
+ * 
+ * @author stella
+ *
+ */
+public class MessageInputStream extends InputStream {
+	private final InputStream source;
+	private final int opcode;
+	private final long length;
+	private long remaining;
+	private boolean closed;
+	private final ReentrantLock lock=new ReentrantLock();
+	private final Condition closedCondition=lock.newCondition();
+	
+	public MessageInputStream(InputStream source, int opcode, long length) {
+		this.source=source;
+		this.opcode=opcode;
+		this.length=length;
+		this.remaining=length;
+	}
+	
+	/**
+	 * @return the Message.OPCODE_* of the message
+	 */
+	public int getOpcode() {
+		return opcode;
+	}
+	
+	public boolean isText() {
+		return opcode==Message.OPCODE_TEXT;
+	}
+	
+	/**
+	 * @return the declared length of the payload in bytes
+	 */
+	public long getLength() {
+		return length;
+	}
+	
+	@Override
+	public int read() throws IOException {
+		lock.lock();
+		try {
+			if (closed) throw new IOException("Stream closed");
+			if (remaining<=0) {
+				close();
+				return -1;
+			}
+			int b=source.read();
+			if (b<0) throw new IOException("Connection closed before end of message");
+			remaining--;
+			return b;
+		} finally {
+			lock.unlock();
+		}
+	}
+	
+	@Override
+	public int read(byte[] b, int off, int len) throws IOException {
+		lock.lock();
+		try {
+			if (closed) throw new IOException("Stream closed");
+			if (len==0) return 0;
+			if (remaining<=0) {
+				close();
+				return -1;
+			}
+			if (len>remaining) len=(int)remaining;
+			int r=source.read(b, off, len);
+			if (r<0) throw new IOException("Connection closed before end of message");
+			remaining-=r;
+			return r;
+		} finally {
+			lock.unlock();
+		}
+	}
+	
+	@Override
+	public int available() throws IOException {
+		lock.lock();
+		try {
+			if (closed) return 0;
+			int available=source.available();
+			return available>remaining ? (int)remaining : available;
+		} finally {
+			lock.unlock();
+		}
+	}
+	
+	/**
+	 * Release the stream back to the reader thread.  Any unread payload is skipped.
+	 */
+	@Override
+	public void close() {
+		lock.lock();
+		try {
+			if (closed) return;
+			closed=true;
+			closedCondition.signalAll();
+		} finally {
+			lock.unlock();
+		}
+	}
+	
+	/**
+	 * Called on the reader thread.  Waits for the consumer to close the stream and
+	 * then discards whatever it left unread.
+	 */
+	void awaitClose() throws IOException, InterruptedException {
+		lock.lock();
+		try {
+			while (!closed) {
+				closedCondition.await();
+			}
+			while (remaining>0) {
+				long skipped=source.skip(remaining);
+				if (skipped<=0) {
+					if (source.read()<0) throw new IOException("Connection closed before end of message");
+					skipped=1;
+				}
+				remaining-=skipped;
+			}
+		} finally {
+			lock.unlock();
+		}
+	}
+}
@@ -0,0 +1,226 @@
+package net.rcode.wsclient;
+
+import java.io.IOException;
+
+/**
+ * Publishes the messages a WebSocket receives to a single Subscriber.  Frames are
+ * only read while the subscriber has requested more messages than it has been
+ * given, so a slow subscriber holds the server back through TCP flow control
+ * rather than messages piling up in memory.
+ * <p>
+ * Create the publisher before starting the WebSocket.  Nothing is read until a
+ * subscriber has subscribed and requested messages.  onNext is called on the
+ * reader thread (or event loop) of the connection.  When the connection closes
+ * the subscriber gets onComplete after a normal close and onError otherwise.
+ * A request for zero or fewer messages cancels the subscription, and onError is
+ * signalled from the reader as well, once it is between messages.
+ * </p>
+ * <p>
+ * Once the connection has started to close, messages the subscriber has not
+ * requested are discarded so that the close handshake can complete.  After
+ * cancel everything is discarded, but the connection stays open.
+ * </p>
+ * 
+ * @author stella
+ *
+ */
+public class MessagePublisher extends InboundSink implements Reactive.Publisher<Message> {
+	private final WebSocket socket;
+	private Reactive.Subscriber<? super Message> subscriber;
+	/**
+	 * Messages requested and not yet delivered.  Long.MAX_VALUE is unbounded.
+	 */
+	private long demand;
+	private boolean subscribed;
+	private boolean cancelled;
+	private boolean closing;
+	private boolean closed;
+	private boolean terminated;
+	/**
+	 * Error to signal from the reader, which is the only thread that may call
+	 * onNext, or null
+	 */
+	private Throwable pendingError;
+	private Runnable spaceListener;
+	
+	private final Reactive.Subscription subscription=new Reactive.Subscription() {
+		public void request(long n) {
+			MessagePublisher.this.request(n);
+		}
+		public void cancel() {
+			MessagePublisher.this.cancel();
+		}
+	};
+	
+	/**
+	 * @param socket a WebSocket that has not been started yet and has no
+	 * InboundQueue
+	 */
+	public MessagePublisher(WebSocket socket) {
+		if (socket.getInboundSink()!=null) throw new IllegalStateException("WebSocket already has an inbound sink");
+		this.socket=socket;
+		socket.setInboundSink(this);
+	}
+	
+	public void subscribe(Reactive.Subscriber<? super Message> subscriber) {
+		if (subscriber==null) throw new NullPointerException();
+		synchronized (this) {
+			if (this.subscriber!=null) {
+				subscriber.onSubscribe(new Reactive.Subscription() {
+					public void request(long n) {
+					}
+					public void cancel() {
+					}
+				});
+				subscriber.onError(new IllegalStateException("MessagePublisher allows a single subscriber"));
+				return;
+			}
+			this.subscriber=subscriber;
+		}
+		
+		subscriber.onSubscribe(subscription);
+		boolean terminate;
+		synchronized (this) {
+			subscribed=true;
+			terminate=closed && !terminated;
+			if (terminate) terminated=true;
+		}
+		// Closed before the subscription was handed over
+		if (terminate) signalTermination();
+	}
+	
+	private void request(long n) {
+		if (n<=0) {
+			// The reader may be in onNext right now, so it signals the error
+			Runnable listener;
+			synchronized (this) {
+				if (cancelled) return;
+				cancelled=true;
+				pendingError=new IllegalArgumentException("Non-positive request");
+				listener=spaceListener;
+				notifyAll();
+			}
+			if (listener!=null) listener.run();
+			return;
+		}
+		
+		boolean wasEmpty;
+		Runnable listener;
+		synchronized (this) {
+			if (cancelled) return;
+			wasEmpty=demand==0;
+			demand+=n;
+			if (demand<0) demand=Long.MAX_VALUE;
+			listener=spaceListener;
+			notifyAll();
+		}
+		if (wasEmpty && listener!=null) listener.run();
+	}
+	
+	private void cancel() {
+		Runnable listener;
+		synchronized (this) {
+			if (cancelled) return;
+			cancelled=true;
+			listener=spaceListener;
+			notifyAll();
+		}
+		// Whatever is waiting for demand may go on and discard
+		if (listener!=null) listener.run();
+	}
+	
+	/**
+	 * Called on the reader thread (or event loop)
+	 */
+	private void signalPendingError() {
+		Throwable error;
+		synchronized (this) {
+			error=pendingError;
+			if (error==null) return;
+			pendingError=null;
+			if (terminated) return;
+			terminated=true;
+		}
+		subscriber.onError(error);
+	}
+	
+	private boolean full() {
+		return !cancelled && !closing && demand==0;
+	}
+	
+	// -- InboundSink
+	boolean isFull() {
+		boolean full;
+		synchronized (this) {
+			full=full();
+		}
+		signalPendingError();
+		return full;
+	}
+	
+	void awaitSpace() throws InterruptedException {
+		synchronized (this) {
+			while (full()) {
+				wait();
+			}
+		}
+		signalPendingError();
+	}
+	
+	void add(Message message) {
+		signalPendingError();
+		boolean deliver;
+		synchronized (this) {
+			deliver=!cancelled && demand>0;
+			if (deliver && demand!=Long.MAX_VALUE) demand--;
+		}
+		if (deliver) subscriber.onNext(message);
+		else if (message.isPooled()) message.release();
+	}
+	
+	void closing() {
+		Runnable listener;
+		synchronized (this) {
+			if (closing) return;
+			closing=true;
+			listener=spaceListener;
+			notifyAll();
+		}
+		if (listener!=null) listener.run();
+	}
+	
+	synchronized void reopen() {
+		closing=false;
+	}
+	
+	void close() {
+		boolean terminate;
+		Throwable error;
+		synchronized (this) {
+			closed=true;
+			terminate=subscribed && !terminated;
+			if (terminate) terminated=true;
+			error=pendingError;
+			pendingError=null;
+		}
+		if (!terminate) return;
+		if (error!=null) subscriber.onError(error);
+		else signalTermination();
+	}
+	
+	synchronized void setSpaceListener(Runnable spaceListener) {
+		this.spaceListener=spaceListener;
+	}
+	
+	private void signalTermination() {
+		synchronized (this) {
+			if (cancelled) return;
+		}
+		int code=socket.getCloseCode();
+		if (code==WebSocket.CLOSE_NORMAL || code==WebSocket.CLOSE_GOING_AWAY) {
+			subscriber.onComplete();
+		} else {
+			subscriber.onError(new IOException("WebSocket closed with code " + code));
+		}
+	}
+}
@@ -1,78 +1,603 @@
 package net.rcode.wsclient;
 
-import java.util.Iterator;
-import java.util.LinkedList;
+import java.io.IOException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.LockSupport;
 
 /**
- * Queue messages for transmission
+ * Queue messages for transmission.
+ * <p>
+ * Any number of threads may add messages without taking a lock.  Internally this
+ * is a set of linked multi-producer/single-consumer lanes: producers append with
+ * a single atomic swap of the tail and the consumer (the writer thread) removes
+ * from the head in constant time.
+ * <p>
+ * Messages added with addHead go on the control lane, which always has absolute
+ * priority.  User messages go on one of several priority lanes (LANE_HIGH first).
+ * The consumer picks between the priority lanes either strictly by priority or by
+ * a byte weighted round robin (see setSchedulingPolicy).  Messages added with
+ * addLast go out only once every other lane is empty, which is what an orderly
+ * close needs.
+ * <p>
+ * User messages may be added with a conflation key.  While a message with that
+ * key is still waiting (not yet picked up by the writer) a newer message with the
+ * same key replaces it in place, keeping its position in the queue.  Messages may
+ * also be given a time to live after which they are discarded unsent.
+ * <p>
+ * The queue can optionally be bounded by byte watermarks.  Once the queued bytes
+ * rise above the high watermark the queue becomes unwritable and stays that way
+ * until they fall back to the low watermark.  What happens to messages added with
+ * addTail while unwritable is governed by the overflow policy.  Messages added
+ * with addHead or addLast are never blocked, rejected or dropped.
+ * <p>
+ * The consumer side methods (peekNext, waitNext, remove) must only be called
+ * from a single thread at a time.
+ *
  * @author stella
  *
  */
 public class MessageQueue {
-	private LinkedList<Message> queue=new LinkedList<Message>();
-	private int count;
-	private long bytes;
-	
+	/**
+	 * Keep queueing past the high watermark.  Only the writability events fire.
+	 */
+	public static final int OVERFLOW_GROW=0;
+	/**
+	 * Block the sender until the queue is writable again or the overflow timeout
+	 * elapses
+	 */
+	public static final int OVERFLOW_BLOCK=1;
+	/**
+	 * Throw a QueueFullException from the sender while unwritable
+	 */
+	public static final int OVERFLOW_REJECT=2;
+	/**
+	 * Discard the oldest queued user messages until the queue is back under the
+	 * high watermark
+	 */
+	public static final int OVERFLOW_DROP_OLDEST=3;
+
+	/**
+	 * Always transmit from the highest priority lane that has a message
+	 */
+	public static final int SCHEDULE_STRICT=0;
+	/**
+	 * Share the link between lanes in proportion to their weights (deficit
+	 * round robin over message bytes)
+	 */
+	public static final int SCHEDULE_WEIGHTED=1;
+
+	// -- lanes of the default queue
+	public static final int LANE_HIGH=0;
+	public static final int LANE_NORMAL=1;
+	public static final int LANE_BULK=2;
+	public static final int DEFAULT_LANE_COUNT=3;
+
+	/**
+	 * Bytes a lane of weight 1 may send per weighted round
+	 */
+	private static final int QUANTUM_BYTES=1500;
+
+	/**
+	 * Receives notifications when the queue crosses its watermarks.  Called on
+	 * whichever thread caused the crossing.
+	 */
+	public static interface WritabilityListener {
+		public void writabilityChanged(MessageQueue queue, boolean writable);
+	}
+
+	/**
+	 * Told about every message added to the queue, on the thread that added it.
+	 * Lets a consumer that is not parked in waitNext (such as a SelectorEngine
+	 * event loop) know there is something to write.
+	 */
+	public static interface ArrivalListener {
+		public void messageArrived(MessageQueue queue);
+	}
+
+	private final Lane controlLane=new Lane();
+	private final Lane[] lanes;
+	private final Lane trailingLane=new Lane();
+	private final int defaultLane;
+
+	/**
+	 * Waiting nodes by conflation key.  Entries are removed when the node is
+	 * claimed by the writer, dropped or expired.
+	 */
+	private final ConcurrentMap<Object, Node> conflationIndex=new ConcurrentHashMap<Object, Node>();
+
+	// -- scheduling (weights are shared, the rest is consumer state)
+	private volatile int schedulingPolicy=SCHEDULE_STRICT;
+	private volatile int[] laneWeights;
+	private final long[] deficits;
+	private int cursor;
+	private boolean credited;
+	private Lane currentLane;
+	private int currentIndex=-1;
+
+	/**
+	 * The consumer thread if it is parked waiting for a message.  The first
+	 * producer to see it clears it so that only one unpark is issued per wait.
+	 */
+	private final AtomicReference<Thread> waiter=new AtomicReference<Thread>();
+
+	// -- flow control
+	private volatile long lowWatermark=0;
+	private volatile long highWatermark=Long.MAX_VALUE;
+	private volatile int overflowPolicy=OVERFLOW_GROW;
+	private volatile long overflowTimeout=0;
+	private volatile WritabilityListener writabilityListener;
+	private volatile ArrivalListener arrivalListener;
+
+	/**
+	 * Set by addLast.  No more user messages are admitted.
+	 */
+	private volatile boolean finishing;
+	private final AtomicBoolean writable=new AtomicBoolean(true);
+	private final Object spaceLock=new Object();
+
+	public MessageQueue() {
+		this(DEFAULT_LANE_COUNT);
+	}
+
+	/**
+	 * Create a queue with laneCount user priority lanes.  Lane 0 has the highest
+	 * priority.  addTail without a lane uses LANE_NORMAL if it exists, else lane 0.
+	 * @param laneCount
+	 */
+	public MessageQueue(int laneCount) {
+		if (laneCount<1) throw new IllegalArgumentException();
+		lanes=new Lane[laneCount];
+		laneWeights=new int[laneCount];
+		for (int i=0; i<laneCount; i++) {
+			lanes[i]=new Lane();
+			// Each lane gets twice the share of the one below it
+			laneWeights[i]=1 << Math.min(laneCount-1-i, 16);
+		}
+		deficits=new long[laneCount];
+		defaultLane=laneCount>LANE_NORMAL ? LANE_NORMAL : 0;
+	}
+
 	/**
 	 * @return the depth of the queue
 	 */
 	public int getDepth() {
-		synchronized (queue) {
-			return count;
-		}
+		int depth=controlLane.getDepth() + trailingLane.getDepth();
+		for (int i=0; i<lanes.length; i++) depth+=lanes[i].getDepth();
+		return depth;
 	}
-	
+
 	/**
 	 * @return the approximate number of bytes on the queue
 	 */
 	public long getBytes() {
-		synchronized (queue) {
-			return bytes;
-		}
+		long bytes=controlLane.getBytes() + trailingLane.getBytes();
+		for (int i=0; i<lanes.length; i++) bytes+=lanes[i].getBytes();
+		return bytes;
 	}
-	
+
+	/**
+	 * @return the number of user priority lanes
+	 */
+	public int getLaneCount() {
+		return lanes.length;
+	}
+
+	/**
+	 * @return the number of messages queued on the given user lane
+	 */
+	public int getDepth(int lane) {
+		return lanes[lane].getDepth();
+	}
+
+	/**
+	 * @return the approximate number of bytes queued on the given user lane
+	 */
+	public long getBytes(int lane) {
+		return lanes[lane].getBytes();
+	}
+
 	/**
-	 * Add a message to the start of the queue for transmission
-	 * next
+	 * Choose how the writer picks between user lanes.  The control lane always
+	 * goes first regardless.
+	 * @param schedulingPolicy a SCHEDULE_* constant
+	 */
+	public void setSchedulingPolicy(int schedulingPolicy) {
+		if (schedulingPolicy!=SCHEDULE_STRICT && schedulingPolicy!=SCHEDULE_WEIGHTED)
+			throw new IllegalArgumentException();
+		this.schedulingPolicy = schedulingPolicy;
+	}
+
+	public int getSchedulingPolicy() {
+		return schedulingPolicy;
+	}
+
+	/**
+	 * Set the relative share of a lane under SCHEDULE_WEIGHTED.  By default each
+	 * lane has twice the weight of the lane below it.
+	 * @param lane
+	 * @param weight
+	 */
+	public synchronized void setLaneWeight(int lane, int weight) {
+		if (weight<1) throw new IllegalArgumentException();
+		int[] weights=laneWeights.clone();
+		weights[lane]=weight;
+		laneWeights=weights;
+	}
+
+	public int getLaneWeight(int lane) {
+		return laneWeights[lane];
+	}
+
+	/**
+	 * Set the byte watermarks.  The queue becomes unwritable when the queued bytes
+	 * exceed highWatermark and writable again once they drop to lowWatermark.
+	 * @param lowWatermark
+	 * @param highWatermark
+	 */
+	public void setWatermarks(long lowWatermark, long highWatermark) {
+		if (lowWatermark<0 || highWatermark<lowWatermark) throw new IllegalArgumentException();
+		this.lowWatermark=lowWatermark;
+		this.highWatermark=highWatermark;
+		checkHighWatermark();
+		checkLowWatermark();
+	}
+
+	public long getLowWatermark() {
+		return lowWatermark;
+	}
+
+	public long getHighWatermark() {
+		return highWatermark;
+	}
+
+	/**
+	 * Set what addTail does while the queue is unwritable.
+	 * @param overflowPolicy An OVERFLOW_* constant
+	 * @param timeoutMillis For OVERFLOW_BLOCK, the longest a sender will wait
+	 * before a QueueFullException is thrown.  0 waits forever.
+	 */
+	public void setOverflowPolicy(int overflowPolicy, long timeoutMillis) {
+		if (overflowPolicy<OVERFLOW_GROW || overflowPolicy>OVERFLOW_DROP_OLDEST || timeoutMillis<0)
+			throw new IllegalArgumentException();
+		this.overflowPolicy=overflowPolicy;
+		this.overflowTimeout=timeoutMillis;
+	}
+
+	public int getOverflowPolicy() {
+		return overflowPolicy;
+	}
+
+	public void setWritabilityListener(WritabilityListener writabilityListener) {
+		this.writabilityListener = writabilityListener;
+	}
+
+	/**
+	 * Set a listener for consumers that do not wait in waitNext
+	 * @param arrivalListener
+	 */
+	public void setArrivalListener(ArrivalListener arrivalListener) {
+		this.arrivalListener = arrivalListener;
+	}
+
+	/**
+	 * @return false if the queue has crossed the high watermark and not yet
+	 * drained to the low watermark
+	 */
+	public boolean isWritable() {
+		return writable.get();
+	}
+
+	/**
+	 * Add a message to the control lane so that it is transmitted ahead of
+	 * anything added with addTail.  Messages added this way are transmitted
+	 * in the order they were added.  The overflow policy does not apply.
 	 * @param message
 	 */
 	public void addHead(Message message) {
-		boolean wasEmpty;
-		synchronized (queue) {
-			wasEmpty=queue.isEmpty();
-			bytes+=message.getBytes();
-			count++;
-			queue.addFirst(message);
-			if (wasEmpty) queue.notify();
-		}
+		add(controlLane, message);
+	}
+
+	/**
+	 * Add a message that is transmitted only after every message added before
+	 * it on any lane, such as a close.  The overflow policy does not apply.  From
+	 * now on user messages given to addTail are discarded, since they could only
+	 * go out after it and a sender that never stops would hold it back forever.
+	 * @param message
+	 */
+	public void addLast(Message message) {
+		add(trailingLane, message);
+		finishing=true;
 	}
-	
+
 	/**
-	 * Add a message to the end of the queue (typical)
+	 * Add a message to the end of the default lane (typical)
 	 * @param message
+	 * @throws QueueFullException if the overflow policy refuses the message
 	 */
 	public void addTail(Message message) {
-		boolean wasEmpty;
-		synchronized (queue) {
-			wasEmpty=queue.isEmpty();
-			bytes+=message.getBytes();
-			count++;
-			queue.addLast(message);
-			if (wasEmpty) queue.notify();
+		addTail(message, defaultLane);
+	}
+
+	/**
+	 * Add a message to the end of the given user lane.  The overflow policy only
+	 * applies to user messages.
+	 * @param message
+	 * @param lane
+	 * @throws QueueFullException if the overflow policy refuses the message
+	 */
+	public void addTail(Message message, int lane) {
+		addTail(null, message, lane, 0);
+	}
+
+	/**
+	 * Add a message to the default lane, replacing any message with the same key
+	 * that the writer has not yet picked up
+	 * @param key conflation key
+	 * @param message
+	 * @return true if an existing message was replaced
+	 * @throws QueueFullException if the overflow policy refuses the message
+	 */
+	public boolean addTail(Object key, Message message) {
+		return addTail(key, message, defaultLane, 0);
+	}
+
+	/**
+	 * Add a message to the end of a user lane.  If key is not null and a message
+	 * with the same key is still waiting, it is replaced in place instead (it keeps
+	 * its lane and position and the depth does not change).  After addLast user
+	 * messages are discarded instead.
+	 * @param key conflation key or null
+	 * @param message
+	 * @param lane
+	 * @param ttlMillis discard the message unsent if it is still waiting after this
+	 * long.  0 for no limit.
+	 * @return true if an existing message was replaced
+	 * @throws QueueFullException if the overflow policy refuses the message
+	 */
+	public boolean addTail(Object key, Message message, int lane, long ttlMillis) {
+		Lane target=lanes[lane];
+		if (finishing && message.isUserMessage()) {
+			// Behind the close, so it would never be written
+			discarded(message);
+			return false;
+		}
+		// Protocol frames such as close must get through whatever the backlog
+		int policy=message.isUserMessage() ? overflowPolicy : OVERFLOW_GROW;
+		if (policy==OVERFLOW_REJECT) {
+			if (!writable.get()) throw new QueueFullException("Transmission queue is above its high watermark");
+		} else if (policy==OVERFLOW_BLOCK) {
+			awaitWritable();
+		}
+
+		long deadline=ttlMillis>0 ? System.nanoTime() + ttlMillis*1000000L : 0;
+		boolean replaced;
+		if (key==null) {
+			replaced=false;
+			add(target, new Node(null, message, deadline));
+		} else {
+			replaced=addConflated(target, key, message, deadline);
+		}
+
+		if (policy==OVERFLOW_DROP_OLDEST) {
+			while (getBytes()>highWatermark) {
+				if (!dropOldestUserMessage()) break;
+			}
+			checkLowWatermark();
+		}
+		return replaced;
+	}
+
+	private boolean addConflated(Lane target, Object key, Message message, long deadline) {
+		Node node=null;
+		for (;;) {
+			Node existing=conflationIndex.get(key);
+			if (existing!=null && existing.lane.replace(existing, message, deadline)) {
+				if (node!=null) target.unaccount(message);
+				checkHighWatermark();
+				return true;
+			}
+			if (existing!=null && existing.state==STATE_REPLACING) {
+				// Another producer is swapping its message in.  The node stays
+				// queued, so replace it again once that is done.
+				Thread.yield();
+				continue;
+			}
+			
+			if (node==null) {
+				// The node is visible to other producers as soon as it is in the index,
+				// so it must already be accounted for
+				node=new Node(key, message, deadline);
+				node.lane=target;
+				target.account(message);
+			}
+			if (existing!=null) {
+				// Claimed by the writer or dropped.  Take over the key.
+				if (conflationIndex.replace(key, existing, node)) break;
+			} else {
+				if (conflationIndex.putIfAbsent(key, node)==null) break;
+			}
 		}
+		
+		target.enqueue(node);
+		signalConsumer();
+		checkHighWatermark();
+		return false;
 	}
-	
+
+	/**
+	 * Drop from the lowest priority lane that has anything droppable
+	 */
+	private boolean dropOldestUserMessage() {
+		for (int i=lanes.length-1; i>=0; i--) {
+			if (lanes[i].dropOldestUserMessage()) return true;
+		}
+		return false;
+	}
+
+	private void add(Lane target, Message message) {
+		add(target, new Node(null, message, 0));
+	}
+
+	private void add(Lane target, Node node) {
+		target.account(node.message);
+		target.enqueue(node);
+		signalConsumer();
+		checkHighWatermark();
+	}
+
+	private void signalConsumer() {
+		if (waiter.get()!=null) {
+			Thread localWaiter=waiter.getAndSet(null);
+			if (localWaiter!=null) LockSupport.unpark(localWaiter);
+		}
+		ArrivalListener localListener=arrivalListener;
+		if (localListener!=null) localListener.messageArrived(this);
+	}
+
+	private void awaitWritable() {
+		if (writable.get()) return;
+
+		long timeout=overflowTimeout;
+		long deadline=System.currentTimeMillis() + timeout;
+		synchronized (spaceLock) {
+			while (!writable.get()) {
+				long remaining=timeout==0 ? 0 : deadline-System.currentTimeMillis();
+				if (timeout!=0 && remaining<=0)
+					throw new QueueFullException("Timed out waiting for transmission queue to drain");
+				try {
+					spaceLock.wait(remaining);
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					throw new QueueFullException("Interrupted waiting for transmission queue to drain");
+				}
+			}
+		}
+	}
+
+	private void checkHighWatermark() {
+		long high=highWatermark;
+		if (high==Long.MAX_VALUE) return;	// Unbounded.  Skip summing the lanes.
+		if (getBytes()>high && writable.compareAndSet(true, false)) {
+			WritabilityListener l=writabilityListener;
+			if (l!=null) l.writabilityChanged(this, false);
+			
+			// The writer may have drained everything before the flag flipped
+			checkLowWatermark();
+		}
+	}
+
+	private void checkLowWatermark() {
+		if (getBytes()<=lowWatermark && writable.compareAndSet(false, true)) {
+			synchronized (spaceLock) {
+				spaceLock.notifyAll();
+			}
+			WritabilityListener l=writabilityListener;
+			if (l!=null) l.writabilityChanged(this, true);
+			
+			// A sender may have overfilled it again before the flag flipped
+			checkHighWatermark();
+		}
+	}
+
 	/**
 	 * Peek at the next message
 	 * @return the next message or null
 	 */
 	public Message peekNext() {
-		synchronized (queue) {
-			if (queue.isEmpty()) return null;
-			return queue.getFirst();
+		Message next=controlLane.peek(true);
+		if (next!=null) {
+			currentLane=controlLane;
+			currentIndex=-1;
+			return next;
 		}
+
+		if (schedulingPolicy==SCHEDULE_WEIGHTED) next=peekWeighted();
+		else next=peekStrict();
+		if (next!=null) return next;
+
+		next=trailingLane.peek(true);
+		if (next!=null) {
+			currentLane=trailingLane;
+			currentIndex=-1;
+		}
+		return next;
+	}
+
+	/**
+	 * Peek at the next control message only (queued with addHead), claiming it like
+	 * peekNext().  Used by the writer between the fragments of a message that it is
+	 * still sending, since nothing else may be interleaved with them.
+	 * @return the next control message or null
+	 */
+	public Message peekControl() {
+		Message next=controlLane.peek(true);
+		if (next!=null) {
+			currentLane=controlLane;
+			currentIndex=-1;
+		}
+		return next;
+	}
+
+	private Message peekStrict() {
+		for (int i=0; i<lanes.length; i++) {
+			Message next=lanes[i].peek(true);
+			if (next!=null) {
+				currentLane=lanes[i];
+				currentIndex=i;
+				return next;
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Deficit round robin.  Each time the cursor arrives at a lane, the lane is
+	 * credited with its quantum and may send messages while its deficit covers
+	 * them.  The deficit is charged when the message is removed.
+	 */
+	private Message peekWeighted() {
+		int[] weights=laneWeights;
+		int emptyCount=0;
+		for (;;) {
+			Lane lane=lanes[cursor];
+			Message next=lane.peek(false);
+			if (next==null) {
+				// Idle lanes do not bank credit
+				deficits[cursor]=0;
+				advanceCursor();
+				if (++emptyCount>=lanes.length) return null;
+				continue;
+			}
+
+			emptyCount=0;
+			if (!credited) {
+				deficits[cursor]+=(long)QUANTUM_BYTES * weights[cursor];
+				credited=true;
+			}
+			if (next.getBytes()<=deficits[cursor]) {
+				next=lane.peek(true);
+				if (next==null) continue;
+				currentLane=lane;
+				currentIndex=cursor;
+				return next;
+			}
+
+			advanceCursor();
+		}
+	}
+
+	private void advanceCursor() {
+		cursor++;
+		if (cursor>=lanes.length) cursor=0;
+		credited=false;
 	}
-	
+
 	/**
 	 * Blocking wait for next message.  This method will always return
 	 * a Message or throw InterruptedException.  The message is not removed
@@ -81,14 +606,23 @@ public class MessageQueue {
 	 * @throws InterruptedException
 	 */
 	public Message waitNext() throws InterruptedException {
-		synchronized (queue) {
-			for (;;) {
-				if (!queue.isEmpty()) return queue.getFirst();
-				else queue.wait();
+		for (;;) {
+			Message next=peekNext();
+			if (next!=null) return next;
+
+			waiter.set(Thread.currentThread());
+			try {
+				// Check again now that producers can see us
+				next=peekNext();
+				if (next!=null) return next;
+				LockSupport.park(this);
+			} finally {
+				waiter.set(null);
 			}
+			if (Thread.interrupted()) throw new InterruptedException();
 		}
 	}
-	
+
 	/**
 	 * Returns the next message on the queue, waiting for at most millis.
 	 * This only does one blocking call to wait, so calling code should
@@ -98,31 +632,311 @@ public class MessageQueue {
 	 * @throws InterruptedException
 	 */
 	public Message waitNext(long millis) throws InterruptedException {
-		synchronized (queue) {
-			if (queue.isEmpty()) queue.wait(millis);
-			if (queue.isEmpty()) return queue.getFirst();
-			else return null;
+		Message next=peekNext();
+		if (next!=null) return next;
+
+		waiter.set(Thread.currentThread());
+		try {
+			next=peekNext();
+			if (next!=null) return next;
+			LockSupport.parkNanos(this, millis * 1000000L);
+		} finally {
+			waiter.set(null);
 		}
+		if (Thread.interrupted()) throw new InterruptedException();
+		return peekNext();
 	}
-	
+
 	/**
-	 * Remove an existing message from the queue.  Only the first identitical message
-	 * is removed.  Typical usage of this method would be in conjunction with
-	 * waitNext() to peek at the next message and then remove it once processed.
+	 * Remove the message at the head of the queue.  Typical usage of this method
+	 * would be in conjunction with waitNext() to peek at the next message and then
+	 * remove it once processed.  Only the message at the head of one of the lanes
+	 * can be removed.  Anything else is ignored.
 	 * @param message
 	 */
 	public void remove(Message message) {
-		synchronized (queue) {
-			Iterator<Message> iter=queue.iterator();
-			while (iter.hasNext()) {
-				Message existing=iter.next();
-				if (existing==message) {
-					count--;
-					bytes-=message.getBytes();
-					iter.remove();
-					return;
+		Lane lane=currentLane;
+		int index=currentIndex;
+		currentLane=null;
+		currentIndex=-1;
+
+		if (lane==null || !lane.removeHead(message)) {
+			// Not the last message peeked.  Look at the other lane heads.
+			index=-1;
+			if (controlLane.removeHead(message)) lane=controlLane;
+			else if (trailingLane.removeHead(message)) lane=trailingLane;
+			else {
+				lane=null;
+				for (int i=0; i<lanes.length; i++) {
+					if (lanes[i].removeHead(message)) {
+						lane=lanes[i];
+						index=i;
+						break;
+					}
+				}
+				if (lane==null) return;
+			}
+		}
+
+		// Only deficit round robin credits the lanes, so only it may charge them
+		if (index>=0 && schedulingPolicy==SCHEDULE_WEIGHTED) deficits[index]-=message.getBytes();
+		if (!writable.get()) checkLowWatermark();
+	}
+
+	/**
+	 * Drop the control messages (pings, pongs and closes) queued with addHead and
+	 * addLast.  They belong to the connection they were queued for, so a reconnect
+	 * discards them and keeps only user messages.  Consumer side, so only call
+	 * while nothing is taking messages.
+	 * @return the number of messages dropped
+	 */
+	public int discardControl() {
+		int count=discardControl(controlLane) + discardControl(trailingLane);
+		finishing=false;
+		currentLane=null;
+		currentIndex=-1;
+		if (count>0 && !writable.get()) checkLowWatermark();
+		return count;
+	}
+
+	private static int discardControl(Lane lane) {
+		int count=0;
+		Message head;
+		while ((head=lane.peek(true))!=null && !head.isUserMessage()) {
+			lane.removeHead(head);
+			discarded(head);
+			count++;
+		}
+		// Anything behind a user message that was put on these lanes
+		for (Node node=lane.head.next; node!=null; node=node.next) {
+			Message message=node.message;
+			if (message!=null && !message.isUserMessage() && lane.discard(node)) count++;
+		}
+		return count;
+	}
+
+	/**
+	 * Drop the messages the writer had started on that can not be written again
+	 * from the start, such as a partly read InputStream payload.  Called before
+	 * the queue is replayed on a new connection.  Consumer side, like
+	 * discardControl().
+	 * @return the number of messages dropped
+	 */
+	public int discardUnreplayable() {
+		int count=discardUnreplayable(controlLane) + discardUnreplayable(trailingLane);
+		for (int i=0; i<lanes.length; i++) {
+			count+=discardUnreplayable(lanes[i]);
+		}
+		return count;
+	}
+
+	private int discardUnreplayable(Lane lane) {
+		// Only the claimed head of a lane can have been started
+		Node head=lane.head.next;
+		if (head==null || head.state!=STATE_TAKEN) return 0;
+		Message message=head.message;
+		if (message==null || message.isReplayable()) return 0;
+		remove(message);
+		discarded(message);
+		return 1;
+	}
+
+	/**
+	 * Fail the send future of a message that will never be written
+	 */
+	private static void discarded(Message message) {
+		WebSocketFuture<Message> future=message.getSendFuture();
+		if (future!=null) future.fail(new IOException("Message was discarded before it was sent"));
+	}
+
+	private static final int STATE_QUEUED=0;
+	private static final int STATE_TAKEN=1;
+	private static final int STATE_DROPPED=2;
+	private static final int STATE_SKIPPED=3;
+	private static final int STATE_REPLACING=4;
+
+	/**
+	 * Times the consumer retries a node that is being replaced before it starts
+	 * yielding between retries
+	 */
+	private static final int SPIN_LIMIT=64;
+
+	private static final AtomicIntegerFieldUpdater<Node> STATE_UPDATER=
+		AtomicIntegerFieldUpdater.newUpdater(Node.class, "state");
+
+	private static final class Node {
+		volatile Node next;
+		volatile int state;
+		volatile Message message;
+		final Object key;
+		
+		/**
+		 * System.nanoTime() after which the message is discarded or 0
+		 */
+		long deadline;
+		
+		/**
+		 * The lane this node was added to.  Only set for keyed nodes.
+		 */
+		Lane lane;
+
+		Node(Object key, Message message, long deadline) {
+			this.key=key;
+			this.message=message;
+			this.deadline=deadline;
+		}
+	}
+
+	/**
+	 * Unbounded linked MPSC queue.  The head always points at a consumed
+	 * (or stub) node whose successor is the next message.  Nodes are claimed
+	 * by the consumer before it transmits them so that a producer dropping or
+	 * replacing a message can never race with the writer.
+	 */
+	private final class Lane {
+		private volatile Node head;
+		private final AtomicReference<Node> tail;
+
+		// Producers add to these (and subtract anything they drop) while only the
+		// consumer adds to the removed counters, so the writer never contends with
+		// senders on accounting
+		private final AtomicInteger addedCount=new AtomicInteger();
+		private final AtomicLong addedBytes=new AtomicLong();
+		private volatile int removedCount;
+		private volatile long removedBytes;
+
+		/**
+		 * Last node dropped by a producer.  Every node before it is known not to
+		 * be droppable so scans can start here.  Cleared once the consumer skips
+		 * past it so that it never pins consumed nodes.
+		 */
+		private final AtomicReference<Node> dropHint=new AtomicReference<Node>();
+
+		Lane() {
+			Node stub=new Node(null, null, 0);
+			stub.state=STATE_TAKEN;
+			head=stub;
+			tail=new AtomicReference<Node>(stub);
+		}
+
+		int getDepth() {
+			int removed=removedCount;
+			return addedCount.get() - removed;
+		}
+
+		long getBytes() {
+			long removed=removedBytes;
+			return addedBytes.get() - removed;
+		}
+
+		void account(Message message) {
+			addedBytes.addAndGet(message.getBytes());
+			addedCount.incrementAndGet();
+		}
+
+		void unaccount(Message message) {
+			addedBytes.addAndGet(-message.getBytes());
+			addedCount.decrementAndGet();
+		}
+
+		void enqueue(Node node) {
+			Node prev=tail.getAndSet(node);
+			// Between the swap and this store the node is invisible to the consumer.
+			// That is fine since the producer wakes the consumer after this.
+			prev.next=node;
+		}
+
+		/**
+		 * Swap the message of a waiting node.  Fails if the writer has already
+		 * claimed it or it was dropped.
+		 */
+		boolean replace(Node node, Message message, long deadline) {
+			if (!STATE_UPDATER.compareAndSet(node, STATE_QUEUED, STATE_REPLACING)) return false;
+			Message old=node.message;
+			node.message=message;
+			node.deadline=deadline;
+			addedBytes.addAndGet(message.getBytes() - old.getBytes());
+			node.state=STATE_QUEUED;
+			discarded(old);
+			return true;
+		}
+
+		/**
+		 * @param claim true to claim the head for transmission.  false to just look.
+		 * @return the message at the head of the lane or null
+		 */
+		Message peek(boolean claim) {
+			int spins=0;
+			for (;;) {
+				Node next=head.next;
+				if (next==null) return null;
+				int state=next.state;
+				if (state==STATE_TAKEN) return next.message;
+				if (state==STATE_REPLACING) {
+					// Momentary, unless the producer was descheduled mid swap
+					if (++spins>=SPIN_LIMIT) Thread.yield();
+					continue;
+				}
+				if (state==STATE_QUEUED) {
+					if (next.deadline!=0 && System.nanoTime()-next.deadline>0) {
+						if (discard(next)) checkLowWatermark();
+						continue;
+					}
+					if (!claim) return next.message;
+					if (STATE_UPDATER.compareAndSet(next, STATE_QUEUED, STATE_TAKEN)) {
+						if (next.key!=null) conflationIndex.remove(next.key, next);
+						return next.message;
+					}
+					continue;
+				}
+
+				// Dropped.  Skip over it.
+				next.state=STATE_SKIPPED;
+				if (dropHint.get()==next) dropHint.compareAndSet(next, null);
+				head=next;
+			}
+		}
+
+		boolean removeHead(Message message) {
+			Node next=head.next;
+			if (next==null || next.state!=STATE_TAKEN || next.message!=message) return false;
+			next.message=null;
+			head=next;
+
+			// Single consumer so these are not read-modify-write races
+			removedBytes=removedBytes + message.getBytes();
+			removedCount=removedCount + 1;
+			return true;
+		}
+
+		/**
+		 * Mark a waiting node as dropped and take it out of the accounting
+		 * @return false if it was no longer waiting
+		 */
+		private boolean discard(Node node) {
+			if (!STATE_UPDATER.compareAndSet(node, STATE_QUEUED, STATE_DROPPED)) return false;
+			Message message=node.message;
+			node.message=null;
+			if (node.key!=null) conflationIndex.remove(node.key, node);
+			unaccount(message);
+			discarded(message);
+			return true;
+		}
+
+		boolean dropOldestUserMessage() {
+			Node node=dropHint.get();
+			if (node==null || node.state==STATE_SKIPPED) node=head;
+			for (node=node.next; node!=null; node=node.next) {
+				Message message=node.message;
+				if (message==null || !message.isUserMessage() || node.state!=STATE_QUEUED) continue;
+				if (discard(node)) {
+					// If the consumer already skipped it, do not leave it as the hint
+					dropHint.set(node);
+					if (node.state==STATE_SKIPPED) dropHint.compareAndSet(node, null);
+					return true;
 				}
 			}
+			return false;
 		}
 	}
 }
@@ -0,0 +1,162 @@
+package net.rcode.wsclient;
+
+/**
+ * Sends the messages of a Publisher over a WebSocket.  Messages are requested in
+ * batches of up to prefetch, and more are only requested while the transmission
+ * queue is writable (below its high watermark).  Once it crosses the watermark the
+ * subscriber waits for EVENT_WRITABLE, so a fast publisher is held back by the
+ * network instead of filling the queue.
+ * <p>
+ * If the queue has no high watermark when the subscriber is created, watermarks of
+ * 16k and 64k bytes are set.  The overflow policy should be left at OVERFLOW_GROW
+ * since up to prefetch messages may arrive after the watermark was crossed.
+ * onComplete closes the WebSocket normally once everything queued has been sent
+ * and onError closes it with CLOSE_INTERNAL_ERROR, as does a message the queue
+ * refuses.  The subscription is cancelled when the WebSocket closes.
+ * </p>
+ * 
+ * @author stella
+ *
+ */
+public class MessageSubscriber implements Reactive.Subscriber<Message> {
+	public static final long DEFAULT_LOW_WATERMARK=16384;
+	public static final long DEFAULT_HIGH_WATERMARK=65536;
+	
+	private final WebSocket socket;
+	private final MessageQueue queue;
+	private final int prefetch;
+	private Reactive.Subscription subscription;
+	/**
+	 * Requested and not yet received
+	 */
+	private long outstanding;
+	private boolean done;
+	/**
+	 * Close code to send once the WebSocket is open or 0
+	 */
+	private int pendingClose;
+	
+	private final WebSocket.EventListener listener=new WebSocket.EventListener() {
+		public void handleEvent(WebSocket.Event event) {
+			if (event.getType()==WebSocket.EVENT_WRITABLE) {
+				replenish();
+			} else if (event.getType()==WebSocket.EVENT_READYSTATE) {
+				if (event.getReadyState()==WebSocket.OPEN) {
+					sendPendingClose();
+				} else if (event.getReadyState()>=WebSocket.CLOSING) {
+					cancel();
+					socket.removeListener(this);
+				}
+			}
+		}
+	};
+	
+	/**
+	 * @param socket
+	 * @param prefetch the most messages requested at a time
+	 */
+	public MessageSubscriber(WebSocket socket, int prefetch) {
+		if (prefetch<1) throw new IllegalArgumentException();
+		this.socket=socket;
+		this.queue=socket.getTransmissionQueue();
+		this.prefetch=prefetch;
+		if (queue.getHighWatermark()==Long.MAX_VALUE) {
+			queue.setWatermarks(DEFAULT_LOW_WATERMARK, DEFAULT_HIGH_WATERMARK);
+		}
+	}
+	
+	public void onSubscribe(Reactive.Subscription subscription) {
+		synchronized (this) {
+			if (this.subscription!=null || done) {
+				subscription.cancel();
+				return;
+			}
+			this.subscription=subscription;
+		}
+		socket.addListener(listener);
+		replenish();
+	}
+	
+	public void onNext(Message message) {
+		synchronized (this) {
+			if (done) return;
+			outstanding--;
+		}
+		try {
+			socket.send(message);
+		} catch (RuntimeException e) {
+			// Refused by the overflow policy.  onNext must not throw, so give up on
+			// the publisher and close with an error instead.
+			Reactive.Subscription localSubscription;
+			synchronized (this) {
+				localSubscription=subscription;
+			}
+			finish(WebSocket.CLOSE_INTERNAL_ERROR);
+			localSubscription.cancel();
+			return;
+		}
+		replenish();
+	}
+	
+	public void onError(Throwable throwable) {
+		finish(WebSocket.CLOSE_INTERNAL_ERROR);
+	}
+	
+	public void onComplete() {
+		finish(WebSocket.CLOSE_NORMAL);
+	}
+	
+	/**
+	 * Request up to prefetch messages once half of the previous request has
+	 * arrived, provided the queue can take them
+	 */
+	private void replenish() {
+		long n;
+		Reactive.Subscription localSubscription;
+		synchronized (this) {
+			if (done || subscription==null) return;
+			if (outstanding>prefetch/2) return;
+			// EVENT_WRITABLE calls this again once the queue has drained
+			if (!queue.isWritable()) return;
+			n=prefetch-outstanding;
+			outstanding=prefetch;
+			localSubscription=subscription;
+		}
+		localSubscription.request(n);
+	}
+	
+	private void cancel() {
+		Reactive.Subscription localSubscription;
+		synchronized (this) {
+			if (done) return;
+			done=true;
+			localSubscription=subscription;
+		}
+		socket.removeListener(listener);
+		if (localSubscription!=null) localSubscription.cancel();
+	}
+	
+	/**
+	 * Close the WebSocket after what has been queued.  A WebSocket that is still
+	 * connecting is closed once it opens since closing it now would abort it.
+	 */
+	private void finish(int closeCode) {
+		synchronized (this) {
+			if (done) return;
+			done=true;
+			pendingClose=closeCode;
+		}
+		if (socket.getReadyState()!=WebSocket.CONNECTING) sendPendingClose();
+	}
+	
+	private void sendPendingClose() {
+		int closeCode;
+		synchronized (this) {
+			closeCode=pendingClose;
+			pendingClose=0;
+		}
+		if (closeCode==0) return;
+		socket.removeListener(listener);
+		socket.close(closeCode, null);
+	}
+}
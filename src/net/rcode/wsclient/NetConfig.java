@@ -1,6 +1,12 @@
 package net.rcode.wsclient;
 
+import java.lang.reflect.Method;
+import java.security.GeneralSecurityException;
+import java.util.concurrent.ThreadFactory;
+import java.util.zip.Deflater;
+
 import javax.net.SocketFactory;
+import javax.net.ssl.SSLContext;
 import javax.net.ssl.SSLSocketFactory;
 
 /**
@@ -9,9 +15,44 @@ import javax.net.ssl.SSLSocketFactory;
  *
  */
 public class NetConfig {
+	/**
+	 * Factory for virtual threads or null if the JVM has none (before Java 21).
+	 * Looked up reflectively so that the library still runs on older JVMs and Android.
+	 */
+	private static final ThreadFactory VIRTUAL_THREAD_FACTORY=createVirtualThreadFactory();
+	
 	private SocketFactory plainSocketFactory;
 	private SocketFactory secureSocketFactory;
+	private int writeBatchMessages=64;
+	private long writeBatchBytes=16384;
+	private int readBatchMessages=64;
+	private long readBatchBytes=65536;
+	private int maxFrameSize=Integer.MAX_VALUE;
+	private BufferPool bufferPool;
+	private long streamingThreshold=Long.MAX_VALUE;
+	private int maxMessageSize=Integer.MAX_VALUE;
+	private int fragmentSize;
+	private boolean perMessageDeflate;
+	private int compressionThreshold=128;
+	private int compressionLevel=Deflater.DEFAULT_COMPRESSION;
+	private int compressionWindowBits=15;
+	private boolean compressionContextTakeover=true;
+	private SelectorEngine selectorEngine;
+	private SSLContext sslContext;
+	private ThreadFactory threadFactory;
+	private long closeTimeout=10000;
+	private boolean reconnect;
+	private long reconnectMinDelay=500;
+	private long reconnectMaxDelay=30000;
+	private int reconnectMaxAttempts;
+	private boolean reconnectUserMessagesOnly=true;
 	
+	/**
+	 * Set the factory for ws:// connections.  Sockets that come from a SocketChannel
+	 * let unmasked file payloads be written with FileChannel.transferTo, see
+	 * Message(int, FileChannel, long, int).
+	 * @param plainSocketFactory
+	 */
 	public void setPlainSocketFactory(SocketFactory plainSocketFactory) {
 		this.plainSocketFactory = plainSocketFactory;
 	}
@@ -33,4 +74,404 @@ public class NetConfig {
 		if (secureSocketFactory==null) return SSLSocketFactory.getDefault();
 		return secureSocketFactory;
 	}
+	
+	/**
+	 * @return the SSLContext a SelectorEngine creates wss connections with.  The
+	 * value previously specified or a default TLS context.
+	 */
+	public SSLContext getSslContext() throws GeneralSecurityException {
+		if (sslContext==null) {
+			SSLContext context=SSLContext.getInstance("TLS");
+			context.init(null, null, null);
+			sslContext=context;
+		}
+		return sslContext;
+	}
+	public void setSslContext(SSLContext sslContext) {
+		this.sslContext = sslContext;
+	}
+	
+	/**
+	 * @return the engine that runs connections or null if each connection gets
+	 * its own reader and writer threads
+	 */
+	public SelectorEngine getSelectorEngine() {
+		return selectorEngine;
+	}
+	/**
+	 * Run connections on the event loops of a SelectorEngine instead of a reader
+	 * and a writer thread each.  One engine is typically shared by many
+	 * connections.  Listeners are then called on an event loop thread and must not
+	 * block, and inbound messages are never streamed.
+	 * @param selectorEngine
+	 */
+	public void setSelectorEngine(SelectorEngine selectorEngine) {
+		this.selectorEngine = selectorEngine;
+	}
+	
+	/**
+	 * @return the factory reader and writer threads are created with or null for
+	 * a plain platform thread each
+	 */
+	public ThreadFactory getThreadFactory() {
+		return threadFactory;
+	}
+	/**
+	 * Create the reader and writer threads of each connection with this factory,
+	 * for example to name them, set their priority or put them in a ThreadGroup.
+	 * The threads are interrupted by WebSocket.abort() so the factory
+	 * must return a new, unstarted thread every time.  Does not apply to a
+	 * SelectorEngine.
+	 * @param threadFactory the factory or null for the default
+	 */
+	public void setThreadFactory(ThreadFactory threadFactory) {
+		this.threadFactory = threadFactory;
+	}
+	
+	/**
+	 * @return milliseconds a close handshake may take before the connection is
+	 * aborted or 0 for no limit
+	 */
+	public long getCloseTimeout() {
+		return closeTimeout;
+	}
+	/**
+	 * Limit how long a WebSocket stays CLOSING.  Once the limit passes without the
+	 * peer finishing the close handshake the connection is aborted, so that an
+	 * unresponsive server can not hold on to the socket and its threads.
+	 * @param closeTimeout milliseconds or 0 to wait for the peer indefinitely
+	 */
+	public void setCloseTimeout(long closeTimeout) {
+		if (closeTimeout<0) throw new IllegalArgumentException();
+		this.closeTimeout = closeTimeout;
+	}
+	
+	public boolean isReconnect() {
+		return reconnect;
+	}
+	/**
+	 * Connect again when the connection fails or the server closes it.  Only a
+	 * close or abort by the application ends a reconnecting WebSocket (or running
+	 * out of attempts).  Messages still queued are sent on the new connection.
+	 * @param reconnect
+	 */
+	public void setReconnect(boolean reconnect) {
+		this.reconnect = reconnect;
+	}
+	
+	/**
+	 * @return milliseconds before the first reconnect attempt
+	 */
+	public long getReconnectMinDelay() {
+		return reconnectMinDelay;
+	}
+	/**
+	 * Set the delay before the first reconnect attempt.  It doubles with every
+	 * failed attempt, up to the max delay.  Each delay is randomly shortened by
+	 * up to half so that clients that lost their server together do not all
+	 * come back at once.
+	 * @param reconnectMinDelay milliseconds
+	 */
+	public void setReconnectMinDelay(long reconnectMinDelay) {
+		if (reconnectMinDelay<1) throw new IllegalArgumentException();
+		this.reconnectMinDelay = reconnectMinDelay;
+	}
+	
+	public long getReconnectMaxDelay() {
+		return reconnectMaxDelay;
+	}
+	/**
+	 * @param reconnectMaxDelay the longest delay between reconnect attempts in
+	 * milliseconds
+	 */
+	public void setReconnectMaxDelay(long reconnectMaxDelay) {
+		if (reconnectMaxDelay<1) throw new IllegalArgumentException();
+		this.reconnectMaxDelay = reconnectMaxDelay;
+	}
+	
+	/**
+	 * @return attempts made in a row before giving up or 0 for no limit
+	 */
+	public int getReconnectMaxAttempts() {
+		return reconnectMaxAttempts;
+	}
+	/**
+	 * @param reconnectMaxAttempts reconnect attempts made in a row before the
+	 * WebSocket is CLOSED for good or 0 for no limit.  The count starts over
+	 * every time a connection opens.
+	 */
+	public void setReconnectMaxAttempts(int reconnectMaxAttempts) {
+		if (reconnectMaxAttempts<0) throw new IllegalArgumentException();
+		this.reconnectMaxAttempts = reconnectMaxAttempts;
+	}
+	
+	public boolean isReconnectUserMessagesOnly() {
+		return reconnectUserMessagesOnly;
+	}
+	/**
+	 * Choose what is kept on the transmission queue across a reconnect.  By
+	 * default pings, pongs and closes queued for the lost connection are dropped.
+	 * @param reconnectUserMessagesOnly false to keep everything
+	 */
+	public void setReconnectUserMessagesOnly(boolean reconnectUserMessagesOnly) {
+		this.reconnectUserMessagesOnly = reconnectUserMessagesOnly;
+	}
+	
+	/**
+	 * @return true if the JVM supports virtual threads (Java 21 and later)
+	 */
+	public static boolean isVirtualThreadsSupported() {
+		return VIRTUAL_THREAD_FACTORY!=null;
+	}
+	
+	public boolean isVirtualThreads() {
+		return threadFactory!=null && threadFactory==VIRTUAL_THREAD_FACTORY;
+	}
+	/**
+	 * Run the reader and writer of each connection on virtual threads, which lets
+	 * the blocking model scale to far more connections than platform threads
+	 * would.  On a JVM without virtual threads this leaves platform threads in
+	 * place, see isVirtualThreadsSupported().
+	 * @param virtualThreads
+	 */
+	public void setVirtualThreads(boolean virtualThreads) {
+		if (virtualThreads) {
+			if (VIRTUAL_THREAD_FACTORY!=null) threadFactory=VIRTUAL_THREAD_FACTORY;
+		} else if (isVirtualThreads()) {
+			threadFactory=null;
+		}
+	}
+	
+	/**
+	 * Equivalent to Thread.ofVirtual().name("WebSocket ", 0).factory()
+	 */
+	private static ThreadFactory createVirtualThreadFactory() {
+		try {
+			Class<?> builderClass=Class.forName("java.lang.Thread$Builder");
+			Object builder=Thread.class.getMethod("ofVirtual").invoke(null);
+			builder=builderClass.getMethod("name", String.class, Long.TYPE).invoke(builder, "WebSocket ", 0L);
+			Method factory=builderClass.getMethod("factory");
+			return (ThreadFactory)factory.invoke(builder);
+		} catch (Exception e) {
+			// Not available on this JVM (or still a preview feature)
+			return null;
+		}
+	}
+	
+	/**
+	 * @return the maximum number of messages the writer will encode before flushing
+	 * the socket
+	 */
+	public int getWriteBatchMessages() {
+		return writeBatchMessages;
+	}
+	/**
+	 * Set the maximum number of queued messages that are coalesced into a single
+	 * flush.  A value of 1 flushes after every message.
+	 * @param writeBatchMessages
+	 */
+	public void setWriteBatchMessages(int writeBatchMessages) {
+		if (writeBatchMessages<1) throw new IllegalArgumentException();
+		this.writeBatchMessages = writeBatchMessages;
+	}
+	
+	/**
+	 * @return the approximate number of payload bytes the writer will encode before
+	 * flushing the socket
+	 */
+	public long getWriteBatchBytes() {
+		return writeBatchBytes;
+	}
+	/**
+	 * Set the approximate number of payload bytes that are coalesced into a single
+	 * flush.  The message that crosses the limit is still written in full.
+	 * @param writeBatchBytes
+	 */
+	public void setWriteBatchBytes(long writeBatchBytes) {
+		if (writeBatchBytes<1) throw new IllegalArgumentException();
+		this.writeBatchBytes = writeBatchBytes;
+	}
+	
+	/**
+	 * @return the maximum number of messages delivered to a BatchListener at once
+	 */
+	public int getReadBatchMessages() {
+		return readBatchMessages;
+	}
+	/**
+	 * Set the maximum number of already buffered messages that are read into one
+	 * batch for the BatchListeners of a WebSocket.
+	 * @param readBatchMessages
+	 */
+	public void setReadBatchMessages(int readBatchMessages) {
+		if (readBatchMessages<1) throw new IllegalArgumentException();
+		this.readBatchMessages = readBatchMessages;
+	}
+	
+	/**
+	 * @return the approximate number of payload bytes delivered to a
+	 * BatchListener at once
+	 */
+	public long getReadBatchBytes() {
+		return readBatchBytes;
+	}
+	/**
+	 * Set the approximate number of payload bytes that are read into one batch.
+	 * The message that crosses the limit still goes into the batch.
+	 * @param readBatchBytes
+	 */
+	public void setReadBatchBytes(long readBatchBytes) {
+		if (readBatchBytes<1) throw new IllegalArgumentException();
+		this.readBatchBytes = readBatchBytes;
+	}
+	
+	/**
+	 * @return the largest inbound frame payload that will be accepted
+	 */
+	public int getMaxFrameSize() {
+		return maxFrameSize;
+	}
+	/**
+	 * Set the largest inbound frame payload that will be accepted.  Larger frames
+	 * are treated as a protocol error.
+	 * @param maxFrameSize
+	 */
+	public void setMaxFrameSize(int maxFrameSize) {
+		if (maxFrameSize<0) throw new IllegalArgumentException();
+		this.maxFrameSize = maxFrameSize;
+	}
+	
+	/**
+	 * @return the pool received payloads are taken from or null if pooling is off
+	 */
+	public BufferPool getBufferPool() {
+		return bufferPool;
+	}
+	/**
+	 * Opt in to pooled receive buffers.  When set, received text and binary messages
+	 * hold buffers from this pool and listeners must call Message.release() once done
+	 * with them.  A pool may be shared between connections.
+	 * @param bufferPool
+	 */
+	public void setBufferPool(BufferPool bufferPool) {
+		this.bufferPool = bufferPool;
+	}
+	
+	/**
+	 * @return payload size above which inbound messages are streamed
+	 */
+	public long getStreamingThreshold() {
+		return streamingThreshold;
+	}
+	/**
+	 * Inbound messages with a declared payload larger than this are not buffered.
+	 * They are delivered as an EVENT_MESSAGE_STREAM carrying a MessageInputStream
+	 * that reads straight off of the socket.  The maximum frame size does not apply
+	 * to them.  Off by default.
+	 * <p>
+	 * AndroidWebSocket delivers these events on the reader thread, not the Looper.
+	 * @param streamingThreshold
+	 */
+	public void setStreamingThreshold(long streamingThreshold) {
+		if (streamingThreshold<0) throw new IllegalArgumentException();
+		this.streamingThreshold = streamingThreshold;
+	}
+	
+	/**
+	 * @return the largest inbound message that will be reassembled from fragments
+	 */
+	public int getMaxMessageSize() {
+		return maxMessageSize;
+	}
+	/**
+	 * Set the largest total payload that will be accepted for a message that arrives
+	 * in fragments.  Reassembly stops with a protocol error once it is exceeded.
+	 * @param maxMessageSize
+	 */
+	public void setMaxMessageSize(int maxMessageSize) {
+		if (maxMessageSize<0) throw new IllegalArgumentException();
+		this.maxMessageSize = maxMessageSize;
+	}
+	
+	/**
+	 * @return the payload size outbound messages are split at or 0 if they are not
+	 */
+	public int getFragmentSize() {
+		return fragmentSize;
+	}
+	/**
+	 * Split outbound user messages larger than this into fragments, for protocols
+	 * that support it.  Control frames queued while a large message is being written
+	 * go out between its fragments instead of waiting behind it.  0 (the default)
+	 * sends every message as a single frame.
+	 * @param fragmentSize
+	 */
+	public void setFragmentSize(int fragmentSize) {
+		if (fragmentSize<0) throw new IllegalArgumentException();
+		this.fragmentSize = fragmentSize;
+	}
+	
+	public boolean isPerMessageDeflate() {
+		return perMessageDeflate;
+	}
+	/**
+	 * Offer the permessage-deflate extension in the handshake of protocols that
+	 * support it.  Off by default.
+	 * @param perMessageDeflate
+	 */
+	public void setPerMessageDeflate(boolean perMessageDeflate) {
+		this.perMessageDeflate = perMessageDeflate;
+	}
+	
+	public int getCompressionThreshold() {
+		return compressionThreshold;
+	}
+	/**
+	 * Outbound messages smaller than this many bytes are sent uncompressed since
+	 * deflating them costs more CPU than it saves on the wire
+	 * @param compressionThreshold
+	 */
+	public void setCompressionThreshold(int compressionThreshold) {
+		if (compressionThreshold<0) throw new IllegalArgumentException();
+		this.compressionThreshold = compressionThreshold;
+	}
+	
+	public int getCompressionLevel() {
+		return compressionLevel;
+	}
+	/**
+	 * @param compressionLevel a Deflater level (0-9 or Deflater.DEFAULT_COMPRESSION)
+	 */
+	public void setCompressionLevel(int compressionLevel) {
+		if ((compressionLevel<0 || compressionLevel>9) && compressionLevel!=Deflater.DEFAULT_COMPRESSION)
+			throw new IllegalArgumentException();
+		this.compressionLevel = compressionLevel;
+	}
+	
+	public int getCompressionWindowBits() {
+		return compressionWindowBits;
+	}
+	/**
+	 * Ask the server to compress with a smaller window (8 to 15 bits), trading ratio
+	 * for memory on both ends.  The client itself always deflates with a 15 bit
+	 * window since that is all Deflater supports.
+	 * @param compressionWindowBits
+	 */
+	public void setCompressionWindowBits(int compressionWindowBits) {
+		if (compressionWindowBits<8 || compressionWindowBits>15) throw new IllegalArgumentException();
+		this.compressionWindowBits = compressionWindowBits;
+	}
+	
+	public boolean isCompressionContextTakeover() {
+		return compressionContextTakeover;
+	}
+	/**
+	 * With context takeover (the default) each message is compressed against the
+	 * ones before it, which suits repetitive payloads.  Without it both ends reset
+	 * after every message and hold less state.
+	 * @param compressionContextTakeover
+	 */
+	public void setCompressionContextTakeover(boolean compressionContextTakeover) {
+		this.compressionContextTakeover = compressionContextTakeover;
+	}
 }
@@ -0,0 +1,340 @@
+package net.rcode.wsclient;
+
+import java.io.IOException;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * State of the permessage-deflate extension (RFC 7692) on one connection.  The
+ * Deflater is only used by the writer thread and the Inflater only by the reader,
+ * and both live as long as the connection so that their history (context takeover)
+ * and buffers are reused between messages.
+ * <p>
+ * The counters are written by one thread each and may be read from any.
+ * </p>
+ *
+ * @author stella
+ *
+ */
+public class PerMessageDeflate {
+	public static final String EXTENSION_NAME="permessage-deflate";
+	
+	/**
+	 * The deflate block trailer that a sync flush ends with.  It is left off of
+	 * the wire and put back before inflating.
+	 */
+	private static final byte[] TRAILER={ 0x00, 0x00, (byte)0xff, (byte)0xff };
+	
+	/**
+	 * Deflater.SYNC_FLUSH and the deflate method taking it are Java 7 (Android API
+	 * 19).  Without them the extension is never offered.
+	 */
+	public static final boolean SUPPORTED;
+	static {
+		boolean supported;
+		try {
+			Deflater.class.getMethod("deflate", byte[].class, int.class, int.class, int.class);
+			supported=true;
+		} catch (NoSuchMethodException e) {
+			supported=false;
+		}
+		SUPPORTED=supported;
+	}
+	
+	private final Deflater deflater;
+	private final Inflater inflater;
+	private final boolean compressOutbound;
+	private final boolean resetDeflater;
+	private final boolean resetInflater;
+	private final int threshold;
+	private static final int INITIAL_BUFFER_SIZE=1024;
+	/**
+	 * Buffers grown beyond this are dropped after use so that one large message
+	 * does not pin memory for the life of the connection
+	 */
+	private static final int RETAINED_BUFFER_SIZE=65536;
+	private byte[] deflateBuffer=new byte[INITIAL_BUFFER_SIZE];
+	private byte[] inflateInput=new byte[INITIAL_BUFFER_SIZE];
+	
+	// -- counters
+	private volatile long messagesDeflated;
+	private volatile long bytesBeforeDeflate;
+	private volatile long bytesAfterDeflate;
+	private volatile long deflateNanos;
+	private volatile long messagesInflated;
+	private volatile long bytesBeforeInflate;
+	private volatile long bytesAfterInflate;
+	private volatile long inflateNanos;
+	
+	/**
+	 * @param config
+	 * @param clientNoContextTakeover negotiated: reset the Deflater after each message
+	 * @param serverNoContextTakeover negotiated: reset the Inflater after each message
+	 * @param compressOutbound false if the server limited our window below what
+	 * Deflater can do.  Messages are then sent uncompressed.
+	 */
+	PerMessageDeflate(NetConfig config, boolean clientNoContextTakeover,
+			boolean serverNoContextTakeover, boolean compressOutbound) {
+		this.deflater=new Deflater(config.getCompressionLevel(), true);
+		this.inflater=new Inflater(true);
+		this.resetDeflater=clientNoContextTakeover;
+		this.resetInflater=serverNoContextTakeover;
+		this.compressOutbound=compressOutbound;
+		this.threshold=config.getCompressionThreshold();
+	}
+	
+	/**
+	 * @return the Sec-WebSocket-Extensions offer for the given configuration
+	 */
+	static String buildOffer(NetConfig config) {
+		StringBuilder offer=new StringBuilder(EXTENSION_NAME);
+		if (config.getCompressionWindowBits()<15) {
+			offer.append("; server_max_window_bits=").append(config.getCompressionWindowBits());
+		}
+		if (!config.isCompressionContextTakeover()) {
+			offer.append("; client_no_context_takeover; server_no_context_takeover");
+		}
+		return offer.toString();
+	}
+	
+	/**
+	 * Parse the extensions the server accepted
+	 * @param config
+	 * @param header value of the Sec-WebSocket-Extensions response header or null
+	 * @return the extension state or null if the server did not accept it
+	 * @throws IOException if the server answered with something that was not offered
+	 */
+	static PerMessageDeflate negotiate(NetConfig config, String header) throws IOException {
+		if (header==null) return null;
+		
+		PerMessageDeflate ret=null;
+		for (String extension: header.split(",")) {
+			String[] params=extension.split(";");
+			String name=params[0].trim();
+			if (name.length()==0) continue;
+			if (!name.equalsIgnoreCase(EXTENSION_NAME) || ret!=null) {
+				throw new IOException("Server accepted an extension that was not offered: " + name);
+			}
+			
+			boolean clientNoContextTakeover=!config.isCompressionContextTakeover();
+			boolean serverNoContextTakeover=false;
+			boolean compressOutbound=true;
+			for (int i=1; i<params.length; i++) {
+				String param=params[i].trim();
+				String value=null;
+				int equalsPos=param.indexOf('=');
+				if (equalsPos>=0) {
+					value=param.substring(equalsPos+1).trim();
+					if (value.startsWith("\"") && value.endsWith("\"") && value.length()>=2) {
+						value=value.substring(1, value.length()-1);
+					}
+					param=param.substring(0, equalsPos).trim();
+				}
+				
+				if (param.equalsIgnoreCase("client_no_context_takeover")) {
+					clientNoContextTakeover=true;
+				} else if (param.equalsIgnoreCase("server_no_context_takeover")) {
+					serverNoContextTakeover=true;
+				} else if (param.equalsIgnoreCase("server_max_window_bits")) {
+					// Any window up to 15 bits inflates fine
+					parseWindowBits(value);
+				} else if (param.equalsIgnoreCase("client_max_window_bits")) {
+					// Deflater always uses a 15 bit window.  Honour a smaller limit by
+					// not compressing, which the extension allows per message.
+					if (value!=null && parseWindowBits(value)<15) compressOutbound=false;
+				} else {
+					throw new IOException("Unknown permessage-deflate parameter: " + param);
+				}
+			}
+			ret=new PerMessageDeflate(config, clientNoContextTakeover, serverNoContextTakeover, compressOutbound);
+		}
+		return ret;
+	}
+	
+	private static int parseWindowBits(String value) throws IOException {
+		try {
+			int bits=Integer.parseInt(value);
+			if (bits>=8 && bits<=15) return bits;
+		} catch (NumberFormatException e) {
+			// Fall through
+		}
+		throw new IOException("Bad window bits in permessage-deflate response: " + value);
+	}
+	
+	/**
+	 * @return true if a payload of this size should be sent compressed
+	 */
+	boolean shouldCompress(int length) {
+		return compressOutbound && length>=threshold;
+	}
+	
+	/**
+	 * Compress a message payload.  Writer thread only.
+	 * @return a message holding the compressed payload.  It shares a buffer with
+	 * the next call so must be written before then.
+	 */
+	Message deflate(Message message) {
+		long start=System.nanoTime();
+		int length=message.getBytes();
+		deflater.setInput(message.getMessageBuffer(), 0, length);
+		
+		int count=0;
+		for (;;) {
+			int space=deflateBuffer.length-count;
+			int r=deflater.deflate(deflateBuffer, count, space, Deflater.SYNC_FLUSH);
+			count+=r;
+			// A full buffer means there may be more
+			if (r<space) break;
+			byte[] grown=new byte[deflateBuffer.length*2];
+			System.arraycopy(deflateBuffer, 0, grown, 0, count);
+			deflateBuffer=grown;
+		}
+		if (resetDeflater) deflater.reset();
+		
+		// Drop the trailer of the sync flush
+		if (count>=4 && endsWithTrailer(deflateBuffer, count)) count-=4;
+		Message ret=new Message(message.getOpcode(), deflateBuffer, count, null);
+		if (deflateBuffer.length>RETAINED_BUFFER_SIZE) deflateBuffer=new byte[INITIAL_BUFFER_SIZE];
+		
+		messagesDeflated++;
+		bytesBeforeDeflate+=length;
+		bytesAfterDeflate+=count;
+		deflateNanos+=System.nanoTime()-start;
+		return ret;
+	}
+	
+	private static boolean endsWithTrailer(byte[] buffer, int count) {
+		for (int i=0; i<4; i++) {
+			if (buffer[count-4+i]!=TRAILER[i]) return false;
+		}
+		return true;
+	}
+	
+	/**
+	 * Decompress a received payload.  Reader thread only.
+	 * @param opcode
+	 * @param payload
+	 * @param length
+	 * @param maxLength the largest decompressed size allowed
+	 * @return the decompressed message
+	 * @throws IOException if the data is corrupt or too large
+	 */
+	Message inflate(int opcode, byte[] payload, int length, int maxLength) throws IOException {
+		long start=System.nanoTime();
+		int inputLength=length + TRAILER.length;
+		if (inflateInput.length<inputLength) inflateInput=new byte[Math.max(inputLength, inflateInput.length*2)];
+		System.arraycopy(payload, 0, inflateInput, 0, length);
+		System.arraycopy(TRAILER, 0, inflateInput, length, TRAILER.length);
+		inflater.setInput(inflateInput, 0, inputLength);
+		
+		byte[] output=new byte[Math.min(Math.max(length*4, 64), maxLength)];
+		int count=0;
+		try {
+			for (;;) {
+				int space=output.length-count;
+				int r=inflater.inflate(output, count, space);
+				count+=r;
+				if (r<space) {
+					// Everything available has been inflated
+					if (inflater.needsDictionary()) throw new IOException("Compressed message needs a dictionary");
+					break;
+				}
+				
+				// Output is full so there may be more
+				if (output.length>=maxLength) {
+					if (inflater.inflate(new byte[1])>0) throw new IOException("Message exceeds maximum size of " + maxLength);
+					break;
+				}
+				int capacity=(int)Math.min((long)output.length*2, maxLength);
+				byte[] grown=new byte[capacity];
+				System.arraycopy(output, 0, grown, 0, count);
+				output=grown;
+			}
+		} catch (DataFormatException e) {
+			throw new IOException("Corrupt compressed message: " + e.getMessage());
+		}
+		if (resetInflater || inflater.finished()) inflater.reset();
+		if (inflateInput.length>RETAINED_BUFFER_SIZE) inflateInput=new byte[INITIAL_BUFFER_SIZE];
+		
+		messagesInflated++;
+		bytesBeforeInflate+=length;
+		bytesAfterInflate+=count;
+		inflateNanos+=System.nanoTime()-start;
+		return new Message(opcode, output, count, null);
+	}
+	
+	/**
+	 * Release the native zlib memory.  Called when the connection ends.
+	 */
+	void end() {
+		deflater.end();
+		inflater.end();
+	}
+	
+	/**
+	 * @return false if the server limited the client window so that messages are
+	 * sent uncompressed
+	 */
+	public boolean isCompressingOutbound() {
+		return compressOutbound;
+	}
+	
+	public long getMessagesDeflated() {
+		return messagesDeflated;
+	}
+	
+	public long getBytesBeforeDeflate() {
+		return bytesBeforeDeflate;
+	}
+	
+	public long getBytesAfterDeflate() {
+		return bytesAfterDeflate;
+	}
+	
+	/**
+	 * @return nanoseconds the writer has spent compressing
+	 */
+	public long getDeflateNanos() {
+		return deflateNanos;
+	}
+	
+	public long getMessagesInflated() {
+		return messagesInflated;
+	}
+	
+	public long getBytesBeforeInflate() {
+		return bytesBeforeInflate;
+	}
+	
+	public long getBytesAfterInflate() {
+		return bytesAfterInflate;
+	}
+	
+	/**
+	 * @return nanoseconds the reader has spent decompressing
+	 */
+	public long getInflateNanos() {
+		return inflateNanos;
+	}
+	
+	/**
+	 * @return compressed size over original size of everything sent compressed so
+	 * far (lower is better) or 1 if nothing has been
+	 */
+	public double getOutboundRatio() {
+		long before=bytesBeforeDeflate;
+		if (before==0) return 1;
+		return (double)bytesAfterDeflate / before;
+	}
+	
+	/**
+	 * @return compressed size over inflated size of everything received compressed
+	 * so far or 1 if nothing has been
+	 */
+	public double getInboundRatio() {
+		long after=bytesAfterInflate;
+		if (after==0) return 1;
+		return (double)bytesBeforeInflate / after;
+	}
+}
@@ -0,0 +1,16 @@
+package net.rcode.wsclient;
+
+/**
+ * Thrown when a message cannot be queued for transmission because the queue is
+ * above its high watermark and the overflow policy refuses it.
+ * 
+ * @author stella
+ *
+ */
+public class QueueFullException extends IllegalStateException {
+	private static final long serialVersionUID=1L;
+
+	public QueueFullException(String message) {
+		super(message);
+	}
+}
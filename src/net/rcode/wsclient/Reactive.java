@@ -0,0 +1,31 @@
+package net.rcode.wsclient;
+
+/**
+ * The Reactive Streams interfaces, declared here since the library targets JVMs
+ * older than Java 9.  They have the same methods and contracts as the nested
+ * interfaces of java.util.concurrent.Flow (and org.reactivestreams), so adapting
+ * a MessagePublisher or MessageSubscriber to either takes a few lines.
+ * 
+ * @author stella
+ *
+ */
+public final class Reactive {
+	private Reactive() {
+	}
+	
+	public static interface Publisher<T> {
+		public void subscribe(Subscriber<? super T> subscriber);
+	}
+	
+	public static interface Subscriber<T> {
+		public void onSubscribe(Subscription subscription);
+		public void onNext(T item);
+		public void onError(Throwable throwable);
+		public void onComplete();
+	}
+	
+	public static interface Subscription {
+		public void request(long n);
+		public void cancel();
+	}
+}
@@ -0,0 +1,619 @@
+package net.rcode.wsclient;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLEngineResult;
+import javax.net.ssl.SSLException;
+import javax.net.ssl.SSLSession;
+
+/**
+ * The state of one WebSocket on a SelectorEngine event loop.  Apart from abort and
+ * messageArrived, everything here runs on the loop thread.
+ * <p>
+ * Received bytes are collected in memory and the WireProtocol only reads them once
+ * its scanHandshake or scanFrames says they are complete, so it never has to wait
+ * for input partway through.  Outgoing messages are encoded by the same code as
+ * the threaded writer into a buffer that is written as the channel accepts it.
+ * </p>
+ *
+ * @author stella
+ *
+ */
+class SelectorConnection implements MessageQueue.ArrivalListener {
+	private static final int PHASE_CONNECTING=0;
+	private static final int PHASE_HANDSHAKE=1;
+	private static final int PHASE_OPEN=2;
+	private static final int PHASE_CLOSED=3;
+	
+	private static final int INITIAL_BUFFER_SIZE=2048;
+	/**
+	 * Buffers grown beyond this are replaced once empty
+	 */
+	private static final int RETAINED_BUFFER_SIZE=65536;
+	/**
+	 * Stop taking messages off of the queue while this much is waiting for the
+	 * channel
+	 */
+	private static final int OUTPUT_HIGH_WATER=65536;
+	/**
+	 * Reads per readiness so that one busy connection does not hold up the loop
+	 */
+	private static final int MAX_READS=16;
+	
+	/**
+	 * Thrown by the input stream when the protocol reads past what has been
+	 * received.  Preallocated since it is routine.
+	 */
+	private static final class WouldBlockException extends IOException {
+		private static final long serialVersionUID=1L;
+		
+		@Override
+		public synchronized Throwable fillInStackTrace() {
+			return this;
+		}
+	}
+	private static final WouldBlockException WOULD_BLOCK=new WouldBlockException();
+	
+	private final SelectorEngine.EventLoop loop;
+	private final WebSocket socket;
+	private final WireProtocol wireProtocol;
+	private final InboundSink inboundSink;
+	private SocketChannel channel;
+	private SelectionKey key;
+	private SSLEngine sslEngine;
+	private int phase=PHASE_CONNECTING;
+	private Object handshakeState;
+	private boolean outputShutdown;
+	private boolean closed;
+	private boolean finished;
+	/**
+	 * Set while reading has stopped because the inbound sink is full
+	 */
+	private boolean readPaused;
+	private final AtomicBoolean writeScheduled=new AtomicBoolean();
+	private final Runnable writeTask=new Runnable() {
+		public void run() {
+			writeScheduled.set(false);
+			write();
+		}
+	};
+	
+	private final Runnable resumeTask=new Runnable() {
+		public void run() {
+			resumeReading();
+		}
+	};
+	
+	// -- received plain text (position is the end of the data) and the stream
+	// the protocol reads it through
+	private ByteBuffer inbound=ByteBuffer.allocate(INITIAL_BUFFER_SIZE);
+	private final BufferInput input=new BufferInput();
+	private final DataInputStream dataIn=new DataInputStream(input);
+	
+	// -- plain text waiting for the channel (or the SSLEngine)
+	private final BufferOutput output=new BufferOutput();
+	private final DataOutputStream dataOut=new FrameOutputStream(output, 1500);
+	
+	// -- encrypted bytes on their way in and out.  Secure connections only.
+	private ByteBuffer netIn;
+	private ByteBuffer netOut;
+	
+	SelectorConnection(SelectorEngine.EventLoop loop, WebSocket socket) {
+		this.loop=loop;
+		this.socket=socket;
+		this.wireProtocol=socket.getWireProtocol();
+		this.inboundSink=socket.getInboundSink();
+		if (inboundSink!=null) {
+			inboundSink.setSpaceListener(new Runnable() {
+				public void run() {
+					SelectorConnection.this.loop.execute(resumeTask);
+				}
+			});
+		}
+	}
+	
+	/**
+	 * Resolve the host on the calling thread, since a slow DNS lookup on the loop
+	 * would hold up every connection on it, and start connecting on the loop
+	 */
+	void start() {
+		InetSocketAddress resolved=null;
+		Throwable failure=null;
+		try {
+			socket.resolve();
+			resolved=new InetSocketAddress(socket.getHostName(), socket.getPort());
+		} catch (Throwable t) {
+			failure=t;
+		}
+		
+		final InetSocketAddress address=resolved;
+		final Throwable resolveFailure=failure;
+		loop.execute(new Runnable() {
+			public void run() {
+				connect(address, resolveFailure);
+			}
+		});
+	}
+	
+	/**
+	 * Open the channel and start connecting.  First task on the loop.
+	 * @param address
+	 * @param resolveFailure why the address could not be worked out or null
+	 */
+	private void connect(InetSocketAddress address, Throwable resolveFailure) {
+		if (closed) return;
+		try {
+			socket.setReadyState(WebSocket.CONNECTING);
+			if (resolveFailure!=null) throw resolveFailure;
+			channel=SocketChannel.open();
+			channel.configureBlocking(false);
+			key=channel.register(loop.selector, 0, this);
+			loop.connectionCount++;
+			if (channel.connect(address)) {
+				connected();
+			} else {
+				key.interestOps(SelectionKey.OP_CONNECT);
+			}
+		} catch (Throwable t) {
+			socket.exceptionalShutdown(t);
+		}
+	}
+	
+	/**
+	 * Begin TLS if needed and send the opening handshake
+	 */
+	private void connected() throws Exception {
+		if (socket.isSecure()) {
+			sslEngine=socket.getNetConfig().getSslContext().createSSLEngine(socket.getHostName(), socket.getPort());
+			sslEngine.setUseClientMode(true);
+			SSLSession session=sslEngine.getSession();
+			netIn=ByteBuffer.allocate(session.getPacketBufferSize());
+			netOut=ByteBuffer.allocate(session.getPacketBufferSize());
+			sslEngine.beginHandshake();
+		}
+		
+		phase=PHASE_HANDSHAKE;
+		key.interestOps(SelectionKey.OP_READ);
+		handshakeState=wireProtocol.startHandshake(socket, socket.getUri(), dataOut);
+		dataOut.flush();
+		flushOutput();
+	}
+	
+	/**
+	 * Called by the loop when the key is ready
+	 */
+	void handleReady() {
+		try {
+			if (!key.isValid()) return;
+			int ready=key.readyOps();
+			if ((ready&SelectionKey.OP_CONNECT)!=0) {
+				if (!channel.finishConnect()) return;
+				connected();
+				return;
+			}
+			if ((ready&SelectionKey.OP_WRITE)!=0) {
+				flushOutput();
+				write();
+			}
+			if ((ready&SelectionKey.OP_READ)!=0 && !closed) {
+				read();
+			}
+		} catch (Throwable t) {
+			if (!closed) socket.exceptionalShutdown(t);
+		}
+	}
+	
+	/**
+	 * From the transmission queue on any thread
+	 */
+	public void messageArrived(MessageQueue queue) {
+		if (writeScheduled.compareAndSet(false, true)) loop.execute(writeTask);
+	}
+	
+	/**
+	 * Close the channel on the loop without waiting for it
+	 */
+	void abortAsync() {
+		if (Thread.currentThread()==loop.thread || !loop.isRunning()) {
+			closeNow();
+			return;
+		}
+		
+		loop.execute(new Runnable() {
+			public void run() {
+				closeNow();
+			}
+		});
+	}
+	
+	/**
+	 * Close the channel and finish the abort on the loop.  Other threads wait for
+	 * it, as they would for the reader and writer threads to exit.
+	 */
+	void abort() {
+		abortAsync();
+		if (Thread.currentThread()==loop.thread) return;
+		
+		synchronized (this) {
+			while (!finished) {
+				if (!loop.isRunning()) break;
+				try {
+					wait(100);
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					return;
+				}
+			}
+		}
+		if (!loop.isRunning()) closeNow();
+	}
+	
+	void closeNow() {
+		synchronized (this) {
+			if (closed) return;
+			closed=true;
+		}
+		phase=PHASE_CLOSED;
+		socket.getTransmissionQueue().setArrivalListener(null);
+		if (key!=null) {
+			key.cancel();
+			loop.connectionCount--;
+		}
+		if (channel!=null) {
+			try {
+				channel.close();
+			} catch (IOException e) {
+				// Not much else to do
+			}
+		}
+		
+		socket.finishAbort();
+		synchronized (this) {
+			finished=true;
+			notifyAll();
+		}
+	}
+	
+	// -- input
+	private void pauseReading() {
+		if (readPaused) return;
+		readPaused=true;
+		key.interestOps(key.interestOps()&~SelectionKey.OP_READ);
+	}
+	
+	/**
+	 * The inbound sink has space again.  Process what is buffered and read on.
+	 */
+	private void resumeReading() {
+		if (!readPaused || closed) return;
+		readPaused=false;
+		try {
+			if (!input.eof) key.interestOps(key.interestOps()|SelectionKey.OP_READ);
+			processInput();
+		} catch (Throwable t) {
+			if (!closed) socket.exceptionalShutdown(t);
+		} finally {
+			socket.flushInboundBatch();
+		}
+	}
+	
+	private void read() throws Exception {
+		try {
+			for (int i=0; i<MAX_READS && !readPaused; i++) {
+				if (!inbound.hasRemaining()) {
+					// A frame larger than the buffer
+					inbound=grow(inbound, inbound.capacity()*2);
+				}
+				
+				int r=sslEngine==null ? channel.read(inbound) : readSecure();
+				if (r<0) {
+					input.eof=true;
+					key.interestOps(key.interestOps()&~SelectionKey.OP_READ);
+				}
+				processInput();
+				if (r<=0 || closed) break;
+			}
+		} finally {
+			// Everything this round of reads produced is one batch
+			socket.flushInboundBatch();
+		}
+	}
+	
+	private int readSecure() throws IOException {
+		int r=channel.read(netIn);
+		unwrap();
+		if (r<0) {
+			try {
+				sslEngine.closeInbound();
+			} catch (SSLException e) {
+				// The peer did not send close_notify.  The protocol decides whether
+				// that matters.
+			}
+		}
+		// Application data waits in the output buffer until the TLS handshake is done
+		if (output.buffer.position()>0) flushOutput();
+		if (input.eof) return -1;
+		return r;
+	}
+	
+	private void unwrap() throws IOException {
+		netIn.flip();
+		try {
+			for (;;) {
+				SSLEngineResult result=sslEngine.unwrap(netIn, inbound);
+				SSLEngineResult.Status status=result.getStatus();
+				if (status==SSLEngineResult.Status.BUFFER_OVERFLOW) {
+					inbound=grow(inbound, inbound.position() + sslEngine.getSession().getApplicationBufferSize());
+					continue;
+				}
+				if (status==SSLEngineResult.Status.BUFFER_UNDERFLOW) {
+					int packetSize=sslEngine.getSession().getPacketBufferSize();
+					if (netIn.capacity()<packetSize) {
+						netIn.compact();
+						netIn=grow(netIn, packetSize);
+						netIn.flip();
+					}
+					break;
+				}
+				if (status==SSLEngineResult.Status.CLOSED) {
+					input.eof=true;
+					break;
+				}
+				
+				SSLEngineResult.HandshakeStatus handshakeStatus=result.getHandshakeStatus();
+				if (handshakeStatus==SSLEngineResult.HandshakeStatus.NEED_TASK) {
+					runDelegatedTasks();
+				} else if (handshakeStatus==SSLEngineResult.HandshakeStatus.NEED_WRAP) {
+					if (!flushOutput()) break;
+				} else if (result.bytesConsumed()==0 && result.bytesProduced()==0) {
+					break;
+				}
+			}
+		} finally {
+			netIn.compact();
+		}
+	}
+	
+	private void runDelegatedTasks() {
+		Runnable task;
+		while ((task=sslEngine.getDelegatedTask())!=null) {
+			task.run();
+		}
+	}
+	
+	/**
+	 * Hand complete handshakes and messages in the received data to the protocol
+	 */
+	private void processInput() throws Exception {
+		byte[] data=inbound.array();
+		int end=inbound.position();
+		for (;;) {
+			if (input.eof) input.limit=end;
+			if (phase==PHASE_HANDSHAKE) {
+				int length=wireProtocol.scanHandshake(socket, data, input.pos, end-input.pos);
+				if (length<0 && !input.eof) break;
+				if (length>=0) input.limit=input.pos+length;
+				wireProtocol.finishHandshake(socket, dataIn, handshakeState);
+				handshakeState=null;
+				phase=PHASE_OPEN;
+				socket.getTransmissionQueue().setArrivalListener(this);
+				write();
+				continue;
+			}
+			if (phase!=PHASE_OPEN) return;
+			
+			if (inboundSink!=null && inboundSink.isFull()) {
+				// Leave the rest buffered until the consumers catch up
+				pauseReading();
+				break;
+			}
+			if (!input.eof && input.pos>=input.limit) {
+				// One scan covers every complete message received so far.  Only the
+				// input after the last of them needs scanning again.
+				input.limit=input.pos + wireProtocol.scanFrames(socket, data, input.pos, end-input.pos);
+				if (input.limit==input.pos) break;
+			}
+			try {
+				Message message=wireProtocol.readMessage(socket, dataIn);
+				if (message==null) {
+					socket.disconnect();
+					return;
+				}
+				socket.signalMessage(message);
+				if (inboundSink!=null) inboundSink.add(message);
+			} catch (WouldBlockException e) {
+				// Consumed up to a boundary and wants more, such as after answering a
+				// ping or while waiting for the peer to close
+				break;
+			}
+			if (closed) return;
+		}
+		
+		// Keep what has not been consumed
+		int remaining=end-input.pos;
+		if (remaining==0 && inbound.capacity()>RETAINED_BUFFER_SIZE) {
+			inbound=ByteBuffer.allocate(INITIAL_BUFFER_SIZE);
+		} else if (input.pos>0) {
+			System.arraycopy(data, input.pos, data, 0, remaining);
+			inbound.position(remaining);
+		}
+		input.pos=0;
+		input.limit=0;
+	}
+	
+	// -- output
+	/**
+	 * Encode queued messages while the channel keeps up, then send what is buffered
+	 */
+	private void write() {
+		if (phase!=PHASE_OPEN) return;
+		try {
+			MessageQueue queue=socket.getTransmissionQueue();
+			for (;;) {
+				boolean more=false;
+				while (!outputShutdown && pendingOutput()<OUTPUT_HIGH_WATER) {
+					Message next=queue.peekNext();
+					more=next!=null;
+					if (!more) break;
+					if (!socket.writeBatch(next, dataOut)) outputShutdown=true;
+				}
+				// Carry on if the channel took it all, otherwise wait for writability
+				if (!flushOutput() || !more || outputShutdown) break;
+			}
+		} catch (Throwable t) {
+			if (!closed) socket.exceptionalShutdown(t);
+		}
+	}
+	
+	private int pendingOutput() {
+		int ret=output.buffer.position();
+		if (netOut!=null) ret+=netOut.position();
+		return ret;
+	}
+	
+	/**
+	 * Write (or encrypt and write) as much buffered output as the channel takes and
+	 * watch for writability if some is left
+	 * @return true if nothing is left waiting for the channel
+	 */
+	private boolean flushOutput() throws IOException {
+		if (closed) return true;
+		boolean drained;
+		if (sslEngine==null) {
+			drained=writeBuffer(output.buffer);
+		} else {
+			for (;;) {
+				drained=writeBuffer(netOut);
+				if (!drained) break;
+				
+				ByteBuffer plain=output.buffer;
+				plain.flip();
+				SSLEngineResult result;
+				try {
+					result=sslEngine.wrap(plain, netOut);
+				} finally {
+					plain.compact();
+				}
+				if (result.getStatus()==SSLEngineResult.Status.BUFFER_OVERFLOW) {
+					netOut=grow(netOut, sslEngine.getSession().getPacketBufferSize());
+					continue;
+				}
+				if (result.getHandshakeStatus()==SSLEngineResult.HandshakeStatus.NEED_TASK) {
+					runDelegatedTasks();
+				}
+				if (result.bytesProduced()==0) break;
+			}
+			output.trim();
+		}
+		
+		// Everything encoded so far is on the wire
+		if (drained && output.buffer.position()==0) socket.completeFlushed();
+		
+		int interestOps=key.interestOps();
+		int wanted=drained ? interestOps&~SelectionKey.OP_WRITE : interestOps|SelectionKey.OP_WRITE;
+		if (phase!=PHASE_CONNECTING && !input.eof) wanted|=SelectionKey.OP_READ;
+		if (wanted!=interestOps) key.interestOps(wanted);
+		return drained;
+	}
+	
+	/**
+	 * @param buffer in write mode
+	 * @return true if it was all written
+	 */
+	private boolean writeBuffer(ByteBuffer buffer) throws IOException {
+		if (buffer.position()==0) return true;
+		buffer.flip();
+		try {
+			channel.write(buffer);
+		} finally {
+			buffer.compact();
+		}
+		if (sslEngine==null) output.trim();
+		return buffer.position()==0;
+	}
+	
+	/**
+	 * @return a copy of buffer (in write mode) with at least the given capacity
+	 */
+	private static ByteBuffer grow(ByteBuffer buffer, int capacity) {
+		if (capacity<=buffer.capacity()) return buffer;
+		ByteBuffer grown=ByteBuffer.allocate(capacity);
+		buffer.flip();
+		grown.put(buffer);
+		return grown;
+	}
+	
+	/**
+	 * Reads the received data between pos and limit.  Reading past the limit
+	 * throws WOULD_BLOCK, or gives end of stream once the peer has closed.
+	 */
+	private class BufferInput extends InputStream {
+		int pos;
+		int limit;
+		boolean eof;
+		
+		@Override
+		public int read() throws IOException {
+			if (pos<limit) return inbound.array()[pos++]&0xff;
+			return exhausted();
+		}
+		
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException {
+			if (len==0) return 0;
+			int count=Math.min(len, limit-pos);
+			if (count<=0) return exhausted();
+			System.arraycopy(inbound.array(), pos, b, off, count);
+			pos+=count;
+			return count;
+		}
+		
+		@Override
+		public int available() {
+			return limit-pos;
+		}
+		
+		private int exhausted() throws IOException {
+			if (eof) return -1;
+			throw WOULD_BLOCK;
+		}
+	}
+	
+	/**
+	 * Collects encoded output in a growable buffer (kept in write mode)
+	 */
+	private static class BufferOutput extends OutputStream {
+		ByteBuffer buffer=ByteBuffer.allocate(INITIAL_BUFFER_SIZE);
+		
+		@Override
+		public void write(int b) {
+			if (!buffer.hasRemaining()) buffer=grow(buffer, buffer.capacity()*2);
+			buffer.put((byte)b);
+		}
+		
+		@Override
+		public void write(byte[] b, int off, int len) {
+			if (buffer.remaining()<len) buffer=grow(buffer, Math.max(buffer.capacity()*2, buffer.position()+len));
+			buffer.put(b, off, len);
+		}
+		
+		/**
+		 * Drop a grown buffer once it is empty
+		 */
+		void trim() {
+			if (buffer.position()==0 && buffer.capacity()>RETAINED_BUFFER_SIZE) {
+				buffer=ByteBuffer.allocate(INITIAL_BUFFER_SIZE);
+			}
+		}
+	}
+}
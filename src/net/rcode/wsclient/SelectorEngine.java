@@ -0,0 +1,198 @@
+package net.rcode.wsclient;
+
+import java.io.IOException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Runs many WebSockets on a few threads.  Each event loop thread owns a Selector and
+ * drives the non-blocking channels of the connections assigned to it through the
+ * same WireProtocol framing that the threaded model uses.  wss connections are
+ * encrypted with an SSLEngine.
+ * <p>
+ * Set an engine on the NetConfig of each WebSocket that should use it before calling
+ * start().  The WebSocket API stays the same except that listeners are called on an
+ * event loop thread, where they must not block, and that inbound messages are never
+ * streamed.  The host name is looked up on the thread that calls start() so that
+ * DNS never blocks an event loop.
+ * </p>
+ * <p>
+ * The event loop threads are daemon threads.  They run until shutdown().
+ * </p>
+ *
+ * @author stella
+ *
+ */
+public class SelectorEngine {
+	private final EventLoop[] loops;
+	private final AtomicInteger nextLoop=new AtomicInteger();
+	private volatile boolean shutdown;
+	
+	/**
+	 * Create an engine with one event loop per processor
+	 * @throws IOException if a Selector can not be opened
+	 */
+	public SelectorEngine() throws IOException {
+		this(Runtime.getRuntime().availableProcessors());
+	}
+	
+	/**
+	 * @param threadCount number of event loop threads
+	 * @throws IOException if a Selector can not be opened
+	 */
+	public SelectorEngine(int threadCount) throws IOException {
+		if (threadCount<1) throw new IllegalArgumentException();
+		loops=new EventLoop[threadCount];
+		try {
+			for (int i=0; i<threadCount; i++) {
+				loops[i]=new EventLoop("WebSocket selector " + (i+1));
+			}
+		} catch (IOException e) {
+			for (EventLoop loop: loops) {
+				if (loop!=null) loop.selector.close();
+			}
+			throw e;
+		}
+		for (EventLoop loop: loops) {
+			loop.thread.start();
+		}
+	}
+	
+	public int getThreadCount() {
+		return loops.length;
+	}
+	
+	/**
+	 * @return the number of connections currently registered with a Selector
+	 */
+	public int getConnectionCount() {
+		int ret=0;
+		for (EventLoop loop: loops) {
+			ret+=loop.connectionCount;
+		}
+		return ret;
+	}
+	
+	/**
+	 * Abort every connection and stop the event loops.  Waits for the loops to
+	 * finish unless called from one of them.
+	 */
+	public void shutdown() {
+		shutdown=true;
+		for (EventLoop loop: loops) {
+			loop.shutdown=true;
+			loop.selector.wakeup();
+		}
+		
+		for (EventLoop loop: loops) {
+			if (Thread.currentThread()==loop.thread) continue;
+			try {
+				loop.thread.join();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				return;
+			}
+		}
+	}
+	
+	/**
+	 * Assign a WebSocket to an event loop.  Called by WebSocket.start(), which then
+	 * starts the connection.
+	 */
+	SelectorConnection register(WebSocket socket) {
+		if (shutdown) throw new IllegalStateException("SelectorEngine has been shut down");
+		EventLoop loop=loops[(nextLoop.getAndIncrement()&0x7fffffff) % loops.length];
+		return new SelectorConnection(loop, socket);
+	}
+	
+	/**
+	 * One Selector and the thread that drives it.  Everything a connection does
+	 * happens on the thread of its loop.  Other threads hand work over with execute.
+	 */
+	static class EventLoop implements Runnable {
+		final Selector selector;
+		final Thread thread;
+		private final ConcurrentLinkedQueue<Runnable> tasks=new ConcurrentLinkedQueue<Runnable>();
+		
+		/**
+		 * Set once the selector has been (or is about to be) woken so that a burst
+		 * of tasks costs one wakeup
+		 */
+		private final AtomicBoolean wakeupPending=new AtomicBoolean();
+		private volatile boolean shutdown;
+		
+		/**
+		 * Only changed on the loop thread
+		 */
+		volatile int connectionCount;
+		
+		EventLoop(String name) throws IOException {
+			selector=Selector.open();
+			thread=new Thread(this, name);
+			thread.setDaemon(true);
+		}
+		
+		/**
+		 * Run a task on the loop thread
+		 */
+		void execute(Runnable task) {
+			tasks.add(task);
+			if (Thread.currentThread()!=thread && wakeupPending.compareAndSet(false, true)) {
+				selector.wakeup();
+			}
+		}
+		
+		boolean isRunning() {
+			return thread.isAlive();
+		}
+		
+		public void run() {
+			try {
+				for (;;) {
+					wakeupPending.set(false);
+					runTasks();
+					if (shutdown) break;
+					
+					if (tasks.isEmpty()) selector.select();
+					else selector.selectNow();
+					
+					Iterator<SelectionKey> keys=selector.selectedKeys().iterator();
+					while (keys.hasNext()) {
+						SelectionKey key=keys.next();
+						keys.remove();
+						((SelectorConnection)key.attachment()).handleReady();
+					}
+				}
+			} catch (IOException e) {
+				// The selector itself failed.  Nothing on this loop can go on.
+				e.printStackTrace();
+			} finally {
+				runTasks();
+				for (SelectionKey key: selector.keys().toArray(new SelectionKey[0])) {
+					((SelectorConnection)key.attachment()).closeNow();
+				}
+				try {
+					selector.close();
+				} catch (IOException e) {
+					// Not much else to do
+				}
+			}
+		}
+		
+		private void runTasks() {
+			Runnable task;
+			while ((task=tasks.poll())!=null) {
+				try {
+					task.run();
+				} catch (Throwable t) {
+					// Tasks handle their own errors.  Keep the loop alive regardless.
+					t.printStackTrace();
+				}
+			}
+		}
+	}
+}
@@ -3,23 +3,201 @@ package net.rcode.wsclient;
 import java.nio.ByteBuffer;
 import java.nio.CharBuffer;
 import java.nio.charset.Charset;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
 
 public class Util {
 	public static final Charset UTF8=Charset.forName("UTF8");
+	
+	private static final ThreadLocal<CharsetDecoder> strictDecoder=new ThreadLocal<CharsetDecoder>() {
+		@Override
+		protected CharsetDecoder initialValue() {
+			return UTF8.newDecoder()
+				.onMalformedInput(CodingErrorAction.REPORT)
+				.onUnmappableCharacter(CodingErrorAction.REPORT);
+		}
+	};
 
 	public static byte[] getUTF8Bytes(CharSequence s) {
 		// The String.getBytes(Charset) method was not implemented until Java 6/Android 9
-		// For compatibility with older runtimes, implement it here in terms of its
-		// primitives
-		ByteBuffer bb=UTF8.encode(CharBuffer.wrap(s));
-		byte[] ret=new byte[bb.remaining()];
-		bb.get(ret);
+		// and Charset.encode over-allocates and then copies.  Size the result exactly
+		// instead and encode straight into it.
+		int length=s.length();
+		int byteLength=getUTF8Length(s);
+		byte[] ret=new byte[byteLength];
+		int i=0;
+		if (byteLength==length) {
+			// Most likely pure ASCII, though a stray surrogate also takes one byte
+			for (; i<length; i++) {
+				char c=s.charAt(i);
+				if (c>=0x80) break;
+				ret[i]=(byte)c;
+			}
+		}
+		if (i<length) encodeUTF8(s, i, length, ret, i);
 		return ret;
 	}
 	
+	/**
+	 * @return the number of bytes s takes when encoded as UTF-8
+	 */
+	public static int getUTF8Length(CharSequence s) {
+		int length=s.length();
+		int ret=length;
+		for (int i=0; i<length; i++) {
+			char c=s.charAt(i);
+			if (c<0x80) continue;
+			if (c<0x800) ret+=1;
+			else if (Character.isHighSurrogate(c) && i+1<length && Character.isLowSurrogate(s.charAt(i+1))) {
+				// 4 bytes for the pair
+				ret+=2;
+				i++;
+			} else if (!isSurrogate(c)) ret+=2;
+			// Unpaired surrogates are encoded as a single '?'
+		}
+		return ret;
+	}
+	
+	/**
+	 * Encode the chars between start and end as UTF-8.  A high surrogate at end-1
+	 * is treated as unpaired, so callers encoding in pieces should not split pairs.
+	 * Unpaired surrogates are encoded as '?', as Charset.encode does.
+	 * @param s
+	 * @param start
+	 * @param end
+	 * @param dest must have room for getUTF8Length of the range
+	 * @param offset
+	 * @return the offset in dest after the last byte written
+	 */
+	public static int encodeUTF8(CharSequence s, int start, int end, byte[] dest, int offset) {
+		for (int i=start; i<end; i++) {
+			char c=s.charAt(i);
+			if (c<0x80) {
+				dest[offset++]=(byte)c;
+			} else if (c<0x800) {
+				dest[offset++]=(byte)(0xc0 | (c>>6));
+				dest[offset++]=(byte)(0x80 | (c&0x3f));
+			} else if (isSurrogate(c)) {
+				if (Character.isHighSurrogate(c) && i+1<end && Character.isLowSurrogate(s.charAt(i+1))) {
+					int cp=Character.toCodePoint(c, s.charAt(++i));
+					dest[offset++]=(byte)(0xf0 | (cp>>18));
+					dest[offset++]=(byte)(0x80 | ((cp>>12)&0x3f));
+					dest[offset++]=(byte)(0x80 | ((cp>>6)&0x3f));
+					dest[offset++]=(byte)(0x80 | (cp&0x3f));
+				} else {
+					dest[offset++]='?';
+				}
+			} else {
+				dest[offset++]=(byte)(0xe0 | (c>>12));
+				dest[offset++]=(byte)(0x80 | ((c>>6)&0x3f));
+				dest[offset++]=(byte)(0x80 | (c&0x3f));
+			}
+		}
+		return offset;
+	}
+	
 	public static CharSequence fromUTF8Bytes(byte[] bytes) {
-		ByteBuffer bb=ByteBuffer.wrap(bytes);
+		return fromUTF8Bytes(bytes, 0, bytes.length);
+	}
+	
+	public static CharSequence fromUTF8Bytes(byte[] bytes, int offset, int length) {
+		String ascii=fromASCIIBytes(bytes, offset, length);
+		if (ascii!=null) return ascii;
+		
+		ByteBuffer bb=ByteBuffer.wrap(bytes, offset, length);
 		CharBuffer charBuffer=UTF8.decode(bb);
 		return charBuffer;
 	}
+	
+	private static final char[] BASE64_CHARS=
+		"ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789+/".toCharArray();
+	
+	/**
+	 * Base64 encode with padding.  java.util.Base64 is Java 8 and Android has its own.
+	 */
+	public static String base64Encode(byte[] bytes) {
+		StringBuilder ret=new StringBuilder((bytes.length+2)/3*4);
+		for (int i=0; i<bytes.length; i+=3) {
+			int remaining=bytes.length-i;
+			int chunk=(bytes[i]&0xff)<<16;
+			if (remaining>1) chunk|=(bytes[i+1]&0xff)<<8;
+			if (remaining>2) chunk|=bytes[i+2]&0xff;
+			ret.append(BASE64_CHARS[chunk>>18]);
+			ret.append(BASE64_CHARS[(chunk>>12)&0x3f]);
+			ret.append(remaining>1 ? BASE64_CHARS[(chunk>>6)&0x3f] : '=');
+			ret.append(remaining>2 ? BASE64_CHARS[chunk&0x3f] : '=');
+		}
+		return ret.toString();
+	}
+	
+	/**
+	 * XOR data with a repeating 4 byte key, as websocket frame masking does.  Works
+	 * 8 bytes at a time through a long view of the array.
+	 * @param data
+	 * @param offset
+	 * @param length
+	 * @param key 4 byte masking key
+	 * @param phase index into the key of the byte that applies to data[offset]
+	 */
+	public static void mask(byte[] data, int offset, int length, byte[] key, int phase) {
+		int i=offset, end=offset+length;
+		if (length>=8) {
+			int keyInt=(key[phase&3]&0xff)<<24 | (key[(phase+1)&3]&0xff)<<16 |
+				(key[(phase+2)&3]&0xff)<<8 | (key[(phase+3)&3]&0xff);
+			long keyLong=((long)keyInt<<32) | (keyInt&0xffffffffL);
+			ByteBuffer view=ByteBuffer.wrap(data);
+			for (int last=end-8; i<=last; i+=8) {
+				view.putLong(i, view.getLong(i) ^ keyLong);
+			}
+		}
+		// i-offset is a multiple of 8 here so the phase is unchanged
+		for (; i<end; i++) {
+			data[i]^=key[(phase + i - offset)&3];
+		}
+	}
+	
+	private static boolean isSurrogate(char c) {
+		// Character.isSurrogate is Java 7
+		return c>=Character.MIN_SURROGATE && c<=Character.MAX_SURROGATE;
+	}
+	
+	/**
+	 * Decode UTF-8, rejecting malformed input instead of substituting replacement
+	 * characters.
+	 * @param bytes
+	 * @param offset
+	 * @param length
+	 * @return the decoded text
+	 * @throws IllegalArgumentException if the bytes are not valid UTF-8
+	 */
+	public static String decodeUTF8(byte[] bytes, int offset, int length) {
+		String ascii=fromASCIIBytes(bytes, offset, length);
+		if (ascii!=null) return ascii;
+		
+		CharsetDecoder decoder=strictDecoder.get();
+		decoder.reset();
+		ByteBuffer in=ByteBuffer.wrap(bytes, offset, length);
+		// UTF-8 never decodes to more chars than it has bytes
+		CharBuffer out=CharBuffer.allocate(length);
+		CoderResult result=decoder.decode(in, out, true);
+		if (!result.isError()) result=decoder.flush(out);
+		if (result.isError()) {
+			throw new IllegalArgumentException("Invalid UTF-8 sequence at byte " + (in.position()-offset));
+		}
+		return new String(out.array(), 0, out.position());
+	}
+	
+	/**
+	 * @return the bytes as a String if they are all 7 bit ASCII or null if not
+	 */
+	@SuppressWarnings("deprecation")
+	private static String fromASCIIBytes(byte[] bytes, int offset, int length) {
+		// Check first so that nothing is allocated for text that is not ASCII
+		for (int i=offset, end=offset+length; i<end; i++) {
+			if (bytes[i]<0) return null;
+		}
+		// Copies the bytes straight into the String.  Exact for 7 bit input.
+		return new String(bytes, 0, offset, length);
+	}
 }
@@ -1,21 +1,31 @@
 package net.rcode.wsclient;
 
-import java.io.BufferedInputStream;
-import java.io.BufferedOutputStream;
-import java.io.DataInputStream;
 import java.io.DataOutputStream;
 import java.io.IOException;
 import java.io.PrintWriter;
 import java.io.StringWriter;
 import java.net.Socket;
 import java.net.URI;
+import java.net.URISyntaxException;
+import java.nio.channels.WritableByteChannel;
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Random;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.regex.Pattern;
 
 import javax.net.SocketFactory;
+import javax.net.ssl.SSLSocket;
 
 /**
  * Provide an implementation of the HTML5 WebSocket class:
@@ -35,7 +45,7 @@ import javax.net.SocketFactory;
 public class WebSocket {
 	private static final Pattern INVALID_HEADER_NAME_PATTERN=Pattern.compile("[\\r\\n\\:]");
 	private static final Pattern INVALID_HEADER_VALUE_PATTERN=Pattern.compile("[\\r\\n]");
-
+	
 	public static class Event {
 		/**
 		 * An EVENT_* constant
@@ -57,37 +67,65 @@ public class WebSocket {
 		 */
 		protected Message message;
 		
+		/**
+		 * On MESSAGE_STREAM event types this is the payload stream
+		 */
+		protected MessageInputStream inputStream;
+		
 		/**
 		 * On error event types, this is the error
 		 */
 		protected Throwable error;
 		
+		/**
+		 * On RECONNECTING event types, the number of the attempt (starting at 1)
+		 * and the milliseconds until it is made
+		 */
+		protected int reconnectAttempt;
+		protected long reconnectDelay;
+		
 		public int getType() {
 			return type;
 		}
-
+		
 		public WebSocket getSource() {
 			return source;
 		}
-
+		
 		public int getReadyState() {
 			return readyState;
 		}
-
+		
 		public Message getMessage() {
 			return message;
 		}
-
+		
+		public MessageInputStream getInputStream() {
+			return inputStream;
+		}
+		
 		public Throwable getError() {
 			return error;
 		}
 		
+		public int getReconnectAttempt() {
+			return reconnectAttempt;
+		}
+		
+		public long getReconnectDelay() {
+			return reconnectDelay;
+		}
+		
 		public String toString() {
 			StringWriter ret=new StringWriter();
 			String typeName;
 			if (type==EVENT_READYSTATE) typeName="ReadyState";
 			else if (type==EVENT_MESSAGE) typeName="Message";
 			else if (type==EVENT_ERROR) typeName="Error";
+			else if (type==EVENT_WRITABLE) typeName="Writable";
+			else if (type==EVENT_UNWRITABLE) typeName="Unwritable";
+			else if (type==EVENT_MESSAGE_STREAM) typeName="MessageStream";
+			else if (type==EVENT_RECONNECTING) typeName="Reconnecting";
 			else typeName=String.valueOf(type);
 			
 			ret.write("<Event ");
@@ -101,6 +139,8 @@ public class WebSocket {
 				pout.flush();
 			} else if (type==EVENT_MESSAGE) {
 				ret.append(message.toString());
+			} else if (type==EVENT_MESSAGE_STREAM) {
+				ret.append(String.valueOf(inputStream.getLength())).append(" bytes");
 			}
 			ret.append("</Event>");
 			return ret.toString();
@@ -111,13 +151,37 @@ public class WebSocket {
 		public void handleEvent(Event event);
 	}
 	
+	/**
+	 * Receives messages without an Event wrapped around them.  Only EVENT_MESSAGE is
+	 * delivered this way; everything else (including streamed messages) goes to the
+	 * EventListeners.
+	 */
+	public static interface MessageListener {
+		public void handleMessage(WebSocket source, Message message);
+	}
+	
+	/**
+	 * Receives messages in batches of the ones that were already buffered when they
+	 * were read, so that consumers can spread the cost of a lock, flush or
+	 * transaction over many messages.  A message that arrives on its own is
+	 * delivered on its own, without waiting for more.
+	 */
+	public static interface BatchListener {
+		/**
+		 * @param source
+		 * @param messages the batch in order of arrival.  The list is reused once
+		 * this returns, so copy it to keep it.
+		 */
+		public void handleMessages(WebSocket source, List<Message> messages);
+	}
+	
 	
 	// -- readyState constants
 	public static final int CONNECTING=0;
 	public static final int OPEN=1;
 	public static final int CLOSING=2;
 	public static final int CLOSED=3;
-
+	
 	/**
 	 * Combines the open and close events and just exposes one
 	 * readyState change event
@@ -133,33 +197,85 @@ public class WebSocket {
 	 * shutdown.
 	 */
 	public static final int EVENT_ERROR=2;
+	/**
+	 * The transmission queue has drained to its low watermark after having been
+	 * above its high watermark.  Senders may resume.
+	 */
+	public static final int EVENT_WRITABLE=3;
+	/**
+	 * The transmission queue has risen above its high watermark.  Senders should
+	 * hold off until EVENT_WRITABLE.
+	 */
+	public static final int EVENT_UNWRITABLE=4;
+	/**
+	 * A message larger than the streaming threshold is arriving.  The inputStream
+	 * field will be set and must be closed by the listener before any further
+	 * messages are read.
+	 */
+	public static final int EVENT_MESSAGE_STREAM=5;
+	/**
+	 * The connection was lost and will be made again (see NetConfig.setReconnect).
+	 * The readyState is CONNECTING until the next connection opens.
+	 */
+	public static final int EVENT_RECONNECTING=6;
+	
+	// -- close status codes (RFC 6455)
+	public static final int CLOSE_NORMAL=1000;
+	public static final int CLOSE_GOING_AWAY=1001;
+	public static final int CLOSE_PROTOCOL_ERROR=1002;
+	public static final int CLOSE_UNSUPPORTED_DATA=1003;
+	/**
+	 * Reported when a close frame carried no status code.  Never sent.
+	 */
+	public static final int CLOSE_NO_STATUS=1005;
+	/**
+	 * Reported when the connection ended without a close frame.  Never sent.
+	 */
+	public static final int CLOSE_ABNORMAL=1006;
+	public static final int CLOSE_INVALID_PAYLOAD=1007;
+	public static final int CLOSE_POLICY_VIOLATION=1008;
+	public static final int CLOSE_MESSAGE_TOO_BIG=1009;
+	public static final int CLOSE_MANDATORY_EXTENSION=1010;
+	public static final int CLOSE_INTERNAL_ERROR=1011;
 	
 	// -- public properties (read-only)
-	private int readyState;
+	private volatile int readyState;
+	private int closeCode=CLOSE_ABNORMAL;
+	private String closeReason;
+	private volatile PerMessageDeflate perMessageDeflate;
 	private String url;
 	private Map<String, String> requestHeaders=new HashMap<String, String>();
-	private Map<String, String> responseHeaders;
+	private volatile Map<String, String> responseHeaders;
 	private boolean verifyHandshake=true;
 	
 	// -- public properties (read-write)
 	private NetConfig netConfig=new NetConfig();
 	private WireProtocol wireProtocol=WireProtocolDraft76.INSTANCE;
 	
-	public synchronized int getReadyState() {
+	public int getReadyState() {
 		return readyState;
 	}
-	protected synchronized void setReadyState(int readyState) {
-		boolean notifyListeners;
+	protected void setReadyState(int readyState) {
+		boolean changed, notifyListeners;
 		synchronized(this) {
-			if (readyState!=this.readyState) {
+			changed=readyState!=this.readyState;
+			if (changed) {
 				this.readyState = readyState;
-				notifyListeners=listeners!=null;
+				if (readyState==OPEN) reconnectAttempts=0;
+				notifyListeners=listeners.length>0;
 				this.notifyAll();
 			} else {
 				notifyListeners=false;
 			}
 		}
 		
+		if (changed && readyState==CLOSING) scheduleCloseTimeout(netConfig.getCloseTimeout());
+		if (readyState>=CLOSING) {
+			InboundSink localSink=inboundSink;
+			if (localSink!=null) localSink.closing();
+		}
+		if (readyState==OPEN || readyState==CLOSED) completeFutures(readyState);
+		
 		if (notifyListeners) {
 			Event event=new Event();
 			event.source=this;
@@ -169,19 +285,22 @@ public class WebSocket {
 		}
 	}
 	
-	public synchronized String getProtocol() {
-		if (responseHeaders==null) return null;
-		return responseHeaders.get("sec-websocket-protocol");
+	public String getProtocol() {
+		Map<String, String> localHeaders=responseHeaders;
+		if (localHeaders==null) return null;
+		return localHeaders.get("sec-websocket-protocol");
 	}
 	
-	public synchronized String[] getResponseHeaderNames() {
-		if (responseHeaders==null) return null;
-		return responseHeaders.keySet().toArray(new String[responseHeaders.size()]);
+	public String[] getResponseHeaderNames() {
+		Map<String, String> localHeaders=responseHeaders;
+		if (localHeaders==null) return null;
+		return localHeaders.keySet().toArray(new String[localHeaders.size()]);
 	}
 	
-	public synchronized String getResponseHeader(String name) {
-		if (responseHeaders==null) return null;
-		return responseHeaders.get(name.toLowerCase());
+	public String getResponseHeader(String name) {
+		Map<String, String> localHeaders=responseHeaders;
+		if (localHeaders==null) return null;
+		return localHeaders.get(name.toLowerCase());
 	}
 	
 	public String getUrl() {
@@ -196,6 +315,23 @@ public class WebSocket {
 		this.netConfig = netConfig;
 	}
 	
+	/**
+	 * @return the queue received messages are added to or null
+	 */
+	public InboundQueue getInboundQueue() {
+		InboundSink localSink=inboundSink;
+		return localSink instanceof InboundQueue ? (InboundQueue)localSink : null;
+	}
+	/**
+	 * Add every received message to the given queue, in addition to delivering it
+	 * to the listeners.  While the queue is full nothing more is read from the
+	 * socket.  Must be set before start().
+	 * @param inboundQueue
+	 */
+	public void setInboundQueue(InboundQueue inboundQueue) {
+		setInboundSink(inboundQueue);
+	}
+	
 	public WireProtocol getWireProtocol() {
 		return wireProtocol;
 	}
@@ -203,6 +339,7 @@ public class WebSocket {
 	public void setWireProtocol(WireProtocol wireProtocol) {
 		if (started) throw new IllegalStateException();
 		this.wireProtocol = wireProtocol;
+		this.requestTemplate=null;
 	}
 	
 	/**
@@ -225,25 +362,72 @@ public class WebSocket {
 			throw new IllegalArgumentException();
 		if (requestHeaders==null) requestHeaders=new HashMap<String, String>();
 		requestHeaders.put(name, value);
+		requestTemplate=null;
 	}
 	
 	// -- public constructors
 	public WebSocket(String url, String... requestedProtocols) {
 		this.url=url;
 		this.requestedProtocols=requestedProtocols.clone();
+		transmissionQueue.setWritabilityListener(new MessageQueue.WritabilityListener() {
+			public void writabilityChanged(MessageQueue queue, boolean writable) {
+				signalWritability(writable);
+			}
+		});
 	}
 	
 	// -- public api
 	/**
 	 * Queues a message for sending (puts the message at the tail of the queue)
+	 * @throws QueueFullException if the transmission queue is above its high watermark
+	 * and the overflow policy refuses the message
 	 */
 	public void send(Message message) {
 		transmissionQueue.addTail(message);
 	}
 	
+	/**
+	 * Queues a message for sending on a specific priority lane
+	 * @param message
+	 * @param lane a MessageQueue.LANE_* constant
+	 * @throws QueueFullException if the transmission queue is above its high watermark
+	 * and the overflow policy refuses the message
+	 */
+	public void send(Message message, int lane) {
+		transmissionQueue.addTail(message, lane);
+	}
+	
+	/**
+	 * Queues a message in "latest value wins" mode.  If a message sent with an equal
+	 * key is still waiting to be written, it is replaced in place by this one and keeps
+	 * its position in the queue.  Otherwise the message is queued as with send.
+	 * @param key
+	 * @param message
+	 * @return true if a waiting message was replaced
+	 * @throws QueueFullException if the transmission queue is above its high watermark
+	 * and the overflow policy refuses the message
+	 */
+	public boolean send(Object key, Message message) {
+		return transmissionQueue.addTail(key, message);
+	}
+	
+	/**
+	 * Queues a message in "latest value wins" mode on a specific lane with an optional
+	 * time to live.
+	 * @param key conflation key (null to queue normally)
+	 * @param message
+	 * @param lane a MessageQueue.LANE_* constant.  A replaced message keeps its lane.
+	 * @param ttlMillis discard the message unsent if it has not been written within
+	 * this many milliseconds.  0 for no limit.
+	 * @return true if a waiting message was replaced
+	 */
+	public boolean send(Object key, Message message, int lane, long ttlMillis) {
+		return transmissionQueue.addTail(key, message, lane, ttlMillis);
+	}
+	
 	/**
 	 * Queues a message for immediate transmission (puts it at the head of the
-	 * queue).
+	 * queue).  This bypasses the overflow policy.
 	 * @param message
 	 */
 	public void sendImmediate(Message message) {
@@ -254,6 +438,157 @@ public class WebSocket {
 		send(new Message(message));
 	}
 	
+	/**
+	 * Queue a message and get a future that completes once it has been written to
+	 * the socket (flushed by the writer), or fails if the connection closes first or
+	 * the queue discards it.
+	 * @param message a message that has not been sent before
+	 * @throws QueueFullException if the transmission queue is above its high watermark
+	 * and the overflow policy refuses the message
+	 */
+	public WebSocketFuture<Message> sendAsync(Message message) {
+		return sendAsync(message, transmissionQueue.getLaneCount()>MessageQueue.LANE_NORMAL ?
+				MessageQueue.LANE_NORMAL : 0);
+	}
+	
+	/**
+	 * Queue a message on a specific priority lane, see sendAsync(Message)
+	 */
+	public WebSocketFuture<Message> sendAsync(Message message, int lane) {
+		if (message.getSendFuture()!=null) throw new IllegalStateException("Message has already been sent");
+		WebSocketFuture<Message> future=new WebSocketFuture<Message>();
+		message.setSendFuture(future);
+		if (readyState==CLOSED) {
+			future.fail(new IOException("WebSocket is closed"));
+			return future;
+		}
+		try {
+			transmissionQueue.addTail(message, lane);
+		} catch (RuntimeException e) {
+			// Refused, so it may be sent again once there is room
+			message.setSendFuture(null);
+			throw e;
+		}
+		return future;
+	}
+	
+	/**
+	 * Start connecting if not started yet
+	 * @return a future that completes with this WebSocket once it is open, or fails
+	 * if it closes first
+	 */
+	public WebSocketFuture<WebSocket> connectAsync() {
+		WebSocketFuture<WebSocket> future;
+		synchronized (this) {
+			if (openFuture==null) openFuture=new WebSocketFuture<WebSocket>();
+			future=openFuture;
+		}
+		// In case it already happened
+		int localReadyState=readyState;
+		if (localReadyState==OPEN) future.complete(this);
+		else if (localReadyState==CLOSED && started) future.fail(new IOException("WebSocket closed before it opened"));
+		
+		start();
+		return future;
+	}
+	
+	/**
+	 * Start an orderly close and get a future that completes with the close code
+	 * once the WebSocket is closed
+	 * @param timeoutMillis abort the connection if the close handshake has not
+	 * finished after this long.  0 to keep the close timeout of the NetConfig.
+	 */
+	public WebSocketFuture<Integer> closeAsync(long timeoutMillis) {
+		final WebSocketFuture<Integer> future;
+		synchronized (this) {
+			if (closeFuture==null) closeFuture=new WebSocketFuture<Integer>();
+			future=closeFuture;
+		}
+		
+		close();
+		if (readyState==CLOSED) {
+			future.complete(getCloseCode());
+		} else if (timeoutMillis>0) {
+			scheduleCloseTimeout(timeoutMillis);
+		}
+		return future;
+	}
+	
+	/**
+	 * Close a set of WebSockets concurrently.  Every close handshake is started
+	 * before any is waited for.  Those that have not closed when the deadline
+	 * passes are aborted without waiting.
+	 * @param sockets
+	 * @param timeoutMillis how long to wait for all of them together
+	 * @return true if every WebSocket finished its close handshake in time
+	 * @throws InterruptedException
+	 */
+	public static boolean closeAll(Collection<? extends WebSocket> sockets, long timeoutMillis) throws InterruptedException {
+		ArrayList<WebSocketFuture<Integer>> futures=new ArrayList<WebSocketFuture<Integer>>(sockets.size());
+		for (WebSocket socket: sockets) {
+			// The deadline below aborts stragglers, not the per socket timeout
+			futures.add(socket.closeAsync(0));
+		}
+		
+		long deadline=System.currentTimeMillis() + timeoutMillis;
+		boolean allClosed=true;
+		int i=0;
+		for (WebSocket socket: sockets) {
+			WebSocketFuture<Integer> future=futures.get(i++);
+			if (!future.isDone()) {
+				long remaining=deadline - System.currentTimeMillis();
+				try {
+					if (remaining>0) future.get(remaining, TimeUnit.MILLISECONDS);
+				} catch (ExecutionException e) {
+					// Closed, just not cleanly
+				} catch (TimeoutException e) {
+					// Handled below
+				}
+			}
+			if (!future.isDone()) {
+				allClosed=false;
+				socket.abortAsync();
+			}
+		}
+		return allClosed;
+	}
+	
+	private static Timer timer;
+	
+	/**
+	 * @return the timer close timeouts and reconnects are scheduled on
+	 */
+	private static synchronized Timer getTimer() {
+		if (timer==null) timer=new Timer("WebSocket timer", true);
+		return timer;
+	}
+	
+	/**
+	 * Abort the connection if it has not closed after timeoutMillis.  Replaces any
+	 * timeout scheduled before.
+	 */
+	private void scheduleCloseTimeout(long timeoutMillis) {
+		if (timeoutMillis<=0) return;
+		synchronized (this) {
+			if (abortFinished.get()) return;
+			if (closeTimeoutTask!=null) closeTimeoutTask.cancel();
+			closeTimeoutTask=new TimerTask() {
+				@Override
+				public void run() {
+					disconnect();
+				}
+			};
+			getTimer().schedule(closeTimeoutTask, timeoutMillis);
+		}
+	}
+	
+	private synchronized void cancelCloseTimeout() {
+		if (closeTimeoutTask!=null) {
+			closeTimeoutTask.cancel();
+			closeTimeoutTask=null;
+		}
+	}
+	
 	/**
 	 * @return the number of messages on the transmission queue
 	 */
@@ -268,63 +603,352 @@ public class WebSocket {
 		return transmissionQueue.getBytes();
 	}
 	
+	/**
+	 * @return the number of messages on one priority lane of the transmission queue
+	 */
+	public int getOutgoingDepth(int lane) {
+		return transmissionQueue.getDepth(lane);
+	}
+	
+	/**
+	 * @return the approximate number of bytes queued on one priority lane
+	 */
+	public long getOutgoingAmount(int lane) {
+		return transmissionQueue.getBytes(lane);
+	}
+	
+	/**
+	 * Choose how the writer shares the link between priority lanes.  Control frames
+	 * always go first.
+	 * @param schedulingPolicy a MessageQueue.SCHEDULE_* constant
+	 */
+	public void setOutgoingSchedulingPolicy(int schedulingPolicy) {
+		transmissionQueue.setSchedulingPolicy(schedulingPolicy);
+	}
+	
+	/**
+	 * Set the relative share of a priority lane under MessageQueue.SCHEDULE_WEIGHTED
+	 * @param lane
+	 * @param weight
+	 */
+	public void setOutgoingLaneWeight(int lane, int weight) {
+		transmissionQueue.setLaneWeight(lane, weight);
+	}
+	
+	/**
+	 * Bound the transmission queue.  When more than highWatermark bytes are queued an
+	 * EVENT_UNWRITABLE is fired and the overflow policy applies to further sends.  Once
+	 * the queue drains to lowWatermark bytes an EVENT_WRITABLE is fired.
+	 * @param lowWatermark
+	 * @param highWatermark
+	 */
+	public void setOutgoingWatermarks(long lowWatermark, long highWatermark) {
+		transmissionQueue.setWatermarks(lowWatermark, highWatermark);
+	}
+	
+	/**
+	 * Set what send does when the transmission queue is above its high watermark
+	 * @param overflowPolicy a MessageQueue.OVERFLOW_* constant
+	 * @param timeoutMillis how long OVERFLOW_BLOCK waits (0 for forever)
+	 */
+	public void setOutgoingOverflowPolicy(int overflowPolicy, long timeoutMillis) {
+		transmissionQueue.setOverflowPolicy(overflowPolicy, timeoutMillis);
+	}
+	
+	/**
+	 * @return false between an EVENT_UNWRITABLE and the following EVENT_WRITABLE
+	 */
+	public boolean isWritable() {
+		return transmissionQueue.isWritable();
+	}
+	
 	public void close() {
-		synchronized (this) {
-			if (readyState!=OPEN) {
-				abort();
-				return;
-			}
+		close(CLOSE_NORMAL, null);
+	}
+	
+	/**
+	 * Close with a status code and reason, for protocols that carry them
+	 * @param code a CLOSE_* constant or an application code from 4000 to 4999
+	 * @param reason short text (at most 123 bytes as UTF-8) or null
+	 */
+	public void close(int code, String reason) {
+		if (cancelReconnect()) return;
+		if (readyState!=OPEN) {
+			// Nothing to hand shake.  Tear down without waiting.
+			disconnect();
+			return;
 		}
-		wireProtocol.initiateClose(this);
+		wireProtocol.initiateClose(this, code, reason);
+	}
+	
+	/**
+	 * Queue a ping ahead of other messages.  Protocols without pings ignore it.
+	 * @param payload application data echoed in the pong (at most 125 bytes)
+	 */
+	public void ping(byte[] payload) {
+		if (payload!=null && payload.length>125) throw new IllegalArgumentException();
+		transmissionQueue.addHead(new Message(Message.OPCODE_PING, payload, false));
 	}
 	
 	/**
-	 * Immediately abort the connection.
+	 * @return the status code the peer closed with.  CLOSE_ABNORMAL until a close
+	 * frame has been received.
+	 */
+	public synchronized int getCloseCode() {
+		return closeCode;
+	}
+	
+	/**
+	 * @return the reason the peer gave for closing or null
+	 */
+	public synchronized String getCloseReason() {
+		return closeReason;
+	}
+	
+	/**
+	 * @return the compression state and counters if permessage-deflate was
+	 * negotiated or null
+	 */
+	public PerMessageDeflate getPerMessageDeflate() {
+		return perMessageDeflate;
+	}
+	
+	/**
+	 * Immediately abort the connection and wait until it is CLOSED.  Called from
+	 * the reader or writer (for example from a listener) it does not wait.
 	 */
 	public void abort() {
-		if (socket!=null) {
+		if (cancelReconnect()) return;
+		SelectorConnection localConnection=selectorConnection;
+		if (localConnection!=null) {
+			// The event loop owns the connection and calls finishAbort
+			localConnection.abort();
+			return;
+		}
+		
+		List<Thread> stopped=stopThreads();
+		if (stopped==null) return;
+		try {
+			for (int i=0; i<stopped.size(); i++) {
+				stopped.get(i).join();
+			}
+			// In case another thread stopped them first
+			waitForReadyState(CLOSED);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+	
+	/**
+	 * Start aborting the connection and return at once.  The readyState becomes
+	 * CLOSED as soon as the reader and writer have let go of the socket.
+	 */
+	public void abortAsync() {
+		if (cancelReconnect()) return;
+		disconnect();
+	}
+	
+	/**
+	 * Tear the connection down because it failed or the peer ended it, rather
+	 * than because the application asked.  Does not wait.  A reconnecting
+	 * WebSocket connects again once the teardown is finished.
+	 */
+	void disconnect() {
+		SelectorConnection localConnection=selectorConnection;
+		if (localConnection!=null) {
+			localConnection.abortAsync();
+			return;
+		}
+		stopThreads();
+	}
+	
+	/**
+	 * Close the socket and interrupt the reader and writer.  The last of them to
+	 * exit finishes the abort.
+	 * @return the threads to wait for or null if called by one of them
+	 */
+	private List<Thread> stopThreads() {
+		Thread current=Thread.currentThread();
+		Socket localSocket;
+		ArrayList<Thread> stopped=new ArrayList<Thread>(2);
+		boolean ioThread;
+		synchronized (this) {
+			aborting=true;
+			localSocket=socket;
+			socket=null;
+			
+			// The reader or writer may be aborting itself
+			ioThread=current==readerThread || current==writerThread;
+			if (readerThread!=null && readerThread!=current && readerThread.isAlive()) {
+				readerThread.interrupt();
+				stopped.add(readerThread);
+			}
+			if (writerThread!=null && writerThread!=current && writerThread.isAlive()) {
+				writerThread.interrupt();
+				stopped.add(writerThread);
+			}
+		}
+		
+		if (localSocket!=null) {
 			try {
-				socket.close();
+				localSocket.close();
 				// This will stop anything blocked on read or write
 			} catch (IOException e) {
 				// Not much else to do
 				e.printStackTrace();
 			}
-			socket=null;
 		}
 		
-		Thread localReaderThread=null, localWriterThread=null;
+		// Never started or already gone
+		if (ioThreads.get()==0) finishAbort();
+		return ioThread ? null : stopped;
+	}
+	
+	/**
+	 * Called by the reader and writer as they exit
+	 */
+	private void ioThreadExited() {
+		if (ioThreads.decrementAndGet()==0) finishAbort();
+	}
+	
+	/**
+	 * The last step of abort, once nothing is reading or writing anymore
+	 */
+	void finishAbort() {
+		if (!abortFinished.compareAndSet(false, true)) return;
+		cancelCloseTimeout();
+		
+		// Both sides are done with the zlib streams
+		PerMessageDeflate localDeflate=getPerMessageDeflate();
+		if (localDeflate!=null) localDeflate.end();
+		
+		if (!scheduleReconnect()) finishClosed();
+	}
+	
+	private void finishClosed() {
+		failPendingSends();
+		setReadyState(CLOSED);
+		
+		// Consumers see the end once the readyState says so
+		InboundSink localSink=inboundSink;
+		if (localSink!=null) localSink.close();
+	}
+	
+	/**
+	 * Decide whether to connect again and if so schedule it
+	 * @return false if the WebSocket should close for good
+	 */
+	private boolean scheduleReconnect() {
+		if (!netConfig.isReconnect() || closeRequested) return false;
+		int attempt;
 		synchronized (this) {
-			if (readerThread!=null && readerThread.isAlive()) {
-				readerThread.interrupt();
-				localReaderThread=readerThread;
+			int maxAttempts=netConfig.getReconnectMaxAttempts();
+			if (maxAttempts>0 && reconnectAttempts>=maxAttempts) return false;
+			attempt=++reconnectAttempts;
+		}
+		long delay=computeReconnectDelay(netConfig.getReconnectMinDelay(),
+				netConfig.getReconnectMaxDelay(), attempt, RECONNECT_JITTER);
+		
+		// Whatever was written to the lost connection may or may not have arrived.
+		// Everything still queued goes out on the next one.
+		failUnflushed();
+		transmissionQueue.discardUnreplayable();
+		if (netConfig.isReconnectUserMessagesOnly()) transmissionQueue.discardControl();
+		setReadyState(CONNECTING);
+		signalReconnecting(attempt, delay);
+		
+		TimerTask task=new TimerTask() {
+			@Override
+			public void run() {
+				reconnect(this);
 			}
-			if (writerThread!=null && writerThread.isAlive()) {
-				writerThread.interrupt();
-				localWriterThread=writerThread;
+		};
+		synchronized (this) {
+			if (!closeRequested) {
+				reconnectTask=task;
+				getTimer().schedule(task, delay);
+				return true;
 			}
+		}
+		// Closed by the application in the meantime
+		finishClosed();
+		return true;
+	}
+	
+	/**
+	 * Exponential backoff.  The delay doubles with each attempt, up to maxDelay,
+	 * and a random part of up to half of it is taken off.
+	 * @param attempt starting at 1
+	 */
+	static long computeReconnectDelay(long minDelay, long maxDelay, int attempt, Random random) {
+		long delay=minDelay;
+		for (int i=1; i<attempt && delay<maxDelay; i++) {
+			delay*=2;
+		}
+		if (delay>maxDelay) delay=maxDelay;
+		long jitter=delay/2;
+		return delay - (long)(random.nextDouble()*jitter);
+	}
+	
+	/**
+	 * Start the next connection, reusing the transmission queue, the cached
+	 * handshake request and the inbound sink
+	 */
+	private void reconnect(TimerTask task) {
+		Throwable failure=null;
+		synchronized (this) {
+			// Closed by the application since it was scheduled
+			if (reconnectTask!=task || closeRequested) return;
+			reconnectTask=null;
+			aborting=false;
+			abortFinished.set(false);
 			readerThread=null;
 			writerThread=null;
-		}
-
-		
-		if (localReaderThread!=null) {
+			closeCookie=null;
+			closeCode=CLOSE_ABNORMAL;
+			closeReason=null;
+			responseHeaders=null;
+			perMessageDeflate=null;
+			InboundSink localSink=inboundSink;
+			if (localSink!=null) localSink.reopen();
+			
+			// Still holding the lock, so that a close or abort can only come once
+			// the reader (and its count in ioThreads) or the SelectorConnection is
+			// in place to be stopped
 			try {
-				localReaderThread.join();
-			} catch (InterruptedException e) {
-				Thread.currentThread().interrupt();
+				connect();
+			} catch (Throwable t) {
+				// For example the SelectorEngine has been shut down or no thread could
+				// be created.  Must not escape, since the Timer is shared.
+				failure=t;
+				abortFinished.set(true);
 			}
 		}
 		
-		if (localWriterThread!=null) {
-			try {
-				localWriterThread.join();
-			} catch (InterruptedException e) {
-				Thread.currentThread().interrupt();
-			}
+		if (failure!=null) {
+			// CLOSED first, so that a listener may abort or wait for it
+			finishClosed();
+			signalError(failure);
 		}
-
-		setReadyState(CLOSED);
+	}
+	
+	/**
+	 * The application closed or aborted.  Never reconnect from now on.
+	 * @return true if a reconnect was waiting, in which case the WebSocket is now
+	 * CLOSED
+	 */
+	private boolean cancelReconnect() {
+		TimerTask task;
+		synchronized (this) {
+			closeRequested=true;
+			task=reconnectTask;
+			reconnectTask=null;
+		}
+		if (task==null) return false;
+		task.cancel();
+		abortFinished.set(true);
+		finishClosed();
+		return true;
 	}
 	
 	public void waitForReadyState(int targetReadyState) throws InterruptedException {
@@ -336,25 +960,81 @@ public class WebSocket {
 	}
 
 	
+	/**
+	 * Listeners may be added and removed from any thread, including from within a
+	 * listener.  An event that is already being dispatched still goes to the
+	 * listeners that were registered when it started.
+	 */
 	public synchronized void addListener(EventListener l) {
-		if (dispatchingEvent && listeners!=null) {
-			// Make a defensive copy
-			listeners=new ArrayList<WebSocket.EventListener>(listeners);
-		}
-		
-		if (listeners==null) listeners=new ArrayList<WebSocket.EventListener>(2);
-		listeners.add(l);
+		EventListener[] newListeners=new EventListener[listeners.length+1];
+		System.arraycopy(listeners, 0, newListeners, 0, listeners.length);
+		newListeners[listeners.length]=l;
+		listeners=newListeners;
 	}
 	
 	public synchronized void removeListener(EventListener l) {
-		if (listeners!=null) {
-			if (dispatchingEvent) listeners=new ArrayList<WebSocket.EventListener>(listeners);
-			listeners.remove(l);
-		}
+		int index=indexOf(listeners, l);
+		if (index<0) return;
+		EventListener[] newListeners=new EventListener[listeners.length-1];
+		System.arraycopy(listeners, 0, newListeners, 0, index);
+		System.arraycopy(listeners, index+1, newListeners, index, newListeners.length-index);
+		listeners=newListeners;
+	}
+	
+	/**
+	 * Add a listener that receives each message directly.  Delivering a message to
+	 * MessageListeners takes no locks and allocates nothing, which makes this the
+	 * cheaper choice for high message rates.  Messages go to the MessageListeners
+	 * first and then to the EventListeners as EVENT_MESSAGE.
+	 */
+	public synchronized void addMessageListener(MessageListener l) {
+		MessageListener[] newListeners=new MessageListener[messageListeners.length+1];
+		System.arraycopy(messageListeners, 0, newListeners, 0, messageListeners.length);
+		newListeners[messageListeners.length]=l;
+		messageListeners=newListeners;
+	}
+	
+	public synchronized void removeMessageListener(MessageListener l) {
+		int index=indexOf(messageListeners, l);
+		if (index<0) return;
+		MessageListener[] newListeners=new MessageListener[messageListeners.length-1];
+		System.arraycopy(messageListeners, 0, newListeners, 0, index);
+		System.arraycopy(messageListeners, index+1, newListeners, index, newListeners.length-index);
+		messageListeners=newListeners;
+	}
+	
+	/**
+	 * Add a listener that receives messages in batches, see NetConfig for the size
+	 * limits.  Each message is also delivered to the MessageListeners and
+	 * EventListeners as it is read.
+	 */
+	public synchronized void addBatchListener(BatchListener l) {
+		BatchListener[] newListeners=new BatchListener[batchListeners.length+1];
+		System.arraycopy(batchListeners, 0, newListeners, 0, batchListeners.length);
+		newListeners[batchListeners.length]=l;
+		batchListeners=newListeners;
+	}
+	
+	public synchronized void removeBatchListener(BatchListener l) {
+		int index=indexOf(batchListeners, l);
+		if (index<0) return;
+		BatchListener[] newListeners=new BatchListener[batchListeners.length-1];
+		System.arraycopy(batchListeners, 0, newListeners, 0, index);
+		System.arraycopy(batchListeners, index+1, newListeners, index, newListeners.length-index);
+		batchListeners=newListeners;
 	}
 	
 	public synchronized void removeAllListeners() {
-		listeners=null;
+		listeners=NO_LISTENERS;
+		messageListeners=NO_MESSAGE_LISTENERS;
+		batchListeners=NO_BATCH_LISTENERS;
+	}
+	
+	private static int indexOf(Object[] array, Object o) {
+		for (int i=0; i<array.length; i++) {
+			if (array[i]==o) return i;
+		}
+		return -1;
 	}
 	
 	/**
@@ -367,38 +1047,153 @@ public class WebSocket {
 	public void start() {
 		if (started) return;
 		started=true;
-		readerThread=new Thread("WebSocket read " + url) {
+		connect();
+	}
+	
+	private void connect() {
+		SelectorEngine selectorEngine=netConfig.getSelectorEngine();
+		if (selectorEngine!=null) {
+			selectorConnection=selectorEngine.register(this);
+			selectorConnection.start();
+			return;
+		}
+		readerThread=newThread("WebSocket read " + url, new Runnable() {
 			public void run() {
-				runReader();
+				try {
+					runReader();
+				} finally {
+					ioThreadExited();
+				}
 			}
-		};
-		readerThread.start();
+		});
+		ioThreads.incrementAndGet();
+		boolean threadStarted=false;
+		try {
+			readerThread.start();
+			threadStarted=true;
+		} finally {
+			// Nothing will exit to take it back
+			if (!threadStarted) {
+				ioThreads.decrementAndGet();
+				readerThread=null;
+			}
+		}
 	}
 	
 	private void startWriter() {
-		writerThread=new Thread("WebSocket write " + url) {
-			public void run() {
-				runWriter();
+		synchronized (this) {
+			// Aborted during the handshake
+			if (aborting) return;
+			writerThread=newThread("WebSocket write " + url, new Runnable() {
+				public void run() {
+					try {
+						runWriter();
+					} finally {
+						ioThreadExited();
+					}
+				}
+			});
+			ioThreads.incrementAndGet();
+			boolean threadStarted=false;
+			try {
+				writerThread.start();
+				threadStarted=true;
+			} finally {
+				if (!threadStarted) {
+					ioThreads.decrementAndGet();
+					writerThread=null;
+				}
 			}
-		};
-		writerThread.start();
+		}
+	}
+	
+	/**
+	 * Create a thread with the factory of the NetConfig.  The name is only used for
+	 * default platform threads.  A factory names its own.
+	 */
+	private Thread newThread(String name, Runnable runnable) {
+		ThreadFactory threadFactory=netConfig.getThreadFactory();
+		if (threadFactory==null) return new Thread(runnable, name);
+		
+		Thread thread=threadFactory.newThread(runnable);
+		if (thread==null) throw new IllegalStateException("ThreadFactory did not create a thread");
+		return thread;
 	}
 	
 	// -- package private (to protocol implementations)
+	private MaskKeySource maskKeySource;
+	
+	/**
+	 * @return the masking keys for this connection's frames.  Only called by the
+	 * writer.
+	 */
+	MaskKeySource getMaskKeySource() {
+		if (maskKeySource==null) maskKeySource=new MaskKeySource();
+		return maskKeySource;
+	}
+	
 	private byte[] closeCookie;
 	
+	private byte[] requestTemplate;
+	private WireProtocol requestTemplateProtocol;
+	
 	protected Map<String, String> getRequestHeaders() {
 		return requestHeaders;
 	}
+	/**
+	 * @return the encoded constant part of the handshake request built by the
+	 * given protocol on an earlier connect or null
+	 */
+	protected byte[] getRequestTemplate(WireProtocol protocol) {
+		if (protocol!=requestTemplateProtocol) return null;
+		return requestTemplate;
+	}
+	protected void setRequestTemplate(WireProtocol protocol, byte[] requestTemplate) {
+		this.requestTemplateProtocol=protocol;
+		this.requestTemplate=requestTemplate;
+	}
 	protected String[] getRequestedProtocols() {
 		return requestedProtocols;
 	}
-	protected synchronized void setResponseHeaders(Map<String, String> responseHeaders) {
+	protected void setResponseHeaders(Map<String, String> responseHeaders) {
 		this.responseHeaders = responseHeaders;
 	}
+	InboundSink getInboundSink() {
+		return inboundSink;
+	}
+	void setInboundSink(InboundSink inboundSink) {
+		if (started) throw new IllegalStateException();
+		this.inboundSink = inboundSink;
+	}
 	protected MessageQueue getTransmissionQueue() {
 		return transmissionQueue;
 	}
+	/**
+	 * @return the raw channel of a plain (unencrypted) connection that payloads may be
+	 * transferred to directly, bypassing the output stream.  null if the socket was
+	 * not created from a channel (as those of the default SocketFactory are not) or
+	 * is secure.
+	 */
+	protected WritableByteChannel getPayloadChannel() {
+		Socket localSocket=socket;
+		if (localSocket==null || localSocket instanceof SSLSocket) return null;
+		return localSocket.getChannel();
+	}
+	/**
+	 * @return payload size above which inbound messages are streamed.  A
+	 * SelectorEngine never blocks on a message so does not stream.
+	 */
+	protected long getStreamingThreshold() {
+		if (selectorConnection!=null) return Long.MAX_VALUE;
+		return netConfig.getStreamingThreshold();
+	}
+	protected void setPerMessageDeflate(PerMessageDeflate perMessageDeflate) {
+		this.perMessageDeflate = perMessageDeflate;
+	}
+	protected synchronized void setCloseStatus(int closeCode, String closeReason) {
+		this.closeCode=closeCode;
+		this.closeReason=closeReason;
+	}
 	public synchronized byte[] getCloseCookie() {
 		return closeCookie;
 	}
@@ -407,29 +1202,67 @@ public class WebSocket {
 	}
 	
 	// -- internal implementation
+	private WebSocketFuture<WebSocket> openFuture;
+	private WebSocketFuture<Integer> closeFuture;
+	
+	private void completeFutures(int readyState) {
+		WebSocketFuture<WebSocket> localOpenFuture;
+		WebSocketFuture<Integer> localCloseFuture;
+		synchronized (this) {
+			localOpenFuture=openFuture;
+			localCloseFuture=closeFuture;
+		}
+		if (readyState==OPEN) {
+			if (localOpenFuture!=null) localOpenFuture.complete(this);
+		} else {
+			if (localOpenFuture!=null) localOpenFuture.fail(new IOException("WebSocket closed before it opened"));
+			if (localCloseFuture!=null) localCloseFuture.complete(getCloseCode());
+		}
+	}
+	
 	private boolean started;
 	private Thread readerThread, writerThread;
+	
+	/**
+	 * Reader and writer threads that are running.  The last one to exit finishes
+	 * the abort so that nobody has to join them.
+	 */
+	private final AtomicInteger ioThreads=new AtomicInteger();
+	private volatile boolean aborting;
+	private final AtomicBoolean abortFinished=new AtomicBoolean();
+	private TimerTask closeTimeoutTask;
+	
+	/**
+	 * Set by close and abort.  A reconnecting WebSocket only stays closed once the
+	 * application has asked for it.
+	 */
+	private volatile boolean closeRequested;
+	private int reconnectAttempts;
+	private TimerTask reconnectTask;
+	private static final Random RECONNECT_JITTER=new Random();
 	private String[] requestedProtocols;
-	private List<EventListener> listeners;
-	private boolean dispatchingEvent;
+	private static final EventListener[] NO_LISTENERS=new EventListener[0];
+	private static final MessageListener[] NO_MESSAGE_LISTENERS=new MessageListener[0];
+	private static final BatchListener[] NO_BATCH_LISTENERS=new BatchListener[0];
+	
+	/**
+	 * Copied on write so that dispatch can read them without locking
+	 */
+	private volatile EventListener[] listeners=NO_LISTENERS;
+	private volatile MessageListener[] messageListeners=NO_MESSAGE_LISTENERS;
+	private volatile BatchListener[] batchListeners=NO_BATCH_LISTENERS;
+	
+	/**
+	 * Messages read since the last batch was delivered.  Only touched by whatever
+	 * reads the connection.
+	 */
+	private final ArrayList<Message> inboundBatch=new ArrayList<Message>();
+	private long inboundBatchBytes;
 	
 	protected final void signalEvent(Event event) {
-		List<EventListener> listenersCopy;
-		synchronized (this) {
-			dispatchingEvent=true;
-			listenersCopy=listeners;
-		}
-		
-		try {
-			if (listenersCopy!=null) {
-				for (int i=0; i<listenersCopy.size(); i++) {
-					dispatchEvent(event, listenersCopy.get(i));
-				}
-			}
-		} finally {
-			synchronized (this) {
-				dispatchingEvent=false;
-			}
+		EventListener[] listenersCopy=listeners;
+		for (int i=0; i<listenersCopy.length; i++) {
+			dispatchEvent(event, listenersCopy[i]);
 		}
 	}
 	
@@ -443,15 +1276,88 @@ public class WebSocket {
 		signalEvent(event);
 	}
 	
-	protected void signalMessage(Message msg) {
+	protected void signalReconnecting(int attempt, long delay) {
+		if (listeners.length==0) return;
 		Event event=new Event();
 		event.source=this;
+		event.type=EVENT_RECONNECTING;
 		event.readyState=readyState;
-		event.type=EVENT_MESSAGE;
-		event.message=msg;
+		event.reconnectAttempt=attempt;
+		event.reconnectDelay=delay;
 		signalEvent(event);
 	}
 	
+	protected void signalWritability(boolean writable) {
+		Event event=new Event();
+		event.source=this;
+		event.readyState=readyState;
+		event.type=writable ? EVENT_WRITABLE : EVENT_UNWRITABLE;
+		signalEvent(event);
+	}
+	
+	/**
+	 * Deliver a streamed message and block until the listener is done with it
+	 */
+	protected void signalMessageStream(MessageInputStream stream) throws IOException, InterruptedException {
+		// Everything before it first
+		flushInboundBatch();
+		
+		if (listeners.length>0) {
+			Event event=new Event();
+			event.source=this;
+			event.readyState=readyState;
+			event.type=EVENT_MESSAGE_STREAM;
+			event.inputStream=stream;
+			signalEvent(event);
+		} else {
+			// Nobody will ever close it
+			stream.close();
+		}
+		stream.awaitClose();
+	}
+	
+	protected void signalMessage(Message msg) {
+		MessageListener[] messageListenersCopy=messageListeners;
+		for (int i=0; i<messageListenersCopy.length; i++) {
+			dispatchMessage(msg, messageListenersCopy[i]);
+		}
+		
+		// Only build an Event if somebody will receive it
+		if (listeners.length>0) {
+			Event event=new Event();
+			event.source=this;
+			event.readyState=readyState;
+			event.type=EVENT_MESSAGE;
+			event.message=msg;
+			signalEvent(event);
+		}
+		
+		if (batchListeners.length>0) {
+			inboundBatch.add(msg);
+			inboundBatchBytes+=msg.getBytes();
+			if (inboundBatch.size()>=netConfig.getReadBatchMessages() || inboundBatchBytes>=netConfig.getReadBatchBytes()) {
+				flushInboundBatch();
+			}
+		}
+	}
+	
+	/**
+	 * Deliver the messages collected since the last batch to the BatchListeners.
+	 * Called by the reader once nothing more is buffered.
+	 */
+	void flushInboundBatch() {
+		if (inboundBatch.isEmpty()) return;
+		try {
+			BatchListener[] batchListenersCopy=batchListeners;
+			for (int i=0; i<batchListenersCopy.length; i++) {
+				dispatchMessages(inboundBatch, batchListenersCopy[i]);
+			}
+		} finally {
+			inboundBatch.clear();
+			inboundBatchBytes=0;
+		}
+	}
+	
 	/**
 	 * Dispatch an event to the given listener.  Subclasses can do custom thread
 	 * marshalling by overriding this method
@@ -462,18 +1368,61 @@ public class WebSocket {
 		l.handleEvent(event);
 	}
 	
+	/**
+	 * Dispatch a message to the given listener.  Subclasses that marshal events
+	 * onto another thread should override this as well.
+	 * @param message
+	 * @param l
+	 */
+	protected void dispatchMessage(Message message, MessageListener l) {
+		l.handleMessage(this, message);
+	}
+	
+	/**
+	 * Dispatch a batch of messages to the given listener.  The list is reused
+	 * once this returns, so subclasses that hand it to another thread must copy it.
+	 * @param messages
+	 * @param l
+	 */
+	protected void dispatchMessages(List<Message> messages, BatchListener l) {
+		l.handleMessages(this, messages);
+	}
+	
 	
 	// -- IO Management.  Everything from here on runs under either the reader or writer thread
+	// or the event loop of a SelectorEngine
 	private URI uri;
 	private String hostName;
 	private int port;
+	private boolean secure;
+	private volatile SelectorConnection selectorConnection;
 	private SocketFactory socketFactory;
-	private Socket socket;
-	private DataInputStream in;
+	private volatile Socket socket;
+	private FrameInputStream in;
 	private DataOutputStream out;
 	private MessageQueue transmissionQueue=new MessageQueue();
+	private volatile InboundSink inboundSink;
 	
 	private void setupConnection() throws Throwable {
+		resolve();
+		socketFactory=secure ? netConfig.getSecureSocketFactory() : netConfig.getPlainSocketFactory();
+		
+		// Connect the socket
+		socket=socketFactory.createSocket(hostName, port);
+		try {
+			// Buffer the streams to a typical network packet size
+			in=new FrameInputStream(socket.getInputStream(), 1500);
+			out=new FrameOutputStream(socket.getOutputStream(), 1500);
+		} catch (Throwable t) {
+			socket.close();
+			throw t;
+		}
+	}
+	
+	/**
+	 * Work out the host, port and security from the url and add the host header
+	 */
+	void resolve() throws URISyntaxException {
 		uri=new URI(url);
 		
 		// Detect protocol, host, port
@@ -486,57 +1435,201 @@ public class WebSocket {
 			if (port<0) port=80;
 			if (port!=80) hostHeader=hostName + ':' + port;
 			else hostHeader=hostName;
-			socketFactory=netConfig.getPlainSocketFactory();
+			secure=false;
 		} else if ("wss".equalsIgnoreCase(scheme) || "https".equalsIgnoreCase(scheme)) {
 			// Secure
 			if (port<0) port=443;
 			if (port!=443) hostHeader=hostName + ':' + port;
 			else hostHeader=hostName;
-			socketFactory=netConfig.getSecureSocketFactory();
+			secure=true;
 		} else {
 			throw new IllegalArgumentException("Unsupported websocket protocol");
 		}
 		
 		// Add the host header
 		requestHeaders.put("Host", hostHeader);
-		
-		// Connect the socket
-		socket=socketFactory.createSocket(hostName, port);
-		try {
-			// Buffer the streams to a typical network packet size
-			in=new DataInputStream(new BufferedInputStream(socket.getInputStream(), 1500));
-			out=new DataOutputStream(new BufferedOutputStream(socket.getOutputStream(), 1500));
-		} catch (Throwable t) {
-			socket.close();
-			throw t;
-		}
+	}
+	URI getUri() {
+		return uri;
+	}
+	String getHostName() {
+		return hostName;
+	}
+	int getPort() {
+		return port;
+	}
+	boolean isSecure() {
+		return secure;
 	}
 	
-
+	
 	private void pumpSocketInput() throws Exception {
-		for (;;) {
-			Message message=wireProtocol.readMessage(this, in);
-			if (message==null) break;
-			signalMessage(message);
+		InboundSink localSink=inboundSink;
+		boolean scanSupported=true;
+		try {
+			for (;;) {
+				if (localSink!=null && localSink.isFull()) {
+					// Stop reading from the socket until there is room
+					flushInboundBatch();
+					localSink.awaitSpace();
+				}
+				Message message=wireProtocol.readMessage(this, in);
+				if (message==null) break;
+				signalMessage(message);
+				if (localSink!=null) localSink.add(message);
+				
+				// Keep batching only while the next message has arrived in full, so
+				// that the next read does not block with messages held back
+				if (scanSupported) {
+					try {
+						if (in.scanBuffered(wireProtocol, this)==0) flushInboundBatch();
+					} catch (UnsupportedOperationException e) {
+						// A protocol without scanFrames.  Deliver every message right away.
+						scanSupported=false;
+					}
+				}
+				if (!scanSupported) flushInboundBatch();
+			}
+		} finally {
+			flushInboundBatch();
 		}
 	}
 	
 	private void runReader() {
+		// Closed while a reconnect was starting
+		if (aborting) return;
 		setReadyState(CONNECTING);
 		
 		// Before starting the main loop, we need to resolve the URI
 		try {
 			setupConnection();
+			if (aborting) {
+				// Aborted while connecting.  Close the socket that was just made.
+				disconnect();
+				return;
+			}
 			wireProtocol.performHandshake(this, uri, in, out);
 			startWriter();
 			pumpSocketInput();
-			abort();
+			disconnect();
 		} catch (Throwable t) {
 			exceptionalShutdown(t);
 			return;
 		}
 	}
 	
+	/**
+	 * Write one message, splitting it into fragments if it is larger than the
+	 * configured fragment size.  Queued control messages go out between fragments.
+	 * @return false if no more messages should be written
+	 */
+	private boolean transmit(Message message, DataOutputStream out) throws Exception {
+		int fragmentSize=netConfig.getFragmentSize();
+		int length=message.getBytes();
+		if (fragmentSize==0 || length<=fragmentSize || !message.isUserMessage() ||
+				!wireProtocol.supportsFragments(this, message)) {
+			return wireProtocol.sendMessage(this, out, message);
+		}
+		
+		for (int offset=0; ; offset+=fragmentSize) {
+			int count=Math.min(fragmentSize, length-offset);
+			boolean last=offset+count>=length;
+			wireProtocol.sendFragment(this, out, message, offset, count, last);
+			if (last) return true;
+			
+			// The message is still claimed at the head of its lane so only
+			// control messages can be taken in the meantime
+			boolean sentControl=false;
+			Message control;
+			while ((control=transmissionQueue.peekControl())!=null) {
+				boolean shouldContinue=wireProtocol.sendMessage(this, out, control);
+				transmissionQueue.remove(control);
+				if (!shouldContinue) return false;
+				sentControl=true;
+			}
+			if (sentControl) out.flush();
+		}
+	}
+	
+	/**
+	 * Written messages with a send future that complete on the next flush.  Only
+	 * touched by the writer.
+	 */
+	private final ArrayList<Message> awaitingFlush=new ArrayList<Message>();
+	
+	/**
+	 * Complete the send futures of everything written so far.  Called once the
+	 * output has been flushed to the socket.
+	 */
+	void completeFlushed() {
+		int count=awaitingFlush.size();
+		if (count==0) return;
+		for (int i=0; i<count; i++) {
+			Message message=awaitingFlush.get(i);
+			message.getSendFuture().complete(message);
+		}
+		awaitingFlush.clear();
+	}
+	
+	/**
+	 * Fail the send futures of messages that were not flushed, and of everything
+	 * still queued, once nothing writes anymore
+	 */
+	private void failPendingSends() {
+		failUnflushed();
+		
+		IOException cause=null;
+		Message message;
+		while ((message=transmissionQueue.peekNext())!=null) {
+			transmissionQueue.remove(message);
+			WebSocketFuture<Message> future=message.getSendFuture();
+			if (future!=null) {
+				if (cause==null) cause=new IOException("WebSocket closed before the message was sent");
+				future.fail(cause);
+			}
+		}
+	}
+	
+	/**
+	 * Fail the send futures of messages written since the last flush
+	 */
+	private void failUnflushed() {
+		IOException cause=null;
+		for (int i=0; i<awaitingFlush.size(); i++) {
+			if (cause==null) cause=new IOException("WebSocket closed before the message was sent");
+			awaitingFlush.get(i).getSendFuture().fail(cause);
+		}
+		awaitingFlush.clear();
+	}
+	
+	/**
+	 * Encode everything already queued (up to the batch budget) into the
+	 * buffered stream and then flush once
+	 * @param next the claimed head of the queue
+	 * @param out
+	 * @return false if no more messages should be written
+	 */
+	boolean writeBatch(Message next, DataOutputStream out) throws Exception {
+		int maxBatchMessages=netConfig.getWriteBatchMessages();
+		long maxBatchBytes=netConfig.getWriteBatchBytes();
+		boolean shouldContinue=true;
+		int batchMessages=0;
+		long batchBytes=0;
+		while (next!=null) {
+			shouldContinue=transmit(next, out);
+			transmissionQueue.remove(next);
+			if (next.getSendFuture()!=null) awaitingFlush.add(next);
+			if (!shouldContinue) break;
+			
+			batchMessages++;
+			batchBytes+=next.getBytes();
+			if (batchMessages>=maxBatchMessages || batchBytes>=maxBatchBytes) break;
+			next=transmissionQueue.peekNext();
+		}
+		out.flush();
+		return shouldContinue;
+	}
+	
 	private void runWriter() {
 		//System.out.println("Writer starting");
 		for (;;) {
@@ -549,8 +1642,8 @@ public class WebSocket {
 			}
 			
 			try {
-				boolean shouldContinue=wireProtocol.sendMessage(this, out, next);
-				transmissionQueue.remove(next);
+				boolean shouldContinue=writeBatch(next, out);
+				completeFlushed();
 				if (!shouldContinue) break;
 			} catch (Throwable t) {
 				// Replace the message
@@ -564,8 +1657,8 @@ public class WebSocket {
 	/**
 	 * Called on exception.  Fires events and shuts everything down.
 	 */
-	private void exceptionalShutdown(Throwable t) {
+	void exceptionalShutdown(Throwable t) {
 		signalError(t);
-		abort();
+		disconnect();
 	}
 }
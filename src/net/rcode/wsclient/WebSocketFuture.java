@@ -0,0 +1,179 @@
+package net.rcode.wsclient;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicReferenceFieldUpdater;
+
+/**
+ * Result of an asynchronous WebSocket operation.  Besides the blocking Future
+ * methods, listeners can be added that are called once it completes.
+ * <p>
+ * Completing takes a single compare and set.  The monitor is only taken when
+ * somebody is waiting in get or has added a listener, so tracking every sent
+ * message this way stays cheap.
+ * </p>
+ * 
+ * @author stella
+ *
+ */
+public class WebSocketFuture<V> implements Future<V> {
+	public static interface Listener<V> {
+		/**
+		 * Called once on the thread that completed the future, or on the thread
+		 * adding the listener if it already was
+		 */
+		public void operationComplete(WebSocketFuture<V> future);
+	}
+	
+	/**
+	 * Outcome held in result when the operation failed
+	 */
+	private static final class Failure {
+		final Throwable cause;
+		Failure(Throwable cause) {
+			this.cause=cause;
+		}
+	}
+	private static final Object NULL_RESULT=new Object();
+	
+	@SuppressWarnings("rawtypes")
+	private static final AtomicReferenceFieldUpdater<WebSocketFuture, Object> RESULT=
+		AtomicReferenceFieldUpdater.newUpdater(WebSocketFuture.class, Object.class, "result");
+	
+	/**
+	 * null until completed
+	 */
+	private volatile Object result;
+	/**
+	 * Set (under the monitor) once a thread waits or a listener is added
+	 */
+	private volatile boolean observed;
+	private List<Listener<V>> listeners;
+	
+	// -- completion
+	/**
+	 * @return false if already completed
+	 */
+	boolean complete(V value) {
+		return finish(value==null ? NULL_RESULT : value);
+	}
+	
+	/**
+	 * @return false if already completed
+	 */
+	boolean fail(Throwable cause) {
+		return finish(new Failure(cause));
+	}
+	
+	private boolean finish(Object outcome) {
+		if (!RESULT.compareAndSet(this, null, outcome)) return false;
+		if (!observed) return true;
+		
+		List<Listener<V>> localListeners;
+		synchronized (this) {
+			notifyAll();
+			localListeners=listeners;
+			listeners=null;
+		}
+		if (localListeners!=null) {
+			for (int i=0; i<localListeners.size(); i++) {
+				notify(localListeners.get(i));
+			}
+		}
+		return true;
+	}
+	
+	// -- public api
+	public void addListener(Listener<V> listener) {
+		if (result==null) {
+			synchronized (this) {
+				observed=true;
+				if (result==null) {
+					if (listeners==null) listeners=new ArrayList<Listener<V>>(2);
+					listeners.add(listener);
+					return;
+				}
+			}
+		}
+		notify(listener);
+	}
+	
+	private void notify(Listener<V> listener) {
+		try {
+			listener.operationComplete(this);
+		} catch (RuntimeException e) {
+			// Same treatment as a throwing event listener
+			e.printStackTrace();
+		}
+	}
+	
+	/**
+	 * Operations can not be cancelled once started
+	 * @return false
+	 */
+	public boolean cancel(boolean mayInterruptIfRunning) {
+		return false;
+	}
+	
+	public boolean isCancelled() {
+		return false;
+	}
+	
+	public boolean isDone() {
+		return result!=null;
+	}
+	
+	/**
+	 * @return true if completed without failure
+	 */
+	public boolean isSuccess() {
+		Object localResult=result;
+		return localResult!=null && !(localResult instanceof Failure);
+	}
+	
+	/**
+	 * @return the reason the operation failed or null if it has not (yet)
+	 */
+	public Throwable getCause() {
+		Object localResult=result;
+		return localResult instanceof Failure ? ((Failure)localResult).cause : null;
+	}
+	
+	public V get() throws InterruptedException, ExecutionException {
+		if (result==null) {
+			synchronized (this) {
+				observed=true;
+				while (result==null) {
+					wait();
+				}
+			}
+		}
+		return report();
+	}
+	
+	public V get(long timeout, TimeUnit unit) throws InterruptedException, ExecutionException, TimeoutException {
+		if (result==null) {
+			long deadline=System.nanoTime() + unit.toNanos(timeout);
+			synchronized (this) {
+				observed=true;
+				while (result==null) {
+					long remaining=deadline-System.nanoTime();
+					if (remaining<=0) throw new TimeoutException();
+					TimeUnit.NANOSECONDS.timedWait(this, remaining);
+				}
+			}
+		}
+		return report();
+	}
+	
+	@SuppressWarnings("unchecked")
+	private V report() throws ExecutionException {
+		Object localResult=result;
+		if (localResult instanceof Failure) throw new ExecutionException(((Failure)localResult).cause);
+		return localResult==NULL_RESULT ? null : (V)localResult;
+	}
+}
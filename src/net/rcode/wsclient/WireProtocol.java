@@ -3,8 +3,10 @@ package net.rcode.wsclient;
 import java.io.ByteArrayOutputStream;
 import java.io.DataInputStream;
 import java.io.DataOutputStream;
+import java.io.EOFException;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
 import java.net.URI;
 import java.nio.ByteBuffer;
 import java.nio.CharBuffer;
@@ -13,6 +15,7 @@ import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 import java.util.Arrays;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.Map;
 import java.util.Random;
 import java.util.regex.Pattern;
@@ -33,25 +36,171 @@ public class WireProtocol {
 		throw new UnsupportedOperationException();
 	}
 	
+	/**
+	 * Encode a message onto the output stream.  Implementations should not flush the
+	 * stream.  The writer coalesces as many queued messages as its batch budget allows
+	 * and flushes once per batch.
+	 * @param socket
+	 * @param output
+	 * @param message
+	 * @return false if this was the last message that should be written (ie. a close)
+	 * @throws Exception
+	 */
 	public boolean sendMessage(WebSocket socket, DataOutputStream output, Message message) throws Exception {
 		throw new UnsupportedOperationException();
 	}
 	
+	/**
+	 * @return true if sendFragment can be used for the message
+	 */
+	public boolean supportsFragments(WebSocket socket, Message message) {
+		return false;
+	}
+	
+	/**
+	 * Encode part of a user message as one fragment.  The writer calls this with
+	 * consecutive ranges that cover the whole message and may send control messages
+	 * between the calls.  Implementations should not flush the stream.
+	 * @param socket
+	 * @param output
+	 * @param message
+	 * @param offset offset of the fragment within the payload.  0 for the first.
+	 * @param length
+	 * @param last true if this fragment completes the message
+	 * @throws Exception
+	 */
+	public void sendFragment(WebSocket socket, DataOutputStream output, Message message,
+			int offset, int length, boolean last) throws Exception {
+		throw new UnsupportedOperationException();
+	}
+	
 	public void initiateClose(WebSocket socket) {
 		socket.abort();
 	}
 	
+	/**
+	 * Begin closing with a status code and reason.  Protocols without close status
+	 * ignore them.
+	 * @param socket
+	 * @param code
+	 * @param reason may be null
+	 */
+	public void initiateClose(WebSocket socket, int code, String reason) {
+		initiateClose(socket);
+	}
+	
+	/**
+	 * Perform the opening handshake on blocking streams
+	 */
 	public void performHandshake(WebSocket socket, URI uri, DataInputStream in, DataOutputStream out) throws Exception {
+		Object state=startHandshake(socket, uri, out);
+		out.flush();
+		finishHandshake(socket, in, state);
+	}
+	
+	/**
+	 * Write the client side of the opening handshake.  Implementations should not
+	 * flush the stream.
+	 * @param socket
+	 * @param uri
+	 * @param out
+	 * @return whatever finishHandshake needs to verify the response
+	 * @throws Exception
+	 */
+	public Object startHandshake(WebSocket socket, URI uri, DataOutputStream out) throws Exception {
 		String key1=generateKey();
 		String key2=generateKey();
 		byte[] quad=new byte[8];
 		random.nextBytes(quad);
 		
-		Map<String,String> headerMap=socket.getRequestHeaders();
-		headerMap.put("Connection", "Upgrade");
-		headerMap.put("Upgrade", "WebSocket");
-		headerMap.put("Sec-WebSocket-Key1", key1);
-		headerMap.put("Sec-WebSocket-Key2", key2);
+		writeRequest(socket, uri, out,
+				"Sec-WebSocket-Key1", key1,
+				"Sec-WebSocket-Key2", key2);
+		out.write(quad);
+		return new Object[] { key1, key2, quad };
+	}
+	
+	/**
+	 * Read and verify the server side of the opening handshake and go to OPEN
+	 * @param socket
+	 * @param in
+	 * @param state the value returned by startHandshake
+	 * @throws Exception
+	 */
+	public void finishHandshake(WebSocket socket, DataInputStream in, Object state) throws Exception {
+		Object[] keys=(Object[])state;
+		readResponse(socket, in);
+		
+		// Now read the handshake from the input and verify
+		byte[] serverHandshake=new byte[16];
+		in.readFully(serverHandshake);
+		if (socket.isVerifyHandshake())
+			validateHandshake((String)keys[0], (String)keys[1], (byte[])keys[2], serverHandshake);
+		
+		// And finally ready to go
+		socket.setReadyState(WebSocket.OPEN);
+	}
+	
+	/**
+	 * Used by the SelectorEngine, which only calls finishHandshake once the whole
+	 * response has arrived.
+	 * @param socket
+	 * @param buffer received bytes
+	 * @param offset
+	 * @param length
+	 * @return the length of the handshake response at offset or -1 if it is not
+	 * complete
+	 */
+	public int scanHandshake(WebSocket socket, byte[] buffer, int offset, int length) {
+		// The headers are followed by the 16 byte digest
+		int headerLength=scanHeaders(buffer, offset, length);
+		if (headerLength<0 || length-headerLength<16) return -1;
+		return headerLength+16;
+	}
+	
+	/**
+	 * Used by the SelectorEngine, which reads from memory and must never have
+	 * readMessage run out of input partway through a frame or a fragmented message.
+	 * Find how much of the received input readMessage can be given.  When the next
+	 * frame is one that readMessage will reject, it is enough for its header to be
+	 * complete.
+	 * @param socket
+	 * @param buffer received bytes
+	 * @param offset
+	 * @param length
+	 * @return the number of bytes at offset that end on a boundary between messages
+	 * (possibly 0)
+	 */
+	public int scanFrames(WebSocket socket, byte[] buffer, int offset, int length) {
+		throw new UnsupportedOperationException(getClass().getSimpleName() + " can not be used with a SelectorEngine");
+	}
+	
+	/**
+	 * @return the length of the status line and headers up to and including the
+	 * empty line or -1 if it has not all been received.  Once more has been
+	 * received than readResponse would accept, the whole length.
+	 */
+	protected static int scanHeaders(byte[] buffer, int offset, int length) {
+		int end=offset+length;
+		for (int i=offset; i<end; i++) {
+			if (buffer[i]!='\n') continue;
+			if (i+1<end && buffer[i+1]=='\n') return i+2-offset;
+			if (i+2<end && buffer[i+1]=='\r' && buffer[i+2]=='\n') return i+3-offset;
+		}
+		if (length>MAX_RESPONSE_LINE*(MAX_RESPONSE_HEADERS+1)) return length;
+		return -1;
+	}
+	
+	/**
+	 * Add the headers that are the same on every handshake of a socket.  They become
+	 * part of the request template, so anything that changes per connection (keys,
+	 * nonces) must be passed to writeRequest instead.
+	 * @param socket
+	 * @param headers a copy of the socket's request headers
+	 */
+	protected void addRequestHeaders(WebSocket socket, Map<String,String> headers) {
+		headers.put("Connection", "Upgrade");
+		headers.put("Upgrade", "WebSocket");
 		String[] requestedProtocols=socket.getRequestedProtocols();
 		if (requestedProtocols!=null && requestedProtocols.length>0) {
 			StringBuilder joinedProtocol=new StringBuilder();
@@ -59,64 +208,177 @@ public class WireProtocol {
 				if (joinedProtocol.length()>0) joinedProtocol.append(' ');
 				joinedProtocol.append(protocol);
 			}
-			headerMap.put("Sec-WebSocket-Protocol", joinedProtocol.toString());
+			headers.put("Sec-WebSocket-Protocol", joinedProtocol.toString());
 		}
+	}
+	
+	/**
+	 * Write the GET request line and the socket's request headers followed by
+	 * the given per connection headers.  Everything but the per connection headers
+	 * is encoded once and kept on the socket for later handshakes.
+	 * @param socket
+	 * @param uri
+	 * @param out
+	 * @param dynamicHeaders alternating names and values.  A null value skips the header.
+	 * @throws IOException
+	 */
+	protected void writeRequest(WebSocket socket, URI uri, OutputStream out, String... dynamicHeaders) throws IOException {
+		byte[] template=socket.getRequestTemplate(this);
+		if (template==null) {
+			template=buildRequestTemplate(socket, uri);
+			socket.setRequestTemplate(this, template);
+		}
+		out.write(template);
 		
-		// Build the request
+		StringBuilder request=new StringBuilder(128);
+		for (int i=0; i<dynamicHeaders.length; i+=2) {
+			if (dynamicHeaders[i+1]==null) continue;
+			request.append(dynamicHeaders[i]).append(": ").append(dynamicHeaders[i+1]).append("\r\n");
+		}
+		request.append("\r\n");
+		
+		//System.out.println("Sending request \n'" + request + "'");
+		out.write(Util.getUTF8Bytes(request));
+	}
+	
+	private byte[] buildRequestTemplate(WebSocket socket, URI uri) {
 		String path=uri.getRawPath();
-		if (path.length()==0) path="/";	// Deal with malformed root
+		if (path==null || path.length()==0) path="/";	// Deal with malformed root
 		if (uri.getRawQuery()!=null) {
 			path+='?' + uri.getRawQuery();
 		}
-
-		StringBuilder request=new StringBuilder(1500);
+		
+		Map<String,String> headers=new LinkedHashMap<String, String>(socket.getRequestHeaders());
+		addRequestHeaders(socket, headers);
+		
+		StringBuilder request=new StringBuilder(512);
 		request.append("GET ").append(path).append(" HTTP/1.1\r\n");
-		for (Map.Entry<String, String> entry: headerMap.entrySet()) {
+		for (Map.Entry<String, String> entry: headers.entrySet()) {
 			request.append(entry.getKey());
 			request.append(": ");
 			request.append(entry.getValue());
 			request.append("\r\n");
 		}
-		request.append("\r\n");
-		
-		//System.out.println("Sending request \n'" + request + "'");
-		out.write(Util.getUTF8Bytes(request));
-		//out.flush();	// Give proxys a better chance of dealing with what follows
-		out.write(quad);
-		out.flush();
+		return Util.getUTF8Bytes(request);
+	}
+	
+	/**
+	 * Read and check the status line, then read the response headers and store them
+	 * on the socket.  Works on the raw bytes of each line in a single pass.  Repeated
+	 * headers are joined with a comma.
+	 * @param socket
+	 * @param in
+	 * @return the response headers with lower case names
+	 * @throws IOException
+	 */
+	protected Map<String,String> readResponse(WebSocket socket, InputStream in) throws IOException {
+		ResponseLineReader reader=new ResponseLineReader();
 		
 		// Read the HTTP status line
-		String statusLine=readLine(in);
-		if (!VERIFY_STATUSLINE_PATTERN.matcher(statusLine).find())
-			throw new IOException("Bad status line from server: " + statusLine);
+		int length=reader.readLine(in);
+		if (!isSwitchingProtocols(reader.line, length))
+			throw new IOException("Bad status line from server: " + Util.fromUTF8Bytes(reader.line, 0, length));
 		
 		// Read each header line until we get an empty
 		Map<String,String> responseHeaders=new HashMap<String, String>();
+		int headerCount=0;
 		for (;;) {
-			String headerLine=readLine(in);
-			if (headerLine.length()==0) break;	// End of headers
-			int colonPos=headerLine.indexOf(": ");
-			if (colonPos<0) {
+			length=reader.readLine(in);
+			if (length==0) break;	// End of headers
+			if (++headerCount>MAX_RESPONSE_HEADERS) throw new IOException("Too many headers in response");
+			
+			byte[] line=reader.line;
+			int colonPos=0;
+			while (colonPos<length && line[colonPos]!=':') colonPos++;
+			int nameEnd=colonPos;
+			while (nameEnd>0 && isWhitespace(line[nameEnd-1])) nameEnd--;
+			if (colonPos==length || nameEnd==0) {
 				throw new IOException("Illegal HTTP header in response");
 			}
 			
-			String name=headerLine.substring(0, colonPos), value=headerLine.substring(colonPos+2);
-			responseHeaders.put(name.toLowerCase(), value);
+			// Names are tokens, so ASCII
+			char[] nameChars=new char[nameEnd];
+			for (int i=0; i<nameEnd; i++) {
+				int c=line[i]&0xff;
+				if (c>='A' && c<='Z') c+='a'-'A';
+				nameChars[i]=(char)c;
+			}
+			String name=new String(nameChars);
+			
+			int valueStart=colonPos+1, valueEnd=length;
+			while (valueStart<valueEnd && isWhitespace(line[valueStart])) valueStart++;
+			while (valueEnd>valueStart && isWhitespace(line[valueEnd-1])) valueEnd--;
+			String value=Util.fromUTF8Bytes(line, valueStart, valueEnd-valueStart).toString();
+			
+			String previous=responseHeaders.put(name, value);
+			if (previous!=null) responseHeaders.put(name, previous + ", " + value);
 		}
 		
-		
 		socket.setResponseHeaders(responseHeaders);
+		return responseHeaders;
+	}
+	
+	private static final int MAX_RESPONSE_LINE=8192;
+	private static final int MAX_RESPONSE_HEADERS=100;
+	
+	/**
+	 * @return true for "HTTP/<version> 101" followed by a space or the end of the line
+	 */
+	private static boolean isSwitchingProtocols(byte[] line, int length) {
+		if (length<12 || line[0]!='H' || line[1]!='T' || line[2]!='T' || line[3]!='P' || line[4]!='/')
+			return false;
+		int spacePos=5;
+		while (spacePos<length && line[spacePos]!=' ') spacePos++;
+		if (spacePos==5 || spacePos+4>length) return false;
+		return line[spacePos+1]=='1' && line[spacePos+2]=='0' && line[spacePos+3]=='1' &&
+			(spacePos+4==length || line[spacePos+4]==' ');
+	}
+	
+	private static boolean isWhitespace(byte b) {
+		return b==' ' || b=='\t';
+	}
+	
+	/**
+	 * Reads LF terminated lines into one buffer that is reused for every line of a
+	 * response.  A CR before the LF is dropped.
+	 */
+	private static class ResponseLineReader {
+		byte[] line=new byte[256];
 		
-		// Now read the handshake from the input and verify
-		byte[] serverHandshake=new byte[16];
-		in.readFully(serverHandshake);
-		if (socket.isVerifyHandshake())
-			validateHandshake(key1, key2, quad, serverHandshake);
+		/**
+		 * @return the length of the line in the line buffer
+		 */
+		int readLine(InputStream in) throws IOException {
+			int length;
+			if (in instanceof FrameInputStream) {
+				FrameInputStream frameInput=(FrameInputStream)in;
+				length=frameInput.scanUntil('\n', MAX_RESPONSE_LINE);
+				ensureCapacity(length);
+				frameInput.copyScanned(line, length);
+			} else {
+				length=0;
+				for (;;) {
+					int b=in.read();
+					if (b<0) throw new EOFException("Short line reading response");
+					if (b=='\n') break;
+					if (length>=MAX_RESPONSE_LINE) throw new IOException("Response line too long");
+					ensureCapacity(length+1);
+					line[length++]=(byte)b;
+				}
+			}
+			
+			if (length>0 && line[length-1]=='\r') length--;
+			return length;
+		}
 		
-		// And finally ready to go
-		socket.setReadyState(WebSocket.OPEN);
+		private void ensureCapacity(int capacity) {
+			if (capacity<=line.length) return;
+			byte[] grown=new byte[Math.max(capacity, line.length*2)];
+			System.arraycopy(line, 0, grown, 0, line.length);
+			line=grown;
+		}
 	}
-
+	
 	/**
 	 * Validate the handshake per the spec.  Really you can't make this stuff up.  Implementation
 	 * of the most obscure security measures to guard access to a public park follows.
@@ -208,7 +470,8 @@ public class WireProtocol {
 	 * decoded as UTF-8.  It will actually accept just a naked LF and ignore the preceeding CR
 	 * if present.
 	 * <p>
-	 * This method presumes that the stream supports mark/reset semantics.
+	 * This method presumes that the stream supports mark/reset semantics.  The handshake
+	 * no longer uses it (see readResponse).
 	 * 
 	 * @param in
 	 * @return String
@@ -4,8 +4,8 @@ import java.io.DataInputStream;
 import java.io.DataOutputStream;
 import java.io.EOFException;
 import java.io.IOException;
-import java.net.URI;
 import java.util.Arrays;
+import java.util.Map;
 
 /**
  * Implement WebSocket protocol draft 03 (numbering reset due to change in working group -
@@ -24,10 +24,9 @@ public class WireProtocolDraft03 extends WireProtocol {
 	}
 	
 	@Override
-	public void performHandshake(WebSocket socket, URI uri, DataInputStream in,
-			DataOutputStream out) throws Exception {
-		socket.getRequestHeaders().put("Sec-WebSocket-Draft", "2");
-		super.performHandshake(socket, uri, in, out);
+	protected void addRequestHeaders(WebSocket socket, Map<String, String> headers) {
+		super.addRequestHeaders(socket, headers);
+		headers.put("Sec-WebSocket-Draft", "2");
 	}
 	
 	@Override
@@ -39,13 +38,19 @@ public class WireProtocolDraft03 extends WireProtocol {
 				socket.setReadyState(WebSocket.CLOSING);
 			}
 			socket.setCloseCookie(cookie);
-			socket.getTransmissionQueue().addTail(
+			socket.getTransmissionQueue().addLast(
 					new Message(Message.OPCODE_CLOSE, cookie, false));
 		}
 	}
 	
 	@Override
 	public Message readMessage(WebSocket socket, DataInputStream input) throws Exception {
+		// Reassembly of a fragmented message.  Control frames may arrive between
+		// the fragments and are handled as they come.
+		int assemblyOpcode=-1;
+		byte[] assembly=null;
+		int assemblyLength=0;
+		
 		for (;;) {
 			int header1, header2;
 			try {
@@ -62,21 +67,72 @@ public class WireProtocolDraft03 extends WireProtocol {
 				throw new IOException("Protocol error");
 			}
 			
-			if ((header1&0x80)!=0) {
-				// Fragment - handle specially
-				throw new IOException("Fragments not yet supported");
+			boolean more=(header1&0x80)!=0;
+			int opcode=header1&0x0f;
+			boolean control=opcode==Message.OPCODE_CLOSE || opcode==Message.OPCODE_PING ||
+				opcode==Message.OPCODE_PONG;
+			if (control) {
+				if (more) throw new IOException("Protocol error.  Fragmented control frame");
+			} else if (opcode==Message.OPCODE_CONTINUATION) {
+				if (assemblyOpcode<0) throw new IOException("Protocol error.  Unexpected continuation frame");
+			} else if (assemblyOpcode>=0) {
+				throw new IOException("Protocol error.  Expected continuation frame");
 			}
 			
-			int opcode=header1&0x0f;
-			int length=header2;
-			if (length==126) {
+			long longLength=header2;
+			if (longLength==126) {
 				// Two bytes of length follow
-				length=input.readUnsignedShort();
-			} else if (length==127) {
+				longLength=input.readUnsignedShort();
+			} else if (longLength==127) {
 				// 8 bytes of length follow
-				long longLength=input.readLong();
-				if (longLength>Integer.MAX_VALUE) throw new IOException("Message length too long");
-				length=(int)longLength;
+				longLength=input.readLong();
+				if (longLength<0) throw new IOException("Message length too long");
+			}
+			
+			// Large data frames can be streamed to the listener without buffering
+			if (!more && (opcode==Message.OPCODE_TEXT || opcode==Message.OPCODE_BINARY) &&
+					longLength>socket.getStreamingThreshold()) {
+				socket.signalMessageStream(new MessageInputStream(input, opcode, longLength));
+				continue;
+			}
+			
+			if (longLength>Integer.MAX_VALUE) throw new IOException("Message length too long");
+			int length=(int)longLength;
+			int maxFrameSize=socket.getNetConfig().getMaxFrameSize();
+			if (length>maxFrameSize) throw new IOException("Frame exceeds maximum size of " + maxFrameSize);
+			
+			if (more || opcode==Message.OPCODE_CONTINUATION) {
+				if (opcode!=Message.OPCODE_CONTINUATION) assemblyOpcode=opcode;
+				
+				int maxMessageSize=socket.getNetConfig().getMaxMessageSize();
+				if (length>maxMessageSize-assemblyLength) {
+					throw new IOException("Message exceeds maximum size of " + maxMessageSize);
+				}
+				
+				int required=assemblyLength + length;
+				if (assembly==null || required>assembly.length) {
+					int capacity=assembly==null ? 0 : assembly.length;
+					capacity=(int)Math.min(Math.max((long)capacity * 2, required), maxMessageSize);
+					byte[] grown=new byte[capacity];
+					if (assemblyLength>0) System.arraycopy(assembly, 0, grown, 0, assemblyLength);
+					assembly=grown;
+				}
+				input.readFully(assembly, assemblyLength, length);
+				assemblyLength=required;
+				
+				if (more) continue;
+				return new Message(assemblyOpcode, assembly, assemblyLength, null);
+			}
+			
+			// Data frames can be read into a pooled buffer.  Control frames are small
+			// and some are echoed back, so they get their own array.
+			if (opcode==Message.OPCODE_TEXT || opcode==Message.OPCODE_BINARY) {
+				BufferPool pool=socket.getNetConfig().getBufferPool();
+				if (pool!=null) {
+					byte[] buffer=pool.acquire(length);
+					input.readFully(buffer, 0, length);
+					return new Message(opcode, buffer, length, pool);
+				}
 			}
 			
 			// Read the contents
@@ -105,7 +161,9 @@ public class WireProtocolDraft03 extends WireProtocol {
 					socket.getTransmissionQueue().addHead(
 						new Message(Message.OPCODE_CLOSE, contents, false));
 					
-					// The writer will close the queue when it is done.  Just wait for it.
+					// The writer will close the queue when it is done.  Just wait for it,
+					// for no longer than the close timeout.
+					socket.setReadyState(WebSocket.CLOSING);
 					int expectClose=input.read();
 					if (expectClose!=-1) throw new IOException("Protocol error.  Expected EOF.  Got " + expectClose);
 					return null;
@@ -121,14 +179,82 @@ public class WireProtocolDraft03 extends WireProtocol {
 		}
 	}
 	
+	@Override
+	public int scanFrames(WebSocket socket, byte[] buffer, int offset, int length) {
+		int maxFrameSize=socket.getNetConfig().getMaxFrameSize();
+		int maxMessageSize=socket.getNetConfig().getMaxMessageSize();
+		int pos=offset, end=offset+length, boundary=offset;
+		boolean assembling=false;
+		long assemblyLength=0;
+		while (end-pos>=2) {
+			int header1=buffer[pos]&0xff, header2=buffer[pos+1]&0xff;
+			if ((header2&0x80)!=0) return pos+2-offset;	// Rejected on the first two bytes
+			
+			int headerLength=2;
+			long payloadLength=header2;
+			if (payloadLength==126) {
+				headerLength=4;
+				if (end-pos<headerLength) break;
+				payloadLength=(buffer[pos+2]&0xff)<<8 | (buffer[pos+3]&0xff);
+			} else if (payloadLength==127) {
+				headerLength=10;
+				if (end-pos<headerLength) break;
+				payloadLength=0;
+				for (int i=2; i<10; i++) payloadLength=payloadLength<<8 | (buffer[pos+i]&0xff);
+			}
+			int headerEnd=pos+headerLength;
+			
+			boolean more=(header1&0x80)!=0;
+			int opcode=header1&0x0f;
+			boolean control=opcode==Message.OPCODE_CLOSE || opcode==Message.OPCODE_PING ||
+				opcode==Message.OPCODE_PONG;
+			boolean fragment=!control && (more || opcode==Message.OPCODE_CONTINUATION);
+			if (payloadLength<0 || payloadLength>maxFrameSize) return headerEnd-offset;
+			if (fragment) {
+				assemblyLength+=payloadLength;
+				if (assemblyLength>maxMessageSize) return headerEnd-offset;
+			}
+			if (end-headerEnd<payloadLength) break;
+			
+			pos=headerEnd+(int)payloadLength;
+			if (!control) {
+				assembling=more;
+				if (!more) assemblyLength=0;
+			}
+			if (!assembling) boundary=pos;
+		}
+		return boundary-offset;
+	}
+	
 	@Override
 	public boolean sendMessage(WebSocket socket, DataOutputStream out, Message message) throws Exception {
 		int opcode=message.getOpcode();
-		byte[] data=message.getMessageData();
-		if (data==null) return true;
+		writeHeader(out, opcode&0xf, message.getBytes());
+		message.writePayload(out, socket.getPayloadChannel());
+		
+		// Shutdown transmission
+		if (opcode==Message.OPCODE_CLOSE) {
+			return false;
+		}
 		
-		int length=data.length;
-		int header1=opcode&0xf;
+		return true;
+	}
+	
+	@Override
+	public boolean supportsFragments(WebSocket socket, Message message) {
+		return true;
+	}
+	
+	@Override
+	public void sendFragment(WebSocket socket, DataOutputStream out, Message message,
+			int offset, int length, boolean last) throws Exception {
+		int header1=offset==0 ? message.getOpcode()&0xf : Message.OPCODE_CONTINUATION;
+		if (!last) header1|=0x80;
+		writeHeader(out, header1, length);
+		message.writePayload(out, socket.getPayloadChannel(), offset, length);
+	}
+	
+	private static void writeHeader(DataOutputStream out, int header1, int length) throws IOException {
 		int header2;
 		
 		// Different paths based on length
@@ -150,16 +276,6 @@ public class WireProtocolDraft03 extends WireProtocol {
 			out.write(header2);
 			out.writeLong(length);
 		}
-		
-		out.write(data);
-		out.flush();
-		
-		// Shutdown transmission
-		if (opcode==Message.OPCODE_CLOSE) {
-			return false;
-		}
-		
-		return true;
 	}
 
 }
@@ -36,17 +36,24 @@ public class WireProtocolDraft76 extends WireProtocol {
 				return null;
 			}
 			
+			int maxFrameSize=socket.getNetConfig().getMaxFrameSize();
 			if ((frameType&0x80)==0x80) {
-				int length=0;
+				long streamingThreshold=socket.getStreamingThreshold();
+				long length=0;
 				for (;;) {
 					int b=input.readUnsignedByte(),
 						bv=b&0x7f;
+					if (length>(Long.MAX_VALUE-bv)/128) throw new IOException("Message length too long");
 					length=length*128 + bv;
 					if ((b&0x80)!=0x80) break;
 				}
 				
-				byte[] data=new byte[length];
-				input.readFully(data);
+				// Streamed frames are not subject to the maximum frame size
+				if (length>streamingThreshold && frameType!=0xff) {
+					socket.signalMessageStream(new MessageInputStream(input, Message.OPCODE_BINARY, length));
+					continue;
+				}
+				if (length>maxFrameSize) throw new IOException("Frame exceeds maximum size of " + maxFrameSize);
 				
 				if (frameType==0xff && length==0) {
 					System.out.println("Received close start handshake");
@@ -72,28 +79,98 @@ public class WireProtocolDraft76 extends WireProtocol {
 						throw new IOException("Bad close handshake");
 					} else {
 						// Orderly shutdown
-						socket.abort();
+						socket.disconnect();
 						return null;
 					}
 				} else {
-					return new Message(Message.OPCODE_BINARY, data, false);
+					BufferPool pool=socket.getNetConfig().getBufferPool();
+					if (pool!=null) {
+						byte[] buffer=pool.acquire((int)length);
+						input.readFully(buffer, 0, (int)length);
+						return new Message(Message.OPCODE_BINARY, buffer, (int)length, pool);
+					}
+					
+					byte[] data=new byte[(int)length];
+					input.readFully(data);
+					return new Message(Message.OPCODE_BINARY, data, true);
 				}
 			} else {
-				ByteArrayOutputStream accum=new ByteArrayOutputStream();
-				for (;;) {
-					int b=input.read();
-					if (b==0xff) break;
-					accum.write(b);
+				BufferPool pool=socket.getNetConfig().getBufferPool();
+				if (pool!=null && input instanceof FrameInputStream) {
+					FrameInputStream frameInput=(FrameInputStream)input;
+					int length=frameInput.scanUntil(0xff, maxFrameSize);
+					if (frameType==0) {
+						byte[] buffer=pool.acquire(length);
+						frameInput.copyScanned(buffer, length);
+						return new Message(Message.OPCODE_TEXT, buffer, length, pool);
+					}
+					continue;
 				}
 				
+				byte[] data=readText(input, maxFrameSize);
 				if (frameType==0) {
-					Message message=new Message(Message.OPCODE_TEXT, accum.toByteArray(), true);
+					Message message=new Message(Message.OPCODE_TEXT, data, true);
 					return message;
 				}
 			}
 		}
 	}
 	
+	@Override
+	public int scanFrames(WebSocket socket, byte[] buffer, int offset, int length) {
+		int maxFrameSize=socket.getNetConfig().getMaxFrameSize();
+		int pos=offset, end=offset+length;
+		while (pos<end) {
+			int frameType=buffer[pos]&0xff;
+			int next=pos+1;
+			if ((frameType&0x80)==0x80) {
+				long frameLength=0;
+				boolean complete=false;
+				while (next<end && !complete) {
+					int b=buffer[next++]&0xff;
+					frameLength=frameLength*128 + (b&0x7f);
+					complete=(b&0x80)!=0x80;
+					if (complete && frameLength>maxFrameSize) {
+						// Rejected once the length has been read
+						return next-offset;
+					}
+				}
+				if (!complete || end-next<frameLength) break;
+				next+=(int)frameLength;
+			} else {
+				int terminator=next;
+				while (terminator<end && buffer[terminator]!=(byte)0xff) terminator++;
+				if (terminator==end) {
+					// Rejected after maxFrameSize bytes without a terminator
+					if (terminator-next>maxFrameSize) return next+maxFrameSize+1-offset;
+					break;
+				}
+				next=terminator+1;
+			}
+			pos=next;
+		}
+		return pos-offset;
+	}
+	
+	/**
+	 * Read a sentinel terminated text frame.  Uses a bulk scan of the buffer when
+	 * reading from a FrameInputStream.
+	 */
+	private byte[] readText(DataInputStream input, int maxFrameSize) throws IOException {
+		if (input instanceof FrameInputStream) {
+			return ((FrameInputStream)input).readUntil(0xff, maxFrameSize);
+		}
+		
+		ByteArrayOutputStream accum=new ByteArrayOutputStream();
+		for (;;) {
+			int b=input.readUnsignedByte();
+			if (b==0xff) break;
+			if (accum.size()>=maxFrameSize) throw new IOException("Frame exceeds maximum size of " + maxFrameSize);
+			accum.write(b);
+		}
+		return accum.toByteArray();
+	}
+	
 	@Override
 	public boolean sendMessage(WebSocket socket, DataOutputStream output, Message message) throws Exception {
 		int opcode=message.getOpcode();
@@ -104,7 +181,6 @@ public class WireProtocolDraft76 extends WireProtocol {
 			socket.setReadyState(WebSocket.CLOSING);
 			output.write(0xff);
 			output.write(0x00);
-			output.flush();
 			return false;
 		} else {
 			if (opcode!=Message.OPCODE_TEXT) {
@@ -112,9 +188,8 @@ public class WireProtocolDraft76 extends WireProtocol {
 			}
 			
 			output.write(0);
-			output.write(message.getMessageData());
+			message.writePayload(output, socket.getPayloadChannel());
 			output.write(0xff);
-			output.flush();
 			return true;
 		}
 	}
@@ -122,6 +197,6 @@ public class WireProtocolDraft76 extends WireProtocol {
 	@Override
 	public void initiateClose(WebSocket socket) {
 		Message closeMessage=new Message(0xff, new byte[0], false);
-		socket.getTransmissionQueue().addTail(closeMessage);
+		socket.getTransmissionQueue().addLast(closeMessage);
 	}
 }
@@ -0,0 +1,443 @@
+package net.rcode.wsclient;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.URI;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.Map;
+
+/**
+ * Implement the final WebSocket protocol.
+ * <p>
+ * http://tools.ietf.org/html/rfc6455
+ * </p>
+ *
+ * @author stella
+ *
+ */
+public class WireProtocolRfc6455 extends WireProtocol {
+	public static final WireProtocolRfc6455 INSTANCE=new WireProtocolRfc6455();
+	
+	private static final String ACCEPT_GUID="258EAFA5-E914-47DA-95CA-C5AB0DC85B11";
+	
+	// -- wire opcodes
+	private static final int WIRE_CONTINUATION=0x0;
+	private static final int WIRE_TEXT=0x1;
+	private static final int WIRE_BINARY=0x2;
+	private static final int WIRE_CLOSE=0x8;
+	private static final int WIRE_PING=0x9;
+	private static final int WIRE_PONG=0xa;
+	
+	/**
+	 * Wire opcodes indexed by Message opcode
+	 */
+	private static final int[] WIRE_OPCODES={
+		WIRE_CONTINUATION, WIRE_CLOSE, WIRE_PING, WIRE_PONG, WIRE_TEXT, WIRE_BINARY
+	};
+	
+	/**
+	 * For the Sec-WebSocket-Key nonce, which must be random (RFC 6455 4.1)
+	 */
+	private static final SecureRandom nonceRandom=new SecureRandom();
+	
+	private WireProtocolRfc6455() {
+	}
+	
+	@Override
+	public Object startHandshake(WebSocket socket, URI uri, DataOutputStream out) throws Exception {
+		byte[] nonce=new byte[16];
+		nonceRandom.nextBytes(nonce);
+		String key=Util.base64Encode(nonce);
+		
+		NetConfig netConfig=socket.getNetConfig();
+		boolean offerDeflate=netConfig.isPerMessageDeflate() && PerMessageDeflate.SUPPORTED;
+		writeRequest(socket, uri, out,
+				"Sec-WebSocket-Key", key,
+				"Sec-WebSocket-Extensions", offerDeflate ? PerMessageDeflate.buildOffer(netConfig) : null);
+		return new Object[] { key, offerDeflate };
+	}
+	
+	@Override
+	public void finishHandshake(WebSocket socket, DataInputStream in, Object state) throws Exception {
+		String key=(String)((Object[])state)[0];
+		boolean offerDeflate=(Boolean)((Object[])state)[1];
+		NetConfig netConfig=socket.getNetConfig();
+		
+		Map<String,String> responseHeaders=readResponse(socket, in);
+		if (socket.isVerifyHandshake()) {
+			String upgrade=responseHeaders.get("upgrade");
+			if (upgrade==null || !upgrade.equalsIgnoreCase("websocket"))
+				throw new IOException("Server did not upgrade to websocket: " + upgrade);
+			String accept=responseHeaders.get("sec-websocket-accept");
+			String expected=computeAccept(key);
+			if (!expected.equals(accept))
+				throw new IOException("Bad Sec-WebSocket-Accept from server.  Expected " + expected + ", got " + accept);
+		}
+		
+		// Frames can not be read at all if the server uses an extension we do not know
+		String extensions=responseHeaders.get("sec-websocket-extensions");
+		if (offerDeflate) {
+			socket.setPerMessageDeflate(PerMessageDeflate.negotiate(netConfig, extensions));
+		} else if (extensions!=null && extensions.trim().length()>0) {
+			throw new IOException("Server accepted an extension that was not offered: " + extensions);
+		}
+		
+		// And finally ready to go
+		socket.setReadyState(WebSocket.OPEN);
+	}
+	
+	@Override
+	public int scanHandshake(WebSocket socket, byte[] buffer, int offset, int length) {
+		return scanHeaders(buffer, offset, length);
+	}
+	
+	@Override
+	public int scanFrames(WebSocket socket, byte[] buffer, int offset, int length) {
+		int maxFrameSize=socket.getNetConfig().getMaxFrameSize();
+		int maxMessageSize=socket.getNetConfig().getMaxMessageSize();
+		int pos=offset, end=offset+length, boundary=offset;
+		boolean assembling=false;
+		long assemblyLength=0;
+		while (end-pos>=2) {
+			int header1=buffer[pos]&0xff, header2=buffer[pos+1]&0xff;
+			boolean control=(header1&0x08)!=0;
+			if ((header2&0x80)!=0 || (control && (header2&0x7f)>125)) {
+				// Rejected on the first two bytes
+				return pos+2-offset;
+			}
+			
+			int headerLength=2;
+			long payloadLength=header2&0x7f;
+			if (payloadLength==126) {
+				headerLength=4;
+				if (end-pos<headerLength) break;
+				payloadLength=(buffer[pos+2]&0xff)<<8 | (buffer[pos+3]&0xff);
+			} else if (payloadLength==127) {
+				headerLength=10;
+				if (end-pos<headerLength) break;
+				payloadLength=0;
+				for (int i=2; i<10; i++) payloadLength=payloadLength<<8 | (buffer[pos+i]&0xff);
+			}
+			int headerEnd=pos+headerLength;
+			
+			boolean fin=(header1&0x80)!=0;
+			boolean fragment=!control && (!fin || (header1&0x0f)==WIRE_CONTINUATION);
+			if (payloadLength<0 || payloadLength>maxFrameSize) return headerEnd-offset;
+			if (fragment) {
+				assemblyLength+=payloadLength;
+				if (assemblyLength>maxMessageSize) return headerEnd-offset;
+			}
+			if (end-headerEnd<payloadLength) break;
+			
+			pos=headerEnd+(int)payloadLength;
+			if (!control) {
+				assembling=!fin;
+				if (fin) assemblyLength=0;
+			}
+			if (!assembling) boundary=pos;
+		}
+		return boundary-offset;
+	}
+	
+	@Override
+	protected void addRequestHeaders(WebSocket socket, Map<String, String> headers) {
+		headers.put("Connection", "Upgrade");
+		headers.put("Upgrade", "websocket");
+		headers.put("Sec-WebSocket-Version", "13");
+		String[] requestedProtocols=socket.getRequestedProtocols();
+		if (requestedProtocols!=null && requestedProtocols.length>0) {
+			StringBuilder joinedProtocol=new StringBuilder();
+			for (String protocol: requestedProtocols) {
+				if (joinedProtocol.length()>0) joinedProtocol.append(", ");
+				joinedProtocol.append(protocol);
+			}
+			headers.put("Sec-WebSocket-Protocol", joinedProtocol.toString());
+		}
+	}
+	
+	/**
+	 * @return the Sec-WebSocket-Accept value a server must answer key with
+	 */
+	public static String computeAccept(String key) throws Exception {
+		MessageDigest digest=MessageDigest.getInstance("SHA-1");
+		return Util.base64Encode(digest.digest(Util.getUTF8Bytes(key + ACCEPT_GUID)));
+	}
+	
+	@Override
+	public void initiateClose(WebSocket socket) {
+		initiateClose(socket, WebSocket.CLOSE_NORMAL, null);
+	}
+	
+	@Override
+	public void initiateClose(WebSocket socket, int code, String reason) {
+		byte[] reasonBytes=reason==null ? new byte[0] : Util.getUTF8Bytes(reason);
+		if (reasonBytes.length>123) throw new IllegalArgumentException("Close reason too long");
+		byte[] payload=new byte[2+reasonBytes.length];
+		payload[0]=(byte)(code>>8);
+		payload[1]=(byte)code;
+		System.arraycopy(reasonBytes, 0, payload, 2, reasonBytes.length);
+		
+		synchronized (socket) {
+			if (socket.getReadyState()==WebSocket.OPEN) {
+				socket.setReadyState(WebSocket.CLOSING);
+			}
+			// Marks the close as ours so that the peer's close is taken as the ack
+			socket.setCloseCookie(payload);
+			socket.getTransmissionQueue().addLast(
+					new Message(Message.OPCODE_CLOSE, payload, false));
+		}
+	}
+	
+	@Override
+	public Message readMessage(WebSocket socket, DataInputStream input) throws Exception {
+		// Reassembly of a fragmented message.  Control frames may arrive between
+		// the fragments and are handled as they come.
+		int assemblyOpcode=-1;
+		boolean assemblyCompressed=false;
+		byte[] assembly=null;
+		int assemblyLength=0;
+		PerMessageDeflate deflate=socket.getPerMessageDeflate();
+		
+		for (;;) {
+			int header1, header2;
+			try {
+				header1=input.readUnsignedByte();
+				header2=input.readUnsignedByte();
+			} catch (EOFException e) {
+				// Just go straight to close.  Not an error.
+				socket.setReadyState(WebSocket.CLOSED);
+				return null;
+			}
+			
+			// Validate.  Servers must not mask.  RSV1 marks a compressed message.
+			if ((header1&0x30)!=0 || (header2&0x80)!=0) {
+				throw new IOException("Protocol error");
+			}
+			boolean compressed=(header1&0x40)!=0;
+			
+			boolean fin=(header1&0x80)!=0;
+			int opcode;
+			switch (header1&0x0f) {
+			case WIRE_CONTINUATION: opcode=Message.OPCODE_CONTINUATION; break;
+			case WIRE_TEXT: opcode=Message.OPCODE_TEXT; break;
+			case WIRE_BINARY: opcode=Message.OPCODE_BINARY; break;
+			case WIRE_CLOSE: opcode=Message.OPCODE_CLOSE; break;
+			case WIRE_PING: opcode=Message.OPCODE_PING; break;
+			case WIRE_PONG: opcode=Message.OPCODE_PONG; break;
+			default: throw new IOException("Protocol error.  Unknown opcode " + (header1&0x0f));
+			}
+			
+			boolean control=(header1&0x08)!=0;
+			if (compressed && (deflate==null || control || opcode==Message.OPCODE_CONTINUATION)) {
+				throw new IOException("Protocol error.  Unexpected compressed frame");
+			}
+			if (control) {
+				if (!fin) throw new IOException("Protocol error.  Fragmented control frame");
+				if ((header2&0x7f)>125) throw new IOException("Protocol error.  Control frame too long");
+			} else if (opcode==Message.OPCODE_CONTINUATION) {
+				if (assemblyOpcode<0) throw new IOException("Protocol error.  Unexpected continuation frame");
+			} else if (assemblyOpcode>=0) {
+				throw new IOException("Protocol error.  Expected continuation frame");
+			}
+			
+			long longLength=header2&0x7f;
+			if (longLength==126) {
+				// Two bytes of length follow
+				longLength=input.readUnsignedShort();
+			} else if (longLength==127) {
+				// 8 bytes of length follow
+				longLength=input.readLong();
+				if (longLength<0) throw new IOException("Message length too long");
+			}
+			
+			// Large data frames can be streamed to the listener without buffering
+			if (fin && !compressed && (opcode==Message.OPCODE_TEXT || opcode==Message.OPCODE_BINARY) &&
+					longLength>socket.getStreamingThreshold()) {
+				socket.signalMessageStream(new MessageInputStream(input, opcode, longLength));
+				continue;
+			}
+			
+			if (longLength>Integer.MAX_VALUE) throw new IOException("Message length too long");
+			int length=(int)longLength;
+			int maxFrameSize=socket.getNetConfig().getMaxFrameSize();
+			if (length>maxFrameSize) throw new IOException("Frame exceeds maximum size of " + maxFrameSize);
+			
+			if (!fin || opcode==Message.OPCODE_CONTINUATION) {
+				if (opcode!=Message.OPCODE_CONTINUATION) {
+					assemblyOpcode=opcode;
+					assemblyCompressed=compressed;
+				}
+				
+				int maxMessageSize=socket.getNetConfig().getMaxMessageSize();
+				if (length>maxMessageSize-assemblyLength) {
+					throw new IOException("Message exceeds maximum size of " + maxMessageSize);
+				}
+				
+				int required=assemblyLength + length;
+				if (assembly==null || required>assembly.length) {
+					int capacity=assembly==null ? 0 : assembly.length;
+					capacity=(int)Math.min(Math.max((long)capacity * 2, required), maxMessageSize);
+					byte[] grown=new byte[capacity];
+					if (assemblyLength>0) System.arraycopy(assembly, 0, grown, 0, assemblyLength);
+					assembly=grown;
+				}
+				input.readFully(assembly, assemblyLength, length);
+				assemblyLength=required;
+				
+				if (!fin) continue;
+				if (assemblyCompressed) {
+					return deflate.inflate(assemblyOpcode, assembly, assemblyLength, maxMessageSize);
+				}
+				return new Message(assemblyOpcode, assembly, assemblyLength, null);
+			}
+			
+			if (compressed) {
+				byte[] contents=new byte[length];
+				input.readFully(contents);
+				return deflate.inflate(opcode, contents, length, socket.getNetConfig().getMaxMessageSize());
+			}
+			
+			// Data frames can be read into a pooled buffer.  Control frames are small
+			// and some are echoed back, so they get their own array.
+			if (!control) {
+				BufferPool pool=socket.getNetConfig().getBufferPool();
+				if (pool!=null) {
+					byte[] buffer=pool.acquire(length);
+					input.readFully(buffer, 0, length);
+					return new Message(opcode, buffer, length, pool);
+				}
+			}
+			
+			// Read the contents
+			byte[] contents=new byte[length];
+			input.readFully(contents);
+			
+			// If its a control message, take special action
+			switch (opcode) {
+			case Message.OPCODE_TEXT:
+			case Message.OPCODE_BINARY:
+				return new Message(opcode, contents, true);
+			case Message.OPCODE_PING:
+				// Respond with PONG (sneak it to the head of the tx queue)
+				socket.getTransmissionQueue().addHead(
+						new Message(Message.OPCODE_PONG, contents, false));
+				continue;
+			case Message.OPCODE_PONG:
+				// Currently do nothing.  Should update a timestamp or something.
+				continue;
+			default:
+				// Close
+				if (contents.length==1) throw new IOException("Protocol error.  Truncated close status");
+				if (contents.length>=2) {
+					int code=(contents[0]&0xff)<<8 | (contents[1]&0xff);
+					String reason;
+					try {
+						reason=Util.decodeUTF8(contents, 2, contents.length-2);
+					} catch (IllegalArgumentException e) {
+						throw new IOException("Protocol error.  " + e.getMessage() + " in close reason");
+					}
+					socket.setCloseStatus(code, reason);
+				} else {
+					socket.setCloseStatus(WebSocket.CLOSE_NO_STATUS, null);
+				}
+				
+				if (socket.getCloseCookie()==null) {
+					// The peer is closing.  Echo its status code back and wait for it
+					// to close the connection.
+					byte[] echo=new byte[Math.min(2, contents.length)];
+					System.arraycopy(contents, 0, echo, 0, echo.length);
+					socket.getTransmissionQueue().addHead(
+						new Message(Message.OPCODE_CLOSE, echo, false));
+					
+					// The close timeout bounds the wait
+					socket.setReadyState(WebSocket.CLOSING);
+					int expectClose=input.read();
+					if (expectClose!=-1) throw new IOException("Protocol error.  Expected EOF.  Got " + expectClose);
+					return null;
+				} else {
+					// This is an ack of a previous close we sent.  The writer has already
+					// concluded.
+					socket.abort();
+					return null;
+				}
+			}
+		}
+	}
+	
+	@Override
+	public boolean sendMessage(WebSocket socket, DataOutputStream out, Message message) throws Exception {
+		int opcode=message.getOpcode();
+		int header1=0x80 | WIRE_OPCODES[opcode];
+		if (shouldCompress(socket, message)) {
+			message=socket.getPerMessageDeflate().deflate(message);
+			header1|=0x40;
+		}
+		writeFrame(socket, out, header1, message, 0, message.getBytes());
+		
+		// Shutdown transmission
+		if (opcode==Message.OPCODE_CLOSE) {
+			return false;
+		}
+		
+		return true;
+	}
+	
+	@Override
+	public boolean supportsFragments(WebSocket socket, Message message) {
+		// Compressed messages are sent whole
+		return !shouldCompress(socket, message);
+	}
+	
+	private static boolean shouldCompress(WebSocket socket, Message message) {
+		PerMessageDeflate deflate=socket.getPerMessageDeflate();
+		if (deflate==null || !message.isUserMessage() || message.isStreamed()) return false;
+		int opcode=message.getOpcode();
+		if (opcode!=Message.OPCODE_TEXT && opcode!=Message.OPCODE_BINARY) return false;
+		return deflate.shouldCompress(message.getBytes());
+	}
+	
+	@Override
+	public void sendFragment(WebSocket socket, DataOutputStream out, Message message,
+			int offset, int length, boolean last) throws Exception {
+		int header1=offset==0 ? WIRE_OPCODES[message.getOpcode()] : WIRE_CONTINUATION;
+		if (last) header1|=0x80;
+		writeFrame(socket, out, header1, message, offset, length);
+	}
+	
+	/**
+	 * Write a masked frame.  The payload is masked as it goes through the frame
+	 * stream's buffer, so it is never copied just for masking.  Other streams get
+	 * wrapped in one and are flushed.
+	 */
+	private static void writeFrame(WebSocket socket, DataOutputStream out, int header1, Message message,
+			int offset, int length) throws IOException {
+		out.write(header1);
+		if (length<=125) {
+			out.write(0x80 | length);
+		} else if (length<=0xffff) {
+			out.write(0x80 | 126);
+			out.writeShort(length);
+		} else {
+			out.write(0x80 | 127);
+			out.writeLong(length);
+		}
+		
+		// Unpredictable keys as RFC 6455 5.3 requires
+		byte[] mask=socket.getMaskKeySource().nextKey();
+		out.write(mask);
+		
+		FrameOutputStream frameOut=out instanceof FrameOutputStream ?
+			(FrameOutputStream)out : new FrameOutputStream(out, 8192);
+		frameOut.setMask(mask);
+		try {
+			// Masking touches every byte so file regions can not bypass the heap
+			message.writePayload(frameOut, null, offset, length);
+		} finally {
+			frameOut.clearMask();
+		}
+		if (frameOut!=out) frameOut.flush();
+	}
+}
@@ -0,0 +1,140 @@
+package net.rcode.wsclient;
+
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+public class BatchListenerTest {
+	private static final int MESSAGE_COUNT=200;
+	
+	@Test
+	public void testBatches() throws Exception {
+		runBatches(null);
+	}
+	
+	@Test
+	public void testBatchesSelectorEngine() throws Exception {
+		SelectorEngine engine=new SelectorEngine(1);
+		try {
+			runBatches(engine);
+		} finally {
+			engine.shutdown();
+		}
+	}
+	
+	private void runBatches(SelectorEngine engine) throws Exception {
+		EchoServerRfc6455 server=new EchoServerRfc6455();
+		try {
+			NetConfig netConfig=new NetConfig();
+			netConfig.setSelectorEngine(engine);
+			netConfig.setReadBatchMessages(16);
+			
+			final List<Integer> batchSizes=new ArrayList<Integer>();
+			final List<String> received=new ArrayList<String>();
+			final CountDownLatch done=new CountDownLatch(MESSAGE_COUNT+1);
+			WebSocket ws=new WebSocket(server.getUrl());
+			ws.setWireProtocol(WireProtocolRfc6455.INSTANCE);
+			ws.setNetConfig(netConfig);
+			ws.addBatchListener(new WebSocket.BatchListener() {
+				public void handleMessages(WebSocket source, List<Message> messages) {
+					synchronized (received) {
+						batchSizes.add(messages.size());
+						for (Message message: messages) {
+							received.add(message.getMessageText().toString());
+							done.countDown();
+						}
+					}
+				}
+			});
+			
+			// Queued before the handshake so that they go out, and come back, together
+			for (int i=0; i<MESSAGE_COUNT; i++) {
+				ws.send("message " + i);
+			}
+			ws.start();
+			
+			// Wait for the burst before sending a message on its own
+			for (int i=0; i<100; i++) {
+				synchronized (received) {
+					if (received.size()==MESSAGE_COUNT) break;
+				}
+				Thread.sleep(50);
+			}
+			ws.send("alone");
+			assertTrue(done.await(10, TimeUnit.SECONDS));
+			
+			synchronized (received) {
+				assertEquals(MESSAGE_COUNT+1, received.size());
+				for (int i=0; i<MESSAGE_COUNT; i++) {
+					assertEquals("message " + i, received.get(i));
+				}
+				assertEquals("alone", received.get(MESSAGE_COUNT));
+				assertEquals(1, batchSizes.get(batchSizes.size()-1).intValue());
+				
+				for (int size: batchSizes) {
+					assertTrue(size>=1 && size<=16);
+				}
+				assertTrue("No batching in " + batchSizes, batchSizes.size()<MESSAGE_COUNT);
+			}
+			
+			ws.close();
+			ws.waitForReadyState(WebSocket.CLOSED);
+		} finally {
+			server.close();
+		}
+	}
+	
+	@Test
+	public void testPartialNextFrame() throws Exception {
+		// Sends a message and the first byte of another, then stalls
+		final ServerSocket serverSocket=new ServerSocket(0, 1, InetAddress.getByName("127.0.0.1"));
+		final CountDownLatch finished=new CountDownLatch(1);
+		Thread serverThread=new Thread() {
+			public void run() {
+				try {
+					Socket socket=serverSocket.accept();
+					try {
+						CloseTest.handshake(socket);
+						OutputStream out=socket.getOutputStream();
+						out.write(new byte[] { (byte)0x81, 1, 'a', (byte)0x81 });
+						out.flush();
+						finished.await(10, TimeUnit.SECONDS);
+					} finally {
+						socket.close();
+					}
+				} catch (Exception e) {
+					// Torn down
+				}
+			}
+		};
+		serverThread.setDaemon(true);
+		serverThread.start();
+		
+		try {
+			final CountDownLatch received=new CountDownLatch(1);
+			WebSocket ws=new WebSocket("ws://127.0.0.1:" + serverSocket.getLocalPort() + "/");
+			ws.setWireProtocol(WireProtocolRfc6455.INSTANCE);
+			ws.addBatchListener(new WebSocket.BatchListener() {
+				public void handleMessages(WebSocket source, List<Message> messages) {
+					if ("a".equals(messages.get(0).getMessageText().toString())) received.countDown();
+				}
+			});
+			ws.start();
+			
+			// Delivered without waiting for the rest of the next frame
+			assertTrue(received.await(5, TimeUnit.SECONDS));
+			ws.abort();
+		} finally {
+			finished.countDown();
+			serverSocket.close();
+		}
+	}
+}
@@ -0,0 +1,50 @@
+package net.rcode.wsclient;
+
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+public class BufferPoolTest {
+
+	@Test
+	public void testSizeClassesAndCounters() {
+		BufferPool pool=new BufferPool(1024, 4);
+		byte[] small=pool.acquire(10);
+		assertEquals(64, small.length);
+		byte[] medium=pool.acquire(100);
+		assertEquals(128, medium.length);
+		byte[] huge=pool.acquire(5000);
+		assertEquals(5000, huge.length);
+		assertEquals(0, pool.getHitCount());
+		assertEquals(3, pool.getMissCount());
+		
+		pool.release(small);
+		pool.release(huge);
+		assertSame(small, pool.acquire(33));
+		assertEquals(1, pool.getHitCount());
+	}
+	
+	@Test
+	public void testMessageRelease() {
+		BufferPool pool=new BufferPool();
+		byte[] buffer=pool.acquire(5);
+		System.arraycopy("hello".getBytes(), 0, buffer, 0, 5);
+		Message message=new Message(Message.OPCODE_TEXT, buffer, 5, pool);
+		
+		assertTrue(message.isPooled());
+		assertEquals(5, message.getBytes());
+		assertEquals(5, message.getMessageData().length);
+		assertEquals("hello", message.getMessageText().toString());
+		
+		message.release();
+		message.release();
+		assertFalse(message.isPooled());
+		assertSame(buffer, pool.acquire(5));
+		assertEquals(1, pool.getHitCount());
+		try {
+			message.getMessageBuffer();
+			fail("Released message should not expose its buffer");
+		} catch (IllegalStateException e) {
+			// Expected
+		}
+	}
+}
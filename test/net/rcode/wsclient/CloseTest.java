@@ -0,0 +1,163 @@
+package net.rcode.wsclient;
+
+import java.io.BufferedReader;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+public class CloseTest {
+	@Test
+	public void testAbortFromListener() throws Exception {
+		EchoServerRfc6455 server=new EchoServerRfc6455();
+		try {
+			final WebSocket ws=new WebSocket(server.getUrl());
+			ws.setWireProtocol(WireProtocolRfc6455.INSTANCE);
+			final long[] abortMillis=new long[] { -1 };
+			ws.addMessageListener(new WebSocket.MessageListener() {
+				public void handleMessage(WebSocket socket, Message message) {
+					long start=System.currentTimeMillis();
+					ws.abort();
+					abortMillis[0]=System.currentTimeMillis()-start;
+				}
+			});
+			ws.send("hello");
+			ws.start();
+			
+			ws.waitForReadyState(WebSocket.CLOSED);
+			assertTrue("abort took " + abortMillis[0], abortMillis[0]>=0 && abortMillis[0]<1000);
+		} finally {
+			server.close();
+		}
+	}
+	
+	@Test
+	public void testCloseTimeout() throws Exception {
+		ServerSocket serverSocket=startSilentServer();
+		try {
+			NetConfig netConfig=new NetConfig();
+			netConfig.setCloseTimeout(200);
+			WebSocket ws=new WebSocket("ws://127.0.0.1:" + serverSocket.getLocalPort() + "/");
+			ws.setWireProtocol(WireProtocolRfc6455.INSTANCE);
+			ws.setNetConfig(netConfig);
+			ws.connectAsync().get(10, TimeUnit.SECONDS);
+			
+			long start=System.currentTimeMillis();
+			ws.close();
+			assertTrue("close blocked", System.currentTimeMillis()-start<150);
+			ws.waitForReadyState(WebSocket.CLOSED);
+			long elapsed=System.currentTimeMillis()-start;
+			assertTrue("Took " + elapsed, elapsed>=150 && elapsed<5000);
+			assertEquals(WebSocket.CLOSE_ABNORMAL, ws.getCloseCode());
+		} finally {
+			serverSocket.close();
+		}
+	}
+	
+	@Test
+	public void testCloseAll() throws Exception {
+		EchoServerRfc6455 server=new EchoServerRfc6455();
+		try {
+			List<WebSocket> sockets=new ArrayList<WebSocket>();
+			for (int i=0; i<10; i++) {
+				WebSocket ws=new WebSocket(server.getUrl());
+				ws.setWireProtocol(WireProtocolRfc6455.INSTANCE);
+				ws.connectAsync().get(10, TimeUnit.SECONDS);
+				sockets.add(ws);
+			}
+			
+			assertTrue(WebSocket.closeAll(sockets, 10000));
+			for (WebSocket ws: sockets) {
+				assertEquals(WebSocket.CLOSED, ws.getReadyState());
+				assertEquals(WebSocket.CLOSE_NORMAL, ws.getCloseCode());
+			}
+		} finally {
+			server.close();
+		}
+	}
+	
+	@Test
+	public void testCloseAllDeadline() throws Exception {
+		ServerSocket serverSocket=startSilentServer();
+		EchoServerRfc6455 server=new EchoServerRfc6455();
+		try {
+			WebSocket silent=new WebSocket("ws://127.0.0.1:" + serverSocket.getLocalPort() + "/");
+			silent.setWireProtocol(WireProtocolRfc6455.INSTANCE);
+			silent.connectAsync().get(10, TimeUnit.SECONDS);
+			WebSocket echo=new WebSocket(server.getUrl());
+			echo.setWireProtocol(WireProtocolRfc6455.INSTANCE);
+			echo.connectAsync().get(10, TimeUnit.SECONDS);
+			
+			List<WebSocket> sockets=new ArrayList<WebSocket>();
+			sockets.add(silent);
+			sockets.add(echo);
+			long start=System.currentTimeMillis();
+			assertFalse(WebSocket.closeAll(sockets, 300));
+			long elapsed=System.currentTimeMillis()-start;
+			assertTrue("Took " + elapsed, elapsed<5000);
+			
+			assertEquals(WebSocket.CLOSE_NORMAL, echo.getCloseCode());
+			silent.waitForReadyState(WebSocket.CLOSED);
+			assertEquals(WebSocket.CLOSE_ABNORMAL, silent.getCloseCode());
+		} finally {
+			server.close();
+			serverSocket.close();
+		}
+	}
+	
+	/**
+	 * Accept connections, complete the handshake and then never answer
+	 */
+	private static ServerSocket startSilentServer() throws Exception {
+		final ServerSocket serverSocket=new ServerSocket(0, 10, InetAddress.getByName("127.0.0.1"));
+		Thread serverThread=new Thread() {
+			public void run() {
+				try {
+					for (;;) {
+						final Socket socket=serverSocket.accept();
+						Thread connectionThread=new Thread() {
+							public void run() {
+								try {
+									handshake(socket);
+									while (socket.getInputStream().read()>=0) {
+										// Ignore everything
+									}
+								} catch (Exception e) {
+									// Torn down
+								}
+							}
+						};
+						connectionThread.setDaemon(true);
+						connectionThread.start();
+					}
+				} catch (Exception e) {
+					// Closed
+				}
+			}
+		};
+		serverThread.setDaemon(true);
+		serverThread.start();
+		return serverSocket;
+	}
+	
+	static void handshake(Socket socket) throws Exception {
+		BufferedReader in=new BufferedReader(new InputStreamReader(socket.getInputStream(), "ISO-8859-1"));
+		String key=null;
+		for (String line=in.readLine(); line!=null && line.length()>0; line=in.readLine()) {
+			if (line.regionMatches(true, 0, "Sec-WebSocket-Key: ", 0, 19)) key=line.substring(19);
+		}
+		OutputStream out=socket.getOutputStream();
+		out.write(("HTTP/1.1 101 Switching Protocols\r\n" +
+				"Upgrade: websocket\r\n" +
+				"Connection: Upgrade\r\n" +
+				"Sec-WebSocket-Accept: " + WireProtocolRfc6455.computeAccept(key) + "\r\n\r\n").getBytes("ISO-8859-1"));
+		out.flush();
+	}
+}
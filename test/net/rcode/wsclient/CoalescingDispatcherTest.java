@@ -0,0 +1,176 @@
+package net.rcode.wsclient;
+
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+public class CoalescingDispatcherTest {
+	/**
+	 * Stands in for an android Handler: records posts and runs them on demand
+	 */
+	private static class FakeHandler implements Executor {
+		private final LinkedList<Runnable> posted=new LinkedList<Runnable>();
+		private int maxPending;
+		
+		public synchronized void execute(Runnable command) {
+			posted.add(command);
+			maxPending=Math.max(maxPending, posted.size());
+			notifyAll();
+		}
+		
+		public synchronized int getPendingCount() {
+			return posted.size();
+		}
+		
+		/**
+		 * Run the next posted task like the Looper would
+		 * @return false if nothing was posted
+		 */
+		public boolean runOne() {
+			Runnable task;
+			synchronized (this) {
+				task=posted.poll();
+			}
+			if (task==null) return false;
+			task.run();
+			return true;
+		}
+	}
+	
+	@Test
+	public void testOnePostPerBurst() {
+		FakeHandler handler=new FakeHandler();
+		CoalescingDispatcher dispatcher=new CoalescingDispatcher(handler);
+		final List<Integer> ran=new ArrayList<Integer>();
+		for (int i=0; i<100; i++) {
+			final int n=i;
+			dispatcher.dispatch(new Runnable() {
+				public void run() {
+					ran.add(n);
+				}
+			});
+		}
+		assertEquals(1, handler.getPendingCount());
+		
+		assertTrue(handler.runOne());
+		assertEquals(100, ran.size());
+		for (int i=0; i<100; i++) assertEquals(i, ran.get(i).intValue());
+		assertEquals(0, handler.getPendingCount());
+		assertEquals(0, dispatcher.getPendingCount());
+		
+		// The next burst posts again
+		dispatcher.dispatch(new Runnable() {
+			public void run() {
+				ran.add(100);
+			}
+		});
+		assertEquals(1, handler.getPendingCount());
+		assertTrue(handler.runOne());
+		assertEquals(101, ran.size());
+	}
+	
+	@Test
+	public void testBudgetYieldsToLoop() {
+		FakeHandler handler=new FakeHandler();
+		CoalescingDispatcher dispatcher=new CoalescingDispatcher(handler);
+		dispatcher.setBudgetMillis(0);
+		final AtomicInteger ran=new AtomicInteger();
+		for (int i=0; i<5; i++) {
+			dispatcher.dispatch(new Runnable() {
+				public void run() {
+					ran.incrementAndGet();
+				}
+			});
+		}
+		
+		// Out of budget after every task, so each drain runs one and posts again
+		for (int i=1; i<=5; i++) {
+			assertTrue(handler.runOne());
+			assertEquals(i, ran.get());
+			assertEquals(i<5 ? 1 : 0, handler.getPendingCount());
+		}
+		assertEquals(1, handler.maxPending);
+	}
+	
+	@Test
+	public void testThrowingTask() {
+		FakeHandler handler=new FakeHandler();
+		CoalescingDispatcher dispatcher=new CoalescingDispatcher(handler);
+		final AtomicInteger ran=new AtomicInteger();
+		dispatcher.dispatch(new Runnable() {
+			public void run() {
+				throw new IllegalStateException("listener failed");
+			}
+		});
+		dispatcher.dispatch(new Runnable() {
+			public void run() {
+				ran.incrementAndGet();
+			}
+		});
+		
+		try {
+			handler.runOne();
+			fail();
+		} catch (IllegalStateException e) {
+			// Propagates to the loop like a plain post would
+		}
+		assertEquals(1, handler.getPendingCount());
+		assertTrue(handler.runOne());
+		assertEquals(1, ran.get());
+		assertEquals(0, handler.getPendingCount());
+	}
+	
+	@Test
+	public void testConcurrentProducers() throws Exception {
+		final FakeHandler handler=new FakeHandler();
+		final CoalescingDispatcher dispatcher=new CoalescingDispatcher(handler);
+		dispatcher.setBudgetMillis(1);
+		final int producerCount=4, taskCount=20000;
+		final int[] next=new int[producerCount];
+		final List<String> errors=new ArrayList<String>();
+		
+		Thread[] producers=new Thread[producerCount];
+		for (int p=0; p<producerCount; p++) {
+			final int producer=p;
+			producers[p]=new Thread() {
+				public void run() {
+					for (int i=0; i<taskCount; i++) {
+						final int n=i;
+						dispatcher.dispatch(new Runnable() {
+							public void run() {
+								// Only ever called on the looper thread
+								if (next[producer]++!=n) errors.add(producer + ":" + n);
+							}
+						});
+					}
+				}
+			};
+			producers[p].start();
+		}
+		
+		// The looper
+		long deadline=System.currentTimeMillis() + 30000;
+		for (;;) {
+			if (!handler.runOne()) {
+				boolean done=true;
+				for (int p=0; p<producerCount; p++) {
+					if (producers[p].isAlive() || next[p]<taskCount) done=false;
+				}
+				if (done) break;
+				assertTrue(System.currentTimeMillis()<deadline);
+				synchronized (handler) {
+					if (handler.getPendingCount()==0) handler.wait(10);
+				}
+			}
+		}
+		
+		assertTrue(errors.toString(), errors.isEmpty());
+		assertEquals(1, handler.maxPending);
+		assertEquals(0, dispatcher.getPendingCount());
+	}
+}
@@ -0,0 +1,165 @@
+package net.rcode.wsclient;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * RFC 6455 server bound to the loopback interface that serves any number of
+ * connections (a thread each) and echoes every data frame back unmasked.  A close
+ * frame is echoed and then the connection is closed.
+ * 
+ * @author stella
+ *
+ */
+public class EchoServerRfc6455 {
+	private ServerSocket serverSocket;
+	private Thread thread;
+	private final List<Socket> connections=new ArrayList<Socket>();
+	private int dropCount;
+	
+	public EchoServerRfc6455() throws IOException {
+		serverSocket=new ServerSocket(0, 1000, InetAddress.getByName("127.0.0.1"));
+		thread=new Thread("EchoServerRfc6455") {
+			public void run() {
+				try {
+					for (;;) {
+						final Socket socket=serverSocket.accept();
+						if (takeDrop()) {
+							socket.close();
+							continue;
+						}
+						synchronized (connections) {
+							connections.add(socket);
+						}
+						Thread connectionThread=new Thread("EchoServerRfc6455 connection") {
+							public void run() {
+								try {
+									serve(socket);
+								} catch (Exception e) {
+									// Connection torn down
+								} finally {
+									synchronized (connections) {
+										connections.remove(socket);
+									}
+								}
+							}
+						};
+						connectionThread.setDaemon(true);
+						connectionThread.start();
+					}
+				} catch (IOException e) {
+					// Closed
+				}
+			}
+		};
+		thread.setDaemon(true);
+		thread.start();
+	}
+	
+	public String getUrl() {
+		return "ws://127.0.0.1:" + serverSocket.getLocalPort() + "/";
+	}
+	
+	public void close() throws IOException {
+		serverSocket.close();
+	}
+	
+	/**
+	 * Close the next count connections as soon as they are accepted
+	 */
+	public synchronized void dropNext(int count) {
+		dropCount=count;
+	}
+	
+	private synchronized boolean takeDrop() {
+		if (dropCount==0) return false;
+		dropCount--;
+		return true;
+	}
+	
+	/**
+	 * Close every open connection without a close handshake, as a crashing server
+	 * would
+	 */
+	public void dropConnections() throws IOException {
+		Socket[] sockets;
+		synchronized (connections) {
+			sockets=connections.toArray(new Socket[connections.size()]);
+		}
+		for (Socket socket: sockets) {
+			socket.close();
+		}
+	}
+	
+	private static String readLine(DataInputStream in) throws IOException {
+		StringBuilder line=new StringBuilder();
+		for (;;) {
+			int b=in.readUnsignedByte();
+			if (b=='\n') break;
+			if (b!='\r') line.append((char)b);
+		}
+		return line.toString();
+	}
+	
+	private void serve(Socket socket) throws Exception {
+		try {
+			socket.setTcpNoDelay(true);
+			DataInputStream in=new DataInputStream(new BufferedInputStream(socket.getInputStream(), 8192));
+			OutputStream out=new BufferedOutputStream(socket.getOutputStream(), 8192);
+			
+			String key=null;
+			for (;;) {
+				String line=readLine(in);
+				if (line.length()==0) break;
+				if (line.regionMatches(true, 0, "Sec-WebSocket-Key: ", 0, 19)) key=line.substring(19);
+			}
+			out.write(("HTTP/1.1 101 Switching Protocols\r\n" +
+					"Upgrade: websocket\r\n" +
+					"Connection: Upgrade\r\n" +
+					"Sec-WebSocket-Accept: " + WireProtocolRfc6455.computeAccept(key) + "\r\n\r\n").getBytes("ISO-8859-1"));
+			out.flush();
+			
+			byte[] mask=new byte[4];
+			for (;;) {
+				int header1=in.read();
+				if (header1<0) break;
+				long length=in.readUnsignedByte()&0x7f;
+				if (length==126) length=in.readUnsignedShort();
+				else if (length==127) length=in.readLong();
+				in.readFully(mask);
+				byte[] payload=new byte[(int)length];
+				in.readFully(payload);
+				for (int i=0; i<payload.length; i++) payload[i]^=mask[i&3];
+				
+				out.write(header1);
+				if (length<=125) {
+					out.write((int)length);
+				} else if (length<=0xffff) {
+					out.write(126);
+					out.write((int)(length>>8));
+					out.write((int)length);
+				} else {
+					out.write(127);
+					for (int i=56; i>=0; i-=8) out.write((int)(length>>i));
+				}
+				out.write(payload);
+				// Only flush once the client has nothing more buffered for us
+				if (in.available()==0) out.flush();
+				if ((header1&0x0f)==0x8) {
+					out.flush();
+					break;
+				}
+			}
+		} finally {
+			socket.close();
+		}
+	}
+}
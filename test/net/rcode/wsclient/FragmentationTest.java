@@ -0,0 +1,91 @@
+package net.rcode.wsclient;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+public class FragmentationTest {
+	private static void frame(ByteArrayOutputStream out, int header1, String payload) {
+		byte[] bytes=Util.getUTF8Bytes(payload);
+		out.write(header1);
+		out.write(bytes.length);
+		out.write(bytes, 0, bytes.length);
+	}
+	
+	private static Message read(WebSocket ws, ByteArrayOutputStream frames) throws Exception {
+		FrameInputStream in=new FrameInputStream(new ByteArrayInputStream(frames.toByteArray()), 64);
+		return WireProtocolDraft03.INSTANCE.readMessage(ws, in);
+	}
+	
+	@Test
+	public void testReassembly() throws Exception {
+		ByteArrayOutputStream frames=new ByteArrayOutputStream();
+		frame(frames, 0x80 | Message.OPCODE_TEXT, "Hello ");
+		frame(frames, Message.OPCODE_PING, "ping");
+		frame(frames, 0x80 | Message.OPCODE_CONTINUATION, "fragmented ");
+		frame(frames, Message.OPCODE_CONTINUATION, "world");
+		
+		WebSocket ws=new WebSocket("ws://localhost/");
+		Message message=read(ws, frames);
+		assertEquals(Message.OPCODE_TEXT, message.getOpcode());
+		assertEquals("Hello fragmented world", message.getMessageText().toString());
+		
+		// The ping in the middle was answered
+		Message pong=ws.getTransmissionQueue().peekNext();
+		assertEquals(Message.OPCODE_PONG, pong.getOpcode());
+	}
+	
+	@Test(expected=IOException.class)
+	public void testMaxMessageSize() throws Exception {
+		ByteArrayOutputStream frames=new ByteArrayOutputStream();
+		frame(frames, 0x80 | Message.OPCODE_BINARY, "0123456789");
+		frame(frames, Message.OPCODE_CONTINUATION, "0123456789");
+		
+		WebSocket ws=new WebSocket("ws://localhost/");
+		ws.getNetConfig().setMaxMessageSize(15);
+		read(ws, frames);
+	}
+	
+	@Test(expected=IOException.class)
+	public void testUnexpectedContinuation() throws Exception {
+		ByteArrayOutputStream frames=new ByteArrayOutputStream();
+		frame(frames, Message.OPCODE_CONTINUATION, "stray");
+		read(new WebSocket("ws://localhost/"), frames);
+	}
+	
+	@Test(expected=IOException.class)
+	public void testInterleavedDataFrame() throws Exception {
+		ByteArrayOutputStream frames=new ByteArrayOutputStream();
+		frame(frames, 0x80 | Message.OPCODE_TEXT, "first");
+		frame(frames, Message.OPCODE_TEXT, "second");
+		read(new WebSocket("ws://localhost/"), frames);
+	}
+	
+	@Test
+	public void testSendFragments() throws Exception {
+		byte[] data=new byte[1000];
+		for (int i=0; i<data.length; i++) data[i]=(byte)i;
+		Message message=new Message(data);
+		
+		WebSocket ws=new WebSocket("ws://localhost/");
+		ByteArrayOutputStream out=new ByteArrayOutputStream();
+		DataOutputStream dataOut=new DataOutputStream(out);
+		for (int offset=0; offset<data.length; offset+=300) {
+			int count=Math.min(300, data.length-offset);
+			WireProtocolDraft03.INSTANCE.sendFragment(ws, dataOut, message, offset, count, offset+count==data.length);
+		}
+		
+		byte[] frames=out.toByteArray();
+		assertEquals(0x80 | Message.OPCODE_BINARY, frames[0] & 0xff);
+		assertEquals(0x80 | Message.OPCODE_CONTINUATION, frames[4 + 300] & 0xff);
+		assertEquals(Message.OPCODE_CONTINUATION, frames[3 * (4 + 300)] & 0xff);
+		
+		FrameInputStream in=new FrameInputStream(new ByteArrayInputStream(frames), 64);
+		Message received=WireProtocolDraft03.INSTANCE.readMessage(ws, in);
+		assertArrayEquals(data, received.getMessageData());
+	}
+}
@@ -0,0 +1,39 @@
+package net.rcode.wsclient;
+
+import java.io.ByteArrayInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+public class FrameInputStreamTest {
+
+	@Test
+	public void testReadUntilAcrossBufferBoundaries() throws Exception {
+		byte[] frames=new byte[] { 0, 'h', 'e', 'l', 'l', 'o', (byte)0xff, 0, (byte)0xff, 0, 'a', 'b', 'c', 'd', 'e', 'f', 'g', (byte)0xff };
+		// Tiny buffer so every frame straddles a refill
+		FrameInputStream in=new FrameInputStream(new ByteArrayInputStream(frames), 4);
+		
+		assertEquals(0, in.readUnsignedByte());
+		assertEquals("hello", new String(in.readUntil(0xff, 100), "UTF-8"));
+		assertEquals(0, in.readUnsignedByte());
+		assertEquals(0, in.readUntil(0xff, 100).length);
+		assertEquals(0, in.readUnsignedByte());
+		assertEquals("abcdefg", new String(in.readUntil(0xff, 100), "UTF-8"));
+		assertEquals(-1, in.read());
+	}
+	
+	@Test(expected=IOException.class)
+	public void testMaxLength() throws Exception {
+		byte[] frame=new byte[] { 'a', 'b', 'c', 'd', 'e', (byte)0xff };
+		FrameInputStream in=new FrameInputStream(new ByteArrayInputStream(frame), 2);
+		in.readUntil(0xff, 4);
+	}
+	
+	@Test(expected=EOFException.class)
+	public void testUnterminated() throws Exception {
+		FrameInputStream in=new FrameInputStream(new ByteArrayInputStream(new byte[] { 'a', 'b' }), 16);
+		in.readUntil(0xff, 100);
+	}
+}
@@ -0,0 +1,131 @@
+package net.rcode.wsclient;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.URI;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Compares the client side CPU cost of one RFC 6455 handshake (writing the request
+ * and parsing a typical response) between the previous code (request built from the
+ * header map each time, responses read with readLine and checked with a regex) and
+ * the request template with the byte level response parser.
+ * 
+ * @author stella
+ *
+ */
+public class HandshakeBenchmark {
+	private static final int HANDSHAKE_COUNT=200000;
+	private static final byte[] RESPONSE=Util.getUTF8Bytes(
+		"HTTP/1.1 101 Switching Protocols\r\n" +
+		"Server: nginx/1.20.1\r\n" +
+		"Date: Tue, 07 Jun 2022 10:15:30 GMT\r\n" +
+		"Connection: upgrade\r\n" +
+		"Upgrade: websocket\r\n" +
+		"Sec-WebSocket-Accept: s3pPLMBiTxaQ9kYGzzhZRbK+xOo=\r\n" +
+		"Sec-WebSocket-Protocol: chat\r\n" +
+		"\r\n");
+	
+	private static final OutputStream NULL_OUTPUT=new OutputStream() {
+		public void write(int b) {
+		}
+		public void write(byte[] b, int off, int len) {
+		}
+	};
+	
+	/**
+	 * The previous request writer and response reader
+	 */
+	private static class LegacyProtocol extends WireProtocol {
+		void writeLegacyRequest(WebSocket socket, URI uri, OutputStream out, String key) throws IOException {
+			Map<String,String> headerMap=socket.getRequestHeaders();
+			headerMap.put("Connection", "Upgrade");
+			headerMap.put("Upgrade", "websocket");
+			headerMap.put("Sec-WebSocket-Key", key);
+			headerMap.put("Sec-WebSocket-Version", "13");
+			headerMap.put("Sec-WebSocket-Protocol", "chat");
+			
+			String path=uri.getRawPath();
+			if (uri.getRawQuery()!=null) path+='?' + uri.getRawQuery();
+			StringBuilder request=new StringBuilder(1500);
+			request.append("GET ").append(path).append(" HTTP/1.1\r\n");
+			for (Map.Entry<String, String> entry: headerMap.entrySet()) {
+				request.append(entry.getKey()).append(": ").append(entry.getValue()).append("\r\n");
+			}
+			request.append("\r\n");
+			out.write(Util.getUTF8Bytes(request));
+		}
+		
+		Map<String,String> readLegacyResponse(InputStream in) throws IOException {
+			String statusLine=readLine(in);
+			if (!VERIFY_STATUSLINE_PATTERN.matcher(statusLine).find())
+				throw new IOException("Bad status line from server: " + statusLine);
+			Map<String,String> responseHeaders=new HashMap<String, String>();
+			for (;;) {
+				String headerLine=readLine(in);
+				if (headerLine.length()==0) break;
+				int colonPos=headerLine.indexOf(": ");
+				if (colonPos<0) throw new IOException("Illegal HTTP header in response");
+				responseHeaders.put(headerLine.substring(0, colonPos).toLowerCase(), headerLine.substring(colonPos+2));
+			}
+			return responseHeaders;
+		}
+	}
+	
+	public static void main(String[] args) throws Exception {
+		URI uri=new URI("ws://example.com/socket?client=benchmark");
+		
+		// Warm up
+		runLegacy(uri, 20000);
+		runTemplate(uri, 20000);
+		
+		System.out.println("Legacy handshake:   " + format(runLegacy(uri, HANDSHAKE_COUNT)) + " us/handshake");
+		System.out.println("Template handshake: " + format(runTemplate(uri, HANDSHAKE_COUNT)) + " us/handshake");
+	}
+	
+	private static WebSocket newSocket() {
+		WebSocket ws=new WebSocket("ws://example.com/socket?client=benchmark", "chat");
+		ws.getRequestHeaders().put("Host", "example.com");
+		ws.addRequestHeader("Origin", "http://example.com");
+		return ws;
+	}
+	
+	private static double runLegacy(URI uri, int count) throws Exception {
+		LegacyProtocol protocol=new LegacyProtocol();
+		WebSocket ws=newSocket();
+		long start=System.nanoTime();
+		int total=0;
+		for (int i=0; i<count; i++) {
+			protocol.writeLegacyRequest(ws, uri, NULL_OUTPUT, "dGhlIHNhbXBsZSBub25jZQ==");
+			FrameInputStream in=new FrameInputStream(new ByteArrayInputStream(RESPONSE), 1500);
+			total+=protocol.readLegacyResponse(in).size();
+		}
+		return perHandshake(count, start, total);
+	}
+	
+	private static double runTemplate(URI uri, int count) throws Exception {
+		WireProtocol protocol=WireProtocolRfc6455.INSTANCE;
+		WebSocket ws=newSocket();
+		long start=System.nanoTime();
+		int total=0;
+		for (int i=0; i<count; i++) {
+			protocol.writeRequest(ws, uri, NULL_OUTPUT, "Sec-WebSocket-Key", "dGhlIHNhbXBsZSBub25jZQ==");
+			FrameInputStream in=new FrameInputStream(new ByteArrayInputStream(RESPONSE), 1500);
+			total+=protocol.readResponse(ws, in).size();
+		}
+		return perHandshake(count, start, total);
+	}
+	
+	private static double perHandshake(int count, long start, int total) {
+		long elapsed=System.nanoTime()-start;
+		if (total==0) throw new IllegalStateException();
+		return elapsed / 1000.0 / count;
+	}
+	
+	private static String format(double micros) {
+		return String.valueOf(Math.round(micros*100)/100.0);
+	}
+}
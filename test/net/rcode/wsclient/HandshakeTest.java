@@ -0,0 +1,99 @@
+package net.rcode.wsclient;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URI;
+import java.util.Map;
+
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+public class HandshakeTest {
+	private static final String RESPONSE=
+		"HTTP/1.1 101 Switching Protocols\r\n" +
+		"Upgrade: websocket\r\n" +
+		"CONNECTION:Upgrade\r\n" +
+		"Sec-WebSocket-Extensions: a\r\n" +
+		"Sec-WebSocket-Extensions:  b \r\n" +
+		"X-Name: gr\u00fc\u00dfe\n" +
+		"\r\n" +
+		"rest";
+	
+	private static Map<String,String> read(InputStream in) throws IOException {
+		return WireProtocolRfc6455.INSTANCE.readResponse(new WebSocket("ws://localhost/"), in);
+	}
+	
+	@Test
+	public void testReadResponse() throws Exception {
+		byte[] bytes=Util.getUTF8Bytes(RESPONSE);
+		// Both the scanning path and the byte at a time path
+		InputStream[] inputs={
+			new FrameInputStream(new ByteArrayInputStream(bytes), 16),
+			new DataInputStream(new ByteArrayInputStream(bytes))
+		};
+		for (InputStream in: inputs) {
+			Map<String,String> headers=read(in);
+			assertEquals(4, headers.size());
+			assertEquals("websocket", headers.get("upgrade"));
+			assertEquals("Upgrade", headers.get("connection"));
+			assertEquals("a, b", headers.get("sec-websocket-extensions"));
+			assertEquals("gr\u00fc\u00dfe", headers.get("x-name"));
+			
+			// Nothing past the headers is consumed
+			assertEquals('r', in.read());
+		}
+	}
+	
+	@Test
+	public void testBadResponse() throws Exception {
+		String[] bad={
+			"HTTP/1.1 200 OK\r\n\r\n",
+			"HTTP/1.1 1010 Nope\r\n\r\n",
+			"ICY 101 Switching\r\n\r\n",
+			"HTTP/1.1 101 Switching Protocols\r\nNoColon\r\n\r\n",
+			"HTTP/1.1 101 Switching Protocols\r\n",
+		};
+		for (String response: bad) {
+			try {
+				read(new FrameInputStream(new ByteArrayInputStream(Util.getUTF8Bytes(response)), 64));
+				fail(response);
+			} catch (IOException e) {
+				// Expected
+			}
+		}
+		
+		read(new ByteArrayInputStream(Util.getUTF8Bytes("HTTP/1.0 101\r\n\r\n")));
+	}
+	
+	@Test
+	public void testRequestTemplate() throws Exception {
+		WebSocket ws=new WebSocket("ws://localhost/chat?room=1", "chat", "superchat");
+		ws.addRequestHeader("Origin", "http://localhost");
+		URI uri=new URI("ws://localhost/chat?room=1");
+		WireProtocol protocol=WireProtocolRfc6455.INSTANCE;
+		
+		ByteArrayOutputStream out=new ByteArrayOutputStream();
+		protocol.writeRequest(ws, uri, out, "Sec-WebSocket-Key", "one", "Sec-WebSocket-Extensions", null);
+		String first=out.toString("UTF-8");
+		assertTrue(first.startsWith("GET /chat?room=1 HTTP/1.1\r\n"));
+		assertTrue(first.contains("\r\nOrigin: http://localhost\r\n"));
+		assertTrue(first.contains("\r\nSec-WebSocket-Protocol: chat, superchat\r\n"));
+		assertTrue(first.endsWith("\r\nSec-WebSocket-Key: one\r\n\r\n"));
+		assertFalse(first.contains("Extensions"));
+		assertFalse(ws.getRequestHeaders().containsKey("Upgrade"));
+		
+		// The second handshake reuses the template
+		byte[] template=ws.getRequestTemplate(protocol);
+		assertNotNull(template);
+		out.reset();
+		protocol.writeRequest(ws, uri, out, "Sec-WebSocket-Key", "two");
+		assertSame(template, ws.getRequestTemplate(protocol));
+		assertEquals(first.replace("Key: one", "Key: two"), out.toString("UTF-8"));
+		
+		// Another protocol builds its own
+		assertNull(ws.getRequestTemplate(WireProtocolDraft76.INSTANCE));
+	}
+}
@@ -0,0 +1,116 @@
+package net.rcode.wsclient;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+public class InboundQueueTest {
+	private static final int MESSAGE_COUNT=500;
+	
+	@Test
+	public void testLimitsAndMetrics() throws Exception {
+		final InboundQueue queue=new InboundQueue(3, 10);
+		assertNull(queue.poll());
+		queue.put(new Message("abcd"));
+		queue.put(new Message("efgh"));
+		assertEquals(2, queue.getSize());
+		assertEquals(8, queue.getBytes());
+		assertFalse(queue.isFull());
+		queue.put(new Message("ij"));
+		assertTrue(queue.isFull());
+		
+		// The reader waits until a consumer makes space
+		Thread producer=new Thread() {
+			public void run() {
+				try {
+					queue.put(new Message("k"));
+				} catch (InterruptedException e) {
+					// Test fails below
+				}
+			}
+		};
+		producer.start();
+		producer.join(200);
+		assertTrue(producer.isAlive());
+		assertEquals("abcd", queue.poll().getMessageText().toString());
+		producer.join(5000);
+		assertFalse(producer.isAlive());
+		assertEquals(3, queue.getSize());
+		assertEquals(7, queue.getBytes());
+		
+		List<Message> drained=new ArrayList<Message>();
+		assertEquals(2, queue.drainTo(drained, 2));
+		assertEquals("efgh", drained.get(0).getMessageText().toString());
+		assertEquals("ij", drained.get(1).getMessageText().toString());
+		assertEquals(1, queue.getBytes());
+		
+		assertEquals("k", queue.poll(10, TimeUnit.MILLISECONDS).getMessageText().toString());
+		assertEquals(0, queue.getBytes());
+		assertNull(queue.poll(10, TimeUnit.MILLISECONDS));
+	}
+	
+	@Test
+	public void testCloseWakesConsumers() throws Exception {
+		InboundQueue queue=new InboundQueue(10, 1000);
+		queue.add(new Message("last"));
+		queue.close();
+		assertEquals("last", queue.take().getMessageText().toString());
+		assertNull(queue.take());
+		assertNull(queue.poll(1, TimeUnit.SECONDS));
+	}
+	
+	@Test
+	public void testBackpressure() throws Exception {
+		runBackpressure(null);
+	}
+	
+	@Test
+	public void testBackpressureSelectorEngine() throws Exception {
+		SelectorEngine engine=new SelectorEngine(1);
+		try {
+			runBackpressure(engine);
+		} finally {
+			engine.shutdown();
+		}
+	}
+	
+	private void runBackpressure(SelectorEngine engine) throws Exception {
+		EchoServerRfc6455 server=new EchoServerRfc6455();
+		try {
+			NetConfig netConfig=new NetConfig();
+			netConfig.setSelectorEngine(engine);
+			InboundQueue queue=new InboundQueue(4, 1 << 20);
+			WebSocket ws=new WebSocket(server.getUrl());
+			ws.setWireProtocol(WireProtocolRfc6455.INSTANCE);
+			ws.setNetConfig(netConfig);
+			ws.setInboundQueue(queue);
+			ws.start();
+			for (int i=0; i<MESSAGE_COUNT; i++) {
+				ws.send("message " + i);
+			}
+			
+			// Nobody consumes, so the queue fills and stays at its limit
+			for (int i=0; i<100 && !queue.isFull(); i++) {
+				Thread.sleep(20);
+			}
+			Thread.sleep(100);
+			assertEquals(4, queue.getSize());
+			
+			for (int i=0; i<MESSAGE_COUNT; i++) {
+				Message message=queue.poll(10, TimeUnit.SECONDS);
+				assertTrue("Message " + i, message!=null);
+				assertEquals("message " + i, message.getMessageText().toString());
+				assertTrue(queue.getSize()<=4);
+			}
+			
+			ws.close();
+			assertNull(queue.take());
+			assertEquals(WebSocket.CLOSED, ws.getReadyState());
+		} finally {
+			server.close();
+		}
+	}
+}
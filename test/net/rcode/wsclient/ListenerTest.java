@@ -0,0 +1,80 @@
+package net.rcode.wsclient;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+public class ListenerTest {
+	@Test
+	public void testMessageListener() throws Exception {
+		EchoServerRfc6455 server=new EchoServerRfc6455();
+		try {
+			final List<String> received=new ArrayList<String>();
+			final CountDownLatch done=new CountDownLatch(2);
+			final WebSocket ws=new WebSocket(server.getUrl());
+			ws.setWireProtocol(WireProtocolRfc6455.INSTANCE);
+			ws.addMessageListener(new WebSocket.MessageListener() {
+				public void handleMessage(WebSocket source, Message message) {
+					assertSame(ws, source);
+					synchronized (received) {
+						received.add("message " + message.getMessageText());
+					}
+				}
+			});
+			ws.addListener(new WebSocket.EventListener() {
+				public void handleEvent(WebSocket.Event event) {
+					if (event.getType()==WebSocket.EVENT_MESSAGE) {
+						synchronized (received) {
+							received.add("event " + event.getMessage().getMessageText());
+						}
+						done.countDown();
+					}
+				}
+			});
+			ws.start();
+			ws.send("a");
+			ws.send("b");
+			assertTrue(done.await(10, TimeUnit.SECONDS));
+			assertEquals(WebSocket.OPEN, ws.getReadyState());
+			synchronized (received) {
+				assertEquals("[message a, event a, message b, event b]", received.toString());
+			}
+			ws.close();
+			ws.waitForReadyState(WebSocket.CLOSED);
+		} finally {
+			server.close();
+		}
+	}
+	
+	@Test
+	public void testChangeListenersWhileDispatching() throws Exception {
+		final WebSocket ws=new WebSocket("ws://localhost/");
+		final List<String> calls=new ArrayList<String>();
+		final WebSocket.EventListener second=new WebSocket.EventListener() {
+			public void handleEvent(WebSocket.Event event) {
+				calls.add("second " + event.getReadyState());
+			}
+		};
+		ws.addListener(new WebSocket.EventListener() {
+			public void handleEvent(WebSocket.Event event) {
+				calls.add("first " + event.getReadyState());
+				if (event.getReadyState()==WebSocket.OPEN) {
+					ws.addListener(second);
+				} else {
+					ws.removeListener(this);
+					ws.removeListener(second);
+				}
+			}
+		});
+		
+		// Changes take effect from the next event on
+		ws.setReadyState(WebSocket.OPEN);
+		ws.setReadyState(WebSocket.CLOSING);
+		ws.setReadyState(WebSocket.CLOSED);
+		assertEquals("[first 1, first 2, second 2]", calls.toString());
+	}
+}
@@ -0,0 +1,103 @@
+package net.rcode.wsclient;
+
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+
+/**
+ * Minimal single connection draft76 server bound to the loopback interface.  It
+ * answers the handshake (without a valid digest, so clients must disable handshake
+ * verification) and then counts the text frames it receives.
+ * 
+ * @author stella
+ *
+ */
+public class LoopbackServer {
+	private ServerSocket serverSocket;
+	private Thread thread;
+	private long frameCount;
+	private long byteCount;
+	
+	public LoopbackServer() throws IOException {
+		serverSocket=new ServerSocket(0, 1, InetAddress.getByName("127.0.0.1"));
+		thread=new Thread("LoopbackServer") {
+			public void run() {
+				try {
+					serve();
+				} catch (IOException e) {
+					// Connection torn down
+				}
+			}
+		};
+		thread.setDaemon(true);
+		thread.start();
+	}
+	
+	public String getUrl() {
+		return "ws://127.0.0.1:" + serverSocket.getLocalPort() + "/";
+	}
+	
+	public synchronized long getFrameCount() {
+		return frameCount;
+	}
+	
+	public synchronized long getByteCount() {
+		return byteCount;
+	}
+	
+	public synchronized void waitForFrames(long count) throws InterruptedException {
+		while (frameCount<count) {
+			wait();
+		}
+	}
+	
+	public void close() throws IOException {
+		serverSocket.close();
+	}
+	
+	private void serve() throws IOException {
+		Socket socket=serverSocket.accept();
+		try {
+			InputStream in=new BufferedInputStream(socket.getInputStream(), 65536);
+			OutputStream out=socket.getOutputStream();
+			
+			// Request headers followed by the 8 byte key
+			int matched=0;
+			while (matched<4) {
+				int b=in.read();
+				if (b<0) return;
+				if (b==(matched%2==0 ? '\r' : '\n')) matched++;
+				else matched=(b=='\r' ? 1 : 0);
+			}
+			for (int i=0; i<8; i++) in.read();
+			
+			out.write(("HTTP/1.1 101 WebSocket Protocol Handshake\r\n" +
+					"Upgrade: WebSocket\r\n" +
+					"Connection: Upgrade\r\n\r\n").getBytes("ISO-8859-1"));
+			out.write(new byte[16]);
+			out.flush();
+			
+			// Count frame terminators
+			byte[] buffer=new byte[65536];
+			for (;;) {
+				int r=in.read(buffer);
+				if (r<0) break;
+				int frames=0;
+				for (int i=0; i<r; i++) {
+					if (buffer[i]==(byte)0xff) frames++;
+				}
+				synchronized (this) {
+					frameCount+=frames;
+					byteCount+=r;
+					notifyAll();
+				}
+			}
+		} finally {
+			socket.close();
+		}
+	}
+}
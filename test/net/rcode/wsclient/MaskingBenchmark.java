@@ -0,0 +1,52 @@
+package net.rcode.wsclient;
+
+import java.util.Arrays;
+
+/**
+ * Compares masking a payload a byte at a time against Util.mask, which works a
+ * long at a time.
+ * 
+ * @author stella
+ *
+ */
+public class MaskingBenchmark {
+	private static final int PAYLOAD_SIZE=16384;
+	private static final long TOTAL_BYTES=2L*1024*1024*1024;
+	
+	public static void main(String[] args) {
+		byte[] key=new byte[] { 0x37, (byte)0xfa, 0x21, 0x3d };
+		byte[] naive=new byte[PAYLOAD_SIZE];
+		byte[] wide=new byte[PAYLOAD_SIZE];
+		
+		// Warm up
+		runNaive(naive, key, TOTAL_BYTES/16);
+		runWide(wide, key, TOTAL_BYTES/16);
+		
+		double naiveRate=runNaive(naive, key, TOTAL_BYTES);
+		double wideRate=runWide(wide, key, TOTAL_BYTES);
+		if (!Arrays.equals(naive, wide)) throw new IllegalStateException("Masks differ");
+		System.out.println("Byte at a time: " + (long)naiveRate + " MB/s");
+		System.out.println("Long at a time: " + (long)wideRate + " MB/s");
+	}
+	
+	private static double runNaive(byte[] payload, byte[] key, long total) {
+		long start=System.nanoTime();
+		for (long done=0; done<total; done+=payload.length) {
+			for (int i=0; i<payload.length; i++) payload[i]^=key[i&3];
+		}
+		return rate(start, total);
+	}
+	
+	private static double runWide(byte[] payload, byte[] key, long total) {
+		long start=System.nanoTime();
+		for (long done=0; done<total; done+=payload.length) {
+			Util.mask(payload, 0, payload.length, key, 0);
+		}
+		return rate(start, total);
+	}
+	
+	private static double rate(long start, long total) {
+		long elapsed=System.nanoTime()-start;
+		return total / 1048576.0 * 1e9 / elapsed;
+	}
+}
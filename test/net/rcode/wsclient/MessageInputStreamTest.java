@@ -0,0 +1,89 @@
+package net.rcode.wsclient;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+public class MessageInputStreamTest {
+
+	@Test
+	public void testStreamedFrameDraft03() throws Exception {
+		// A 300 byte binary frame followed by a small text frame
+		ByteArrayOutputStream frames=new ByteArrayOutputStream();
+		frames.write(Message.OPCODE_BINARY);
+		frames.write(126);
+		frames.write(300 >> 8);
+		frames.write(300 & 0xff);
+		for (int i=0; i<300; i++) frames.write(i);
+		frames.write(Message.OPCODE_TEXT);
+		frames.write(2);
+		frames.write('h');
+		frames.write('i');
+		
+		WebSocket ws=new WebSocket("ws://localhost/");
+		ws.getNetConfig().setStreamingThreshold(100);
+		final List<byte[]> partial=new ArrayList<byte[]>();
+		ws.addListener(new WebSocket.EventListener() {
+			public void handleEvent(WebSocket.Event event) {
+				assertEquals(WebSocket.EVENT_MESSAGE_STREAM, event.getType());
+				MessageInputStream stream=event.getInputStream();
+				assertEquals(300, stream.getLength());
+				try {
+					// Only read part of it.  The rest is skipped on close.
+					byte[] head=new byte[10];
+					int r=stream.read(head);
+					byte[] got=new byte[r];
+					System.arraycopy(head, 0, got, 0, r);
+					partial.add(got);
+				} catch (IOException e) {
+					throw new RuntimeException(e);
+				} finally {
+					stream.close();
+				}
+			}
+		});
+		
+		FrameInputStream in=new FrameInputStream(new ByteArrayInputStream(frames.toByteArray()), 64);
+		Message message=WireProtocolDraft03.INSTANCE.readMessage(ws, in);
+		assertEquals("hi", message.getMessageText().toString());
+		assertEquals(1, partial.size());
+		assertEquals(1, partial.get(0)[1]);
+	}
+	
+	@Test
+	public void testStreamedFrameAboveMaxFrameSizeDraft76() throws Exception {
+		// A 300 byte binary frame (length 2*128+44) followed by a text frame
+		ByteArrayOutputStream frames=new ByteArrayOutputStream();
+		frames.write(0x80);
+		frames.write(0x82);
+		frames.write(44);
+		for (int i=0; i<300; i++) frames.write(i);
+		frames.write(0);
+		frames.write('h');
+		frames.write('i');
+		frames.write(0xff);
+		
+		WebSocket ws=new WebSocket("ws://localhost/");
+		ws.getNetConfig().setStreamingThreshold(100);
+		// Only applies to frames that are buffered
+		ws.getNetConfig().setMaxFrameSize(200);
+		final long[] streamed=new long[1];
+		ws.addListener(new WebSocket.EventListener() {
+			public void handleEvent(WebSocket.Event event) {
+				assertEquals(WebSocket.EVENT_MESSAGE_STREAM, event.getType());
+				streamed[0]=event.getInputStream().getLength();
+				event.getInputStream().close();
+			}
+		});
+		
+		FrameInputStream in=new FrameInputStream(new ByteArrayInputStream(frames.toByteArray()), 64);
+		Message message=WireProtocolDraft76.INSTANCE.readMessage(ws, in);
+		assertEquals("hi", message.getMessageText().toString());
+		assertEquals(300, streamed[0]);
+	}
+}
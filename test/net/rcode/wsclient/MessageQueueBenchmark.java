@@ -0,0 +1,145 @@
+package net.rcode.wsclient;
+
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.concurrent.CountDownLatch;
+
+/**
+ * Measures transmission queue throughput with 1 to 32 threads sending at once
+ * while a single writer drains it.  The previous monitor based queue is kept
+ * here as the baseline.
+ * 
+ * @author stella
+ *
+ */
+public class MessageQueueBenchmark {
+	private static final int MESSAGE_COUNT=2000000;
+	private static final int[] PRODUCER_COUNTS=new int[] { 1, 2, 4, 8, 16, 32 };
+	
+	public static void main(String[] args) throws Exception {
+		// Warm up
+		run(new LockedMessageQueue(), 4, MESSAGE_COUNT/4);
+		run(new MessageQueue(), 4, MESSAGE_COUNT/4);
+		
+		for (int producers: PRODUCER_COUNTS) {
+			double locked=run(new LockedMessageQueue(), producers, MESSAGE_COUNT);
+			double lockFree=run(new MessageQueue(), producers, MESSAGE_COUNT);
+			System.out.println(producers + " producers: locked=" + (long)locked + " msg/s, lock-free=" + (long)lockFree + " msg/s");
+		}
+	}
+	
+	private static double run(final MessageQueue queue, int producers, int count) throws Exception {
+		final int perProducer=count / producers;
+		final int total=perProducer * producers;
+		final Message message=new Message("x");
+		final CountDownLatch startLatch=new CountDownLatch(1);
+		
+		Thread[] threads=new Thread[producers];
+		for (int i=0; i<producers; i++) {
+			threads[i]=new Thread() {
+				public void run() {
+					try {
+						startLatch.await();
+					} catch (InterruptedException e) {
+						return;
+					}
+					for (int j=0; j<perProducer; j++) {
+						queue.addTail(message);
+					}
+				}
+			};
+			threads[i].start();
+		}
+		
+		long start=System.nanoTime();
+		startLatch.countDown();
+		for (int i=0; i<total; i++) {
+			Message next=queue.waitNext();
+			queue.remove(next);
+		}
+		long elapsed=System.nanoTime()-start;
+		
+		for (Thread thread: threads) thread.join();
+		if (queue.getDepth()!=0) throw new IllegalStateException("Queue not drained");
+		return total * 1e9 / elapsed;
+	}
+	
+	/**
+	 * The original LinkedList/monitor implementation
+	 */
+	private static class LockedMessageQueue extends MessageQueue {
+		private LinkedList<Message> queue=new LinkedList<Message>();
+		private int count;
+		private long bytes;
+		
+		@Override
+		public int getDepth() {
+			synchronized (queue) {
+				return count;
+			}
+		}
+		
+		@Override
+		public long getBytes() {
+			synchronized (queue) {
+				return bytes;
+			}
+		}
+		
+		@Override
+		public void addHead(Message message) {
+			synchronized (queue) {
+				boolean wasEmpty=queue.isEmpty();
+				bytes+=message.getBytes();
+				count++;
+				queue.addFirst(message);
+				if (wasEmpty) queue.notify();
+			}
+		}
+		
+		@Override
+		public void addTail(Message message) {
+			synchronized (queue) {
+				boolean wasEmpty=queue.isEmpty();
+				bytes+=message.getBytes();
+				count++;
+				queue.addLast(message);
+				if (wasEmpty) queue.notify();
+			}
+		}
+		
+		@Override
+		public Message peekNext() {
+			synchronized (queue) {
+				if (queue.isEmpty()) return null;
+				return queue.getFirst();
+			}
+		}
+		
+		@Override
+		public Message waitNext() throws InterruptedException {
+			synchronized (queue) {
+				for (;;) {
+					if (!queue.isEmpty()) return queue.getFirst();
+					else queue.wait();
+				}
+			}
+		}
+		
+		@Override
+		public void remove(Message message) {
+			synchronized (queue) {
+				Iterator<Message> iter=queue.iterator();
+				while (iter.hasNext()) {
+					Message existing=iter.next();
+					if (existing==message) {
+						count--;
+						bytes-=message.getBytes();
+						iter.remove();
+						return;
+					}
+				}
+			}
+		}
+	}
+}
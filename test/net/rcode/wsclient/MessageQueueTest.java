@@ -0,0 +1,304 @@
+package net.rcode.wsclient;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+public class MessageQueueTest {
+
+	@Test
+	public void testPriorityAndAccounting() throws Exception {
+		MessageQueue queue=new MessageQueue();
+		Message a=new Message("a"), b=new Message("bb"), control=new Message(Message.OPCODE_PONG, new byte[3], false);
+		queue.addTail(a);
+		queue.addTail(b);
+		queue.addHead(control);
+		assertEquals(3, queue.getDepth());
+		assertEquals(6, queue.getBytes());
+		
+		assertSame(control, queue.waitNext());
+		queue.remove(control);
+		assertSame(a, queue.waitNext());
+		queue.remove(a);
+		assertSame(b, queue.peekNext());
+		queue.remove(b);
+		assertNull(queue.peekNext());
+		assertEquals(0, queue.getDepth());
+		assertEquals(0, queue.getBytes());
+	}
+	
+	@Test
+	public void testDiscardControl() throws Exception {
+		MessageQueue queue=new MessageQueue();
+		Message ping=new Message(Message.OPCODE_PING, new byte[2], false);
+		Message close=new Message(Message.OPCODE_CLOSE, new byte[2], false);
+		Message a=new Message("a");
+		queue.addHead(ping);
+		queue.addTail(a);
+		queue.addLast(close);
+		
+		// Claimed by a writer that went away
+		assertSame(ping, queue.peekNext());
+		assertEquals(2, queue.discardControl());
+		assertEquals(1, queue.getDepth());
+		assertEquals(1, queue.getBytes());
+		assertSame(a, queue.peekNext());
+		queue.remove(a);
+		assertNull(queue.peekNext());
+	}
+	
+	@Test
+	public void testWatermarkEvents() throws Exception {
+		final List<Boolean> events=new ArrayList<Boolean>();
+		MessageQueue queue=new MessageQueue();
+		queue.setWatermarks(2, 4);
+		queue.setWritabilityListener(new MessageQueue.WritabilityListener() {
+			public void writabilityChanged(MessageQueue queue, boolean writable) {
+				events.add(writable);
+			}
+		});
+		
+		for (int i=0; i<5; i++) queue.addTail(new Message("x"));
+		assertFalse(queue.isWritable());
+		assertEquals(1, events.size());
+		
+		for (int i=0; i<3; i++) queue.remove(queue.peekNext());
+		assertTrue(queue.isWritable());
+		assertEquals(2, events.size());
+		assertEquals(Boolean.FALSE, events.get(0));
+		assertEquals(Boolean.TRUE, events.get(1));
+	}
+	
+	@Test(expected=QueueFullException.class)
+	public void testRejectPolicy() {
+		MessageQueue queue=new MessageQueue();
+		queue.setWatermarks(0, 2);
+		queue.setOverflowPolicy(MessageQueue.OVERFLOW_REJECT, 0);
+		queue.addTail(new Message("abc"));
+		queue.addTail(new Message("d"));
+	}
+	
+	@Test(expected=QueueFullException.class)
+	public void testBlockPolicyTimesOut() {
+		MessageQueue queue=new MessageQueue();
+		queue.setWatermarks(0, 2);
+		queue.setOverflowPolicy(MessageQueue.OVERFLOW_BLOCK, 50);
+		queue.addTail(new Message("abc"));
+		queue.addTail(new Message("d"));
+	}
+	
+	@Test
+	public void testControlFramesBypassOverflow() throws Exception {
+		int[] policies={ MessageQueue.OVERFLOW_REJECT, MessageQueue.OVERFLOW_BLOCK };
+		WireProtocol[] protocols={ WireProtocolDraft76.INSTANCE, WireProtocolDraft03.INSTANCE, WireProtocolRfc6455.INSTANCE };
+		for (int policy: policies) {
+			MessageQueue queue=new MessageQueue();
+			queue.setWatermarks(0, 2);
+			queue.setOverflowPolicy(policy, 5000);
+			queue.addTail(new Message("abc"));
+			assertFalse(queue.isWritable());
+			
+			long start=System.currentTimeMillis();
+			queue.addTail(new Message(Message.OPCODE_CLOSE, new byte[2], false));
+			queue.addHead(new Message(Message.OPCODE_PING, new byte[2], false));
+			assertTrue(System.currentTimeMillis()-start<1000);
+			assertEquals(3, queue.getDepth());
+			
+			// close() on a backed up connection
+			for (WireProtocol protocol: protocols) {
+				WebSocket ws=new WebSocket("ws://127.0.0.1/");
+				ws.setWireProtocol(protocol);
+				ws.setOutgoingWatermarks(0, 2);
+				ws.setOutgoingOverflowPolicy(policy, 5000);
+				ws.send("abc");
+				ws.setReadyState(WebSocket.OPEN);
+				start=System.currentTimeMillis();
+				ws.close();
+				assertTrue(System.currentTimeMillis()-start<1000);
+				assertEquals(2, ws.getOutgoingDepth());
+			}
+		}
+	}
+	
+	@Test
+	public void testNothingQueuedAfterClose() throws Exception {
+		MessageQueue queue=new MessageQueue();
+		Message before=new Message("before");
+		Message close=new Message(Message.OPCODE_CLOSE, new byte[2], false);
+		queue.addTail(before);
+		queue.addLast(close);
+		
+		// A sender that keeps going must not hold the close back
+		Message after=new Message("after");
+		WebSocketFuture<Message> future=new WebSocketFuture<Message>();
+		after.setSendFuture(future);
+		queue.addTail(after);
+		assertTrue(future.isDone());
+		assertFalse(future.isSuccess());
+		
+		assertEquals(2, queue.getDepth());
+		assertSame(before, queue.peekNext());
+		queue.remove(before);
+		assertSame(close, queue.peekNext());
+	}
+	
+	@Test
+	public void testDropOldestKeepsControlFrames() throws Exception {
+		MessageQueue queue=new MessageQueue();
+		queue.setWatermarks(0, 6);
+		queue.setOverflowPolicy(MessageQueue.OVERFLOW_DROP_OLDEST, 0);
+		Message close=new Message(Message.OPCODE_CLOSE, new byte[2], false);
+		Message pong=new Message(Message.OPCODE_PONG, new byte[2], false);
+		queue.addTail(close);
+		queue.addHead(pong);
+		queue.addTail(new Message("ab"));
+		Message newest=new Message("cd");
+		queue.addTail(newest);
+		
+		// The oldest user message went, the control frames did not
+		assertEquals(3, queue.getDepth());
+		assertEquals(6, queue.getBytes());
+		assertSame(pong, queue.waitNext());
+		queue.remove(pong);
+		assertSame(close, queue.waitNext());
+		queue.remove(close);
+		assertSame(newest, queue.waitNext());
+		queue.remove(newest);
+		assertEquals(0, queue.getDepth());
+		assertEquals(0, queue.getBytes());
+	}
+	
+	@Test
+	public void testStrictLanes() throws Exception {
+		MessageQueue queue=new MessageQueue();
+		Message bulk=new Message("bulk"), normal=new Message("normal"), high=new Message("high");
+		Message close=new Message(Message.OPCODE_CLOSE, null, false);
+		Message pong=new Message(Message.OPCODE_PONG, null, false);
+		queue.addTail(bulk, MessageQueue.LANE_BULK);
+		queue.addTail(normal);
+		queue.addTail(high, MessageQueue.LANE_HIGH);
+		queue.addLast(close);
+		queue.addHead(pong);
+		assertEquals(1, queue.getDepth(MessageQueue.LANE_BULK));
+		assertEquals(4, queue.getBytes(MessageQueue.LANE_HIGH));
+		
+		Message[] expected=new Message[] { pong, high, normal, bulk, close };
+		for (Message message: expected) {
+			assertSame(message, queue.waitNext());
+			queue.remove(message);
+		}
+		assertEquals(0, queue.getDepth());
+	}
+	
+	@Test
+	public void testWeightedLanes() throws Exception {
+		MessageQueue queue=new MessageQueue(2);
+		queue.setSchedulingPolicy(MessageQueue.SCHEDULE_WEIGHTED);
+		queue.setLaneWeight(0, 3);
+		queue.setLaneWeight(1, 1);
+		for (int i=0; i<60; i++) {
+			queue.addTail(new Message(new byte[500]), 0);
+			queue.addTail(new Message(new byte[500]), 1);
+		}
+		
+		// Both lanes backlogged: the first lane should get three times the bytes
+		int[] sent=new int[2];
+		for (int i=0; i<48; i++) {
+			Message next=queue.waitNext();
+			int before=queue.getDepth(0);
+			queue.remove(next);
+			sent[before==queue.getDepth(0) ? 1 : 0]++;
+		}
+		assertEquals(36, sent[0]);
+		assertEquals(12, sent[1]);
+	}
+	
+	@Test
+	public void testWeightedAfterStrict() throws Exception {
+		MessageQueue queue=new MessageQueue(2);
+		for (int i=0; i<100; i++) {
+			queue.addTail(new Message(new byte[500]), 0);
+		}
+		while (queue.getDepth()>0) {
+			queue.remove(queue.waitNext());
+		}
+		
+		// What was sent strictly is not held against the lane
+		queue.setSchedulingPolicy(MessageQueue.SCHEDULE_WEIGHTED);
+		queue.setLaneWeight(0, 1);
+		queue.setLaneWeight(1, 1);
+		for (int i=0; i<20; i++) {
+			queue.addTail(new Message(new byte[500]), 0);
+			queue.addTail(new Message(new byte[500]), 1);
+		}
+		int[] sent=new int[2];
+		for (int i=0; i<12; i++) {
+			Message next=queue.waitNext();
+			int before=queue.getDepth(0);
+			queue.remove(next);
+			sent[before==queue.getDepth(0) ? 1 : 0]++;
+		}
+		assertEquals(6, sent[0]);
+		assertEquals(6, sent[1]);
+	}
+	
+	@Test
+	public void testConflation() throws Exception {
+		MessageQueue queue=new MessageQueue();
+		Message first=new Message("a");
+		assertFalse(queue.addTail("price", first));
+		queue.addTail(new Message("other"));
+		Message latest=new Message("abc");
+		assertTrue(queue.addTail("price", new Message("ab")));
+		assertTrue(queue.addTail("price", latest));
+		assertEquals(2, queue.getDepth());
+		assertEquals(8, queue.getBytes());
+		
+		// Replaced in place, ahead of the other message
+		assertSame(latest, queue.waitNext());
+		
+		// Once the writer has it, the key starts a new message
+		assertFalse(queue.addTail("price", new Message("d")));
+		assertEquals(3, queue.getDepth());
+		queue.remove(latest);
+		assertEquals(2, queue.getDepth());
+	}
+	
+	@Test
+	public void testConcurrentConflation() throws Exception {
+		final MessageQueue queue=new MessageQueue();
+		Thread[] producers=new Thread[4];
+		for (int p=0; p<producers.length; p++) {
+			producers[p]=new Thread() {
+				public void run() {
+					for (int i=0; i<20000; i++) {
+						queue.addTail("key", new Message("v" + i));
+					}
+				}
+			};
+			producers[p].start();
+		}
+		for (Thread producer: producers) {
+			producer.join();
+		}
+		
+		// However the producers interleaved, the latest value is all that waits
+		assertEquals(1, queue.getDepth());
+		assertTrue(queue.peekNext()!=null);
+	}
+	
+	@Test
+	public void testTimeToLive() throws Exception {
+		MessageQueue queue=new MessageQueue();
+		queue.addTail(null, new Message("stale"), MessageQueue.LANE_NORMAL, 1);
+		Message fresh=new Message("fresh");
+		queue.addTail(fresh);
+		Thread.sleep(10);
+		
+		assertSame(fresh, queue.waitNext());
+		assertEquals(1, queue.getDepth());
+		assertEquals(5, queue.getBytes());
+	}
+}
@@ -0,0 +1,110 @@
+package net.rcode.wsclient;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+public class MessageSourceTest {
+	private static byte[] payload(int length) {
+		byte[] ret=new byte[length];
+		for (int i=0; i<length; i++) ret[i]=(byte)(i*31);
+		return ret;
+	}
+	
+	@Test
+	public void testStreamSource() throws Exception {
+		byte[] data=payload(20000);
+		Message message=new Message(Message.OPCODE_BINARY, new ByteArrayInputStream(data), data.length);
+		assertEquals(20000, message.getBytes());
+		assertTrue(message.isStreamed());
+		
+		ByteArrayOutputStream out=new ByteArrayOutputStream();
+		message.writePayload(out, null);
+		assertArrayEquals(data, out.toByteArray());
+	}
+	
+	@Test(expected=IOException.class)
+	public void testShortStream() throws Exception {
+		Message message=new Message(Message.OPCODE_BINARY, new ByteArrayInputStream(new byte[10]), 11);
+		message.writePayload(new ByteArrayOutputStream(), null);
+	}
+	
+	@Test
+	public void testBufferSource() throws Exception {
+		byte[] data=payload(10000);
+		ByteBuffer direct=ByteBuffer.allocateDirect(data.length + 5);
+		direct.position(5);
+		direct.put(data);
+		direct.position(5);
+		
+		Message message=new Message(Message.OPCODE_BINARY, direct);
+		assertEquals(10000, message.getBytes());
+		ByteArrayOutputStream out=new ByteArrayOutputStream();
+		message.writePayload(out, null);
+		assertArrayEquals(data, out.toByteArray());
+		// Position of the caller's buffer is untouched and the message can be written again
+		assertEquals(5, direct.position());
+		out.reset();
+		message.writePayload(out, null);
+		assertArrayEquals(data, out.toByteArray());
+	}
+	
+	@Test
+	public void testFileSource() throws Exception {
+		byte[] data=payload(30000);
+		File file=File.createTempFile("wsclient", ".bin");
+		try {
+			FileOutputStream fileOut=new FileOutputStream(file);
+			fileOut.write(data);
+			fileOut.close();
+			
+			byte[] region=new byte[20000];
+			System.arraycopy(data, 1000, region, 0, region.length);
+			
+			RandomAccessFile raf=new RandomAccessFile(file, "r");
+			FileChannel channel=raf.getChannel();
+			try {
+				Message message=new Message(Message.OPCODE_BINARY, channel, 1000, region.length);
+				
+				// Copied through the stream
+				ByteArrayOutputStream out=new ByteArrayOutputStream();
+				message.writePayload(out, null);
+				assertArrayEquals(region, out.toByteArray());
+				
+				// Transferred to the channel after flushing what was buffered
+				out.reset();
+				out.write(1);
+				ByteArrayOutputStream sink=new ByteArrayOutputStream();
+				message.writePayload(out, Channels.newChannel(sink));
+				assertArrayEquals(region, sink.toByteArray());
+			} finally {
+				raf.close();
+			}
+		} finally {
+			file.delete();
+		}
+	}
+	
+	@Test
+	public void testFramedDraft03() throws Exception {
+		byte[] data=payload(300);
+		WebSocket ws=new WebSocket("ws://localhost/");
+		ByteArrayOutputStream out=new ByteArrayOutputStream();
+		WireProtocolDraft03.INSTANCE.sendMessage(ws, new DataOutputStream(out),
+				new Message(Message.OPCODE_BINARY, ByteBuffer.wrap(data)));
+		byte[] frame=out.toByteArray();
+		assertEquals(4 + 300, frame.length);
+		assertEquals(126, frame[1]);
+		assertEquals(data[299], frame[frame.length-1]);
+	}
+}
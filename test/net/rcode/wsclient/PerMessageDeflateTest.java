@@ -0,0 +1,132 @@
+package net.rcode.wsclient;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+public class PerMessageDeflateTest {
+	private static final String QUOTE="{\"channel\":\"quotes\",\"symbol\":\"ACME\",\"bid\":101.25,\"ask\":101.5,\"size\":300}";
+	
+	@Test
+	public void testNegotiate() throws Exception {
+		NetConfig config=new NetConfig();
+		assertNull(PerMessageDeflate.negotiate(config, null));
+		
+		PerMessageDeflate deflate=PerMessageDeflate.negotiate(config,
+				"permessage-deflate; server_no_context_takeover; server_max_window_bits=10");
+		assertTrue(deflate.isCompressingOutbound());
+		
+		deflate=PerMessageDeflate.negotiate(config, "permessage-deflate; client_max_window_bits=\"9\"");
+		assertFalse(deflate.isCompressingOutbound());
+		
+		try {
+			PerMessageDeflate.negotiate(config, "permessage-deflate; bogus");
+			fail();
+		} catch (IOException e) {
+			// Expected
+		}
+		try {
+			PerMessageDeflate.negotiate(config, "x-webkit-deflate-frame");
+			fail();
+		} catch (IOException e) {
+			// Expected
+		}
+		
+		config.setCompressionWindowBits(10);
+		config.setCompressionContextTakeover(false);
+		assertEquals("permessage-deflate; server_max_window_bits=10; client_no_context_takeover; server_no_context_takeover",
+				PerMessageDeflate.buildOffer(config));
+	}
+	
+	@Test
+	public void testRoundTripWithContextTakeover() throws Exception {
+		NetConfig config=new NetConfig();
+		PerMessageDeflate client=PerMessageDeflate.negotiate(config, "permessage-deflate");
+		PerMessageDeflate server=PerMessageDeflate.negotiate(config, "permessage-deflate");
+		
+		int firstSize=0, lastSize=0;
+		for (int i=0; i<20; i++) {
+			Message original=new Message(QUOTE);
+			Message compressed=client.deflate(original);
+			if (i==0) firstSize=compressed.getBytes();
+			lastSize=compressed.getBytes();
+			Message inflated=server.inflate(Message.OPCODE_TEXT, compressed.getMessageData(), compressed.getBytes(), Integer.MAX_VALUE);
+			assertEquals(QUOTE, inflated.getMessageText().toString());
+		}
+		
+		// Later messages are mostly back references to earlier ones
+		assertTrue(lastSize < firstSize/2);
+		assertEquals(20, client.getMessagesDeflated());
+		assertEquals(20L*QUOTE.length(), client.getBytesBeforeDeflate());
+		assertTrue(client.getOutboundRatio() < 0.5);
+		assertEquals(20, server.getMessagesInflated());
+		assertEquals(client.getBytesAfterDeflate(), server.getBytesBeforeInflate());
+		assertEquals(client.getOutboundRatio(), server.getInboundRatio(), 0.0001);
+	}
+	
+	@Test(expected=IOException.class)
+	public void testInflateLimit() throws Exception {
+		PerMessageDeflate client=PerMessageDeflate.negotiate(new NetConfig(), "permessage-deflate");
+		Message compressed=client.deflate(new Message(new byte[10000]));
+		client.inflate(Message.OPCODE_BINARY, compressed.getMessageData(), compressed.getBytes(), 9999);
+	}
+	
+	@Test
+	public void testFrames() throws Exception {
+		WebSocket ws=new WebSocket("ws://localhost/");
+		ws.getNetConfig().setCompressionThreshold(16);
+		ws.setPerMessageDeflate(PerMessageDeflate.negotiate(ws.getNetConfig(), "permessage-deflate"));
+		
+		// Outbound frame has RSV1 set and inflates to the original
+		ByteArrayOutputStream sink=new ByteArrayOutputStream();
+		FrameOutputStream out=new FrameOutputStream(sink, 1500);
+		WireProtocolRfc6455.INSTANCE.sendMessage(ws, out, new Message(QUOTE));
+		out.flush();
+		byte[] frame=sink.toByteArray();
+		assertEquals(0xc1, frame[0]&0xff);
+		int length=frame[1]&0x7f;
+		assertTrue(length < QUOTE.length());
+		byte[] payload=new byte[length+4];
+		for (int i=0; i<length; i++) payload[i]=(byte)(frame[6+i] ^ frame[2 + (i&3)]);
+		payload[length+2]=(byte)0xff;
+		payload[length+3]=(byte)0xff;
+		Inflater inflater=new Inflater(true);
+		inflater.setInput(payload);
+		byte[] inflated=new byte[QUOTE.length()];
+		assertEquals(QUOTE.length(), inflater.inflate(inflated));
+		assertEquals(QUOTE, Util.decodeUTF8(inflated, 0, inflated.length));
+		
+		// Short messages go uncompressed
+		sink.reset();
+		WireProtocolRfc6455.INSTANCE.sendMessage(ws, out, new Message("hi"));
+		out.flush();
+		assertEquals(0x81, sink.toByteArray()[0]&0xff);
+		
+		// Inbound compressed frame
+		Deflater deflater=new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+		deflater.setInput(Util.getUTF8Bytes(QUOTE));
+		byte[] compressed=new byte[200];
+		int count=deflater.deflate(compressed, 0, compressed.length, Deflater.SYNC_FLUSH) - 4;
+		ByteArrayOutputStream frames=new ByteArrayOutputStream();
+		frames.write(0xc1);
+		frames.write(count);
+		frames.write(compressed, 0, count);
+		FrameInputStream in=new FrameInputStream(new ByteArrayInputStream(frames.toByteArray()), 64);
+		Message message=WireProtocolRfc6455.INSTANCE.readMessage(ws, in);
+		assertEquals(QUOTE, message.getMessageText().toString());
+	}
+	
+	@Test(expected=IOException.class)
+	public void testCompressedFrameWithoutExtension() throws Exception {
+		ByteArrayOutputStream frames=new ByteArrayOutputStream();
+		frames.write(0xc1);
+		frames.write(0);
+		FrameInputStream in=new FrameInputStream(new ByteArrayInputStream(frames.toByteArray()), 64);
+		WireProtocolRfc6455.INSTANCE.readMessage(new WebSocket("ws://localhost/"), in);
+	}
+}
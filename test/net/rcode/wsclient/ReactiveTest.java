@@ -0,0 +1,297 @@
+package net.rcode.wsclient;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+public class ReactiveTest {
+	private static final int MESSAGE_COUNT=200;
+	
+	/**
+	 * Records what it is given and requests only when told to
+	 */
+	private static class RecordingSubscriber implements Reactive.Subscriber<Message> {
+		final List<String> received=new ArrayList<String>();
+		final CountDownLatch terminated=new CountDownLatch(1);
+		Reactive.Subscription subscription;
+		long requested;
+		Throwable error;
+		boolean completed;
+		
+		public synchronized void onSubscribe(Reactive.Subscription subscription) {
+			this.subscription=subscription;
+		}
+		public synchronized void onNext(Message item) {
+			received.add(item.getMessageText().toString());
+			if (received.size()>requested) error=new IllegalStateException("More than requested");
+			notifyAll();
+		}
+		public void onError(Throwable throwable) {
+			synchronized (this) {
+				error=throwable;
+			}
+			terminated.countDown();
+		}
+		public void onComplete() {
+			synchronized (this) {
+				completed=true;
+			}
+			terminated.countDown();
+		}
+		
+		void request(long n) {
+			synchronized (this) {
+				requested+=n;
+			}
+			subscription.request(n);
+		}
+		
+		synchronized void waitForCount(int count) throws InterruptedException {
+			long deadline=System.currentTimeMillis() + 10000;
+			while (received.size()<count && System.currentTimeMillis()<deadline) {
+				wait(100);
+			}
+			assertEquals(count, received.size());
+		}
+	}
+	
+	@Test
+	public void testPublisherDemand() throws Exception {
+		runPublisherDemand(null);
+	}
+	
+	@Test
+	public void testPublisherDemandSelectorEngine() throws Exception {
+		SelectorEngine engine=new SelectorEngine(1);
+		try {
+			runPublisherDemand(engine);
+		} finally {
+			engine.shutdown();
+		}
+	}
+	
+	private void runPublisherDemand(SelectorEngine engine) throws Exception {
+		EchoServerRfc6455 server=new EchoServerRfc6455();
+		try {
+			NetConfig netConfig=new NetConfig();
+			netConfig.setSelectorEngine(engine);
+			WebSocket ws=new WebSocket(server.getUrl());
+			ws.setWireProtocol(WireProtocolRfc6455.INSTANCE);
+			ws.setNetConfig(netConfig);
+			MessagePublisher publisher=new MessagePublisher(ws);
+			RecordingSubscriber subscriber=new RecordingSubscriber();
+			publisher.subscribe(subscriber);
+			
+			ws.start();
+			for (int i=0; i<MESSAGE_COUNT; i++) {
+				ws.send("message " + i);
+			}
+			
+			// Only what was asked for is read
+			subscriber.request(5);
+			subscriber.waitForCount(5);
+			Thread.sleep(200);
+			subscriber.waitForCount(5);
+			
+			for (int i=5; i<MESSAGE_COUNT; i++) {
+				subscriber.request(1);
+			}
+			subscriber.waitForCount(MESSAGE_COUNT);
+			synchronized (subscriber) {
+				assertNull(subscriber.error);
+				for (int i=0; i<MESSAGE_COUNT; i++) {
+					assertEquals("message " + i, subscriber.received.get(i));
+				}
+			}
+			
+			ws.close();
+			assertTrue(subscriber.terminated.await(10, TimeUnit.SECONDS));
+			synchronized (subscriber) {
+				assertTrue(subscriber.completed);
+				assertNull(subscriber.error);
+			}
+			
+			// A second subscriber is refused
+			RecordingSubscriber second=new RecordingSubscriber();
+			publisher.subscribe(second);
+			assertTrue(second.terminated.await(1, TimeUnit.SECONDS));
+			assertTrue(second.error instanceof IllegalStateException);
+		} finally {
+			server.close();
+		}
+	}
+	
+	@Test
+	public void testNonPositiveRequest() throws Exception {
+		runNonPositiveRequest(null);
+	}
+	
+	@Test
+	public void testNonPositiveRequestSelectorEngine() throws Exception {
+		SelectorEngine engine=new SelectorEngine(1);
+		try {
+			runNonPositiveRequest(engine);
+		} finally {
+			engine.shutdown();
+		}
+	}
+	
+	private void runNonPositiveRequest(SelectorEngine engine) throws Exception {
+		EchoServerRfc6455 server=new EchoServerRfc6455();
+		try {
+			NetConfig netConfig=new NetConfig();
+			netConfig.setSelectorEngine(engine);
+			WebSocket ws=new WebSocket(server.getUrl());
+			ws.setWireProtocol(WireProtocolRfc6455.INSTANCE);
+			ws.setNetConfig(netConfig);
+			MessagePublisher publisher=new MessagePublisher(ws);
+			final Thread[] errorThread=new Thread[1];
+			RecordingSubscriber subscriber=new RecordingSubscriber() {
+				public void onError(Throwable throwable) {
+					synchronized (this) {
+						errorThread[0]=Thread.currentThread();
+					}
+					super.onError(throwable);
+				}
+			};
+			publisher.subscribe(subscriber);
+			ws.connectAsync().get(10, TimeUnit.SECONDS);
+			
+			// Signalled by the connection rather than the requesting thread, so that
+			// it can not overlap onNext
+			subscriber.request(0);
+			assertTrue(subscriber.terminated.await(10, TimeUnit.SECONDS));
+			synchronized (subscriber) {
+				assertTrue(subscriber.error instanceof IllegalArgumentException);
+				assertNotNull(errorThread[0]);
+				assertTrue(errorThread[0]!=Thread.currentThread());
+			}
+			
+			// Cancelled, so the connection carries on
+			ws.send("after");
+			ws.close();
+			ws.waitForReadyState(WebSocket.CLOSED);
+			synchronized (subscriber) {
+				assertFalse(subscriber.completed);
+				assertTrue(subscriber.received.isEmpty());
+			}
+		} finally {
+			server.close();
+		}
+	}
+	
+	@Test
+	public void testSubscriberRefused() throws Exception {
+		EchoServerRfc6455 server=new EchoServerRfc6455();
+		try {
+			WebSocket ws=new WebSocket(server.getUrl());
+			ws.setWireProtocol(WireProtocolRfc6455.INSTANCE);
+			final MessageSubscriber subscriber=new MessageSubscriber(ws, 4);
+			MessageQueue queue=ws.getTransmissionQueue();
+			queue.setWatermarks(1, 2);
+			queue.setOverflowPolicy(MessageQueue.OVERFLOW_REJECT, 0);
+			
+			// Emits whatever is requested straight away.  The queue takes the first
+			// message and is then above its high watermark.
+			final List<Throwable> thrown=new ArrayList<Throwable>();
+			final boolean[] cancelled=new boolean[1];
+			subscriber.onSubscribe(new Reactive.Subscription() {
+				public void request(long n) {
+					for (int i=0; i<n && !cancelled[0]; i++) {
+						try {
+							subscriber.onNext(new Message("message " + i));
+						} catch (Throwable t) {
+							thrown.add(t);
+						}
+					}
+				}
+				public void cancel() {
+					cancelled[0]=true;
+				}
+			});
+			assertTrue(thrown.toString(), thrown.isEmpty());
+			assertTrue(cancelled[0]);
+			assertEquals(1, queue.getDepth());
+			
+			// Closed with an error once it opens
+			ws.start();
+			ws.waitForReadyState(WebSocket.CLOSED);
+			assertEquals(WebSocket.CLOSE_INTERNAL_ERROR, ws.getCloseCode());
+		} finally {
+			server.close();
+		}
+	}
+	
+	@Test
+	public void testSubscriberBackpressure() throws Exception {
+		EchoServerRfc6455 server=new EchoServerRfc6455();
+		try {
+			final int count=2000;
+			final WebSocket ws=new WebSocket(server.getUrl());
+			ws.setWireProtocol(WireProtocolRfc6455.INSTANCE);
+			final CountDownLatch echoed=new CountDownLatch(count);
+			final List<String> errors=new ArrayList<String>();
+			ws.addMessageListener(new WebSocket.MessageListener() {
+				private int next;
+				public void handleMessage(WebSocket source, Message message) {
+					if (!message.getMessageText().toString().startsWith("message " + next++ + " ")) errors.add(message.toString());
+					echoed.countDown();
+				}
+			});
+			final MessageQueue queue=ws.getTransmissionQueue();
+			final long[] maxQueued=new long[1];
+			
+			MessageSubscriber subscriber=new MessageSubscriber(ws, 16);
+			assertEquals(MessageSubscriber.DEFAULT_HIGH_WATERMARK, queue.getHighWatermark());
+			
+			// Emits on request, from the requesting thread, without recursing
+			final String padding=new String(new char[1000]).replace('\0', 'x');
+			assertEquals(1000, padding.length());
+			Reactive.Publisher<Message> source=new Reactive.Publisher<Message>() {
+				public void subscribe(final Reactive.Subscriber<? super Message> s) {
+					s.onSubscribe(new Reactive.Subscription() {
+						private long demand;
+						private int next;
+						private boolean emitting;
+						public synchronized void request(long n) {
+							demand+=n;
+							if (emitting) return;
+							emitting=true;
+							while (demand>0 && next<count) {
+								demand--;
+								int i=next++;
+								s.onNext(new Message("message " + i + " " + padding));
+								maxQueued[0]=Math.max(maxQueued[0], queue.getBytes());
+							}
+							emitting=false;
+							if (next==count) {
+								next++;
+								s.onComplete();
+							}
+						}
+						public synchronized void cancel() {
+							next=count+1;
+						}
+					});
+				}
+			};
+			source.subscribe(subscriber);
+			ws.start();
+			
+			assertTrue(echoed.await(30, TimeUnit.SECONDS));
+			assertTrue(errors.toString(), errors.isEmpty());
+			// Never more than a prefetch beyond the high watermark
+			assertTrue("Queued " + maxQueued[0], maxQueued[0]<=MessageSubscriber.DEFAULT_HIGH_WATERMARK + 16*1020);
+			
+			// onComplete closed it normally
+			ws.waitForReadyState(WebSocket.CLOSED);
+			assertEquals(WebSocket.CLOSE_NORMAL, ws.getCloseCode());
+		} finally {
+			server.close();
+		}
+	}
+}
@@ -0,0 +1,370 @@
+package net.rcode.wsclient;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+public class ReconnectTest {
+	@Test
+	public void testReconnectDelay() {
+		Random random=new Random(1);
+		for (int i=0; i<100; i++) {
+			long first=WebSocket.computeReconnectDelay(100, 10000, 1, random);
+			assertTrue("first " + first, first>=50 && first<=100);
+			long third=WebSocket.computeReconnectDelay(100, 10000, 3, random);
+			assertTrue("third " + third, third>=200 && third<=400);
+			long capped=WebSocket.computeReconnectDelay(100, 10000, 1000, random);
+			assertTrue("capped " + capped, capped>=5000 && capped<=10000);
+		}
+	}
+	
+	@Test
+	public void testReconnect() throws Exception {
+		runReconnect(null);
+	}
+	
+	@Test
+	public void testReconnectSelectorEngine() throws Exception {
+		SelectorEngine engine=new SelectorEngine(1);
+		try {
+			runReconnect(engine);
+		} finally {
+			engine.shutdown();
+		}
+	}
+	
+	private void runReconnect(SelectorEngine engine) throws Exception {
+		EchoServerRfc6455 server=new EchoServerRfc6455();
+		try {
+			NetConfig netConfig=new NetConfig();
+			netConfig.setSelectorEngine(engine);
+			netConfig.setReconnect(true);
+			netConfig.setReconnectMinDelay(10);
+			WebSocket ws=new WebSocket(server.getUrl());
+			ws.setWireProtocol(WireProtocolRfc6455.INSTANCE);
+			ws.setNetConfig(netConfig);
+			final List<WebSocket.Event> reconnects=new ArrayList<WebSocket.Event>();
+			ws.addListener(new WebSocket.EventListener() {
+				public void handleEvent(WebSocket.Event event) {
+					if (event.getType()==WebSocket.EVENT_RECONNECTING) {
+						synchronized (reconnects) {
+							reconnects.add(event);
+						}
+					}
+				}
+			});
+			InboundQueue inbound=new InboundQueue(1000, Long.MAX_VALUE);
+			ws.setInboundQueue(inbound);
+			
+			// The first two attempts are turned away.  What was queued meanwhile is
+			// sent once a connection opens.
+			server.dropNext(2);
+			ws.send("queued");
+			ws.connectAsync().get(10, TimeUnit.SECONDS);
+			assertEquals("queued", inbound.poll(10, TimeUnit.SECONDS).getMessageText().toString());
+			synchronized (reconnects) {
+				assertEquals(2, reconnects.size());
+				assertEquals(1, reconnects.get(0).getReconnectAttempt());
+				assertEquals(2, reconnects.get(1).getReconnectAttempt());
+			}
+			
+			// Lost while open.  Sent once the loss has been noticed, so that it can
+			// not go to the dead connection.
+			server.dropConnections();
+			long deadline=System.currentTimeMillis() + 10000;
+			for (;;) {
+				synchronized (reconnects) {
+					if (reconnects.size()==3) break;
+				}
+				assertTrue(System.currentTimeMillis()<deadline);
+				Thread.sleep(5);
+			}
+			ws.send("after drop");
+			assertEquals("after drop", inbound.poll(10, TimeUnit.SECONDS).getMessageText().toString());
+			assertEquals(WebSocket.OPEN, ws.getReadyState());
+			synchronized (reconnects) {
+				assertEquals(3, reconnects.size());
+				// Counted from 1 again after the connection opened
+				assertEquals(1, reconnects.get(2).getReconnectAttempt());
+			}
+			
+			// Only the application ends it
+			assertEquals(WebSocket.CLOSE_NORMAL, ws.closeAsync(0).get(10, TimeUnit.SECONDS).intValue());
+			assertEquals(WebSocket.CLOSED, ws.getReadyState());
+			synchronized (reconnects) {
+				assertEquals(3, reconnects.size());
+			}
+		} finally {
+			server.close();
+		}
+	}
+	
+	@Test
+	public void testStreamNotReplayed() throws Exception {
+		EchoServerRfc6455 server=new EchoServerRfc6455();
+		try {
+			NetConfig netConfig=new NetConfig();
+			netConfig.setReconnect(true);
+			netConfig.setReconnectMinDelay(10);
+			WebSocket ws=new WebSocket(server.getUrl());
+			ws.setWireProtocol(WireProtocolRfc6455.INSTANCE);
+			ws.setNetConfig(netConfig);
+			final int[] reconnects=new int[1];
+			ws.addListener(new WebSocket.EventListener() {
+				public void handleEvent(WebSocket.Event event) {
+					if (event.getType()==WebSocket.EVENT_RECONNECTING) {
+						synchronized (reconnects) {
+							reconnects[0]++;
+						}
+					}
+				}
+			});
+			InboundQueue inbound=new InboundQueue(1000, Long.MAX_VALUE);
+			ws.setInboundQueue(inbound);
+			ws.connectAsync().get(10, TimeUnit.SECONDS);
+			
+			// Fails after part of the payload has been read.  The stream can not be
+			// read again so the message must not be replayed.
+			InputStream failing=new InputStream() {
+				private int count;
+				public int read() throws IOException {
+					if (count++>=100) throw new IOException("Stream failed");
+					return 'x';
+				}
+			};
+			WebSocketFuture<Message> sent=ws.sendAsync(new Message(Message.OPCODE_BINARY, failing, 1000));
+			try {
+				sent.get(10, TimeUnit.SECONDS);
+				fail();
+			} catch (ExecutionException e) {
+				// Expected
+			}
+			
+			ws.send("after");
+			assertEquals("after", inbound.poll(10, TimeUnit.SECONDS).getMessageText().toString());
+			assertEquals(WebSocket.OPEN, ws.getReadyState());
+			synchronized (reconnects) {
+				assertEquals(1, reconnects[0]);
+			}
+			ws.closeAsync(0).get(10, TimeUnit.SECONDS);
+		} finally {
+			server.close();
+		}
+	}
+	
+	@Test
+	public void testCloseWhileReconnecting() throws Exception {
+		// Every connection is turned away so the WebSocket keeps reconnecting.  A
+		// close at any point along the way must end it.
+		EchoServerRfc6455 server=new EchoServerRfc6455();
+		server.dropNext(Integer.MAX_VALUE);
+		try {
+			Random random=new Random(1);
+			for (int i=0; i<100; i++) {
+				NetConfig netConfig=new NetConfig();
+				netConfig.setReconnect(true);
+				netConfig.setReconnectMinDelay(1);
+				netConfig.setReconnectMaxDelay(2);
+				WebSocket ws=new WebSocket(server.getUrl());
+				ws.setWireProtocol(WireProtocolRfc6455.INSTANCE);
+				ws.setNetConfig(netConfig);
+				ws.start();
+				Thread.sleep(random.nextInt(20));
+				ws.closeAsync(0).get(10, TimeUnit.SECONDS);
+				assertEquals(WebSocket.CLOSED, ws.getReadyState());
+			}
+		} finally {
+			server.close();
+		}
+	}
+	
+	@Test
+	public void testAbortOnReconnectFailure() throws Exception {
+		EchoServerRfc6455 server=new EchoServerRfc6455();
+		try {
+			// Creates the reader and writer of the first connection only, so the
+			// reconnect fails
+			final int[] created=new int[1];
+			NetConfig netConfig=new NetConfig();
+			netConfig.setThreadFactory(new ThreadFactory() {
+				public Thread newThread(Runnable r) {
+					synchronized (created) {
+						if (created[0]==2) return null;
+						created[0]++;
+					}
+					return new Thread(r);
+				}
+			});
+			netConfig.setReconnect(true);
+			netConfig.setReconnectMinDelay(10);
+			final WebSocket ws=new WebSocket(server.getUrl());
+			ws.setWireProtocol(WireProtocolRfc6455.INSTANCE);
+			ws.setNetConfig(netConfig);
+			
+			// The natural reaction to the error.  It must not wait for a CLOSED that
+			// only comes once it returns.
+			final CountDownLatch aborted=new CountDownLatch(1);
+			ws.addListener(new WebSocket.EventListener() {
+				public void handleEvent(WebSocket.Event event) {
+					// The reconnect failing, not the connection being lost
+					if (event.getType()==WebSocket.EVENT_ERROR && event.getError() instanceof IllegalStateException) {
+						ws.abort();
+						aborted.countDown();
+					}
+				}
+			});
+			ws.connectAsync().get(10, TimeUnit.SECONDS);
+			
+			server.dropConnections();
+			assertTrue(aborted.await(10, TimeUnit.SECONDS));
+			assertEquals(WebSocket.CLOSED, ws.getReadyState());
+		} finally {
+			server.close();
+		}
+	}
+	
+	@Test
+	public void testThreadStartFailure() throws Exception {
+		EchoServerRfc6455 server=new EchoServerRfc6455();
+		try {
+			// The reader of the reconnect can not be started
+			final int[] created=new int[1];
+			NetConfig netConfig=new NetConfig();
+			netConfig.setThreadFactory(new ThreadFactory() {
+				public Thread newThread(Runnable r) {
+					synchronized (created) {
+						if (created[0]++<2) return new Thread(r);
+					}
+					return new Thread(r) {
+						public synchronized void start() {
+							throw new OutOfMemoryError("unable to create native thread");
+						}
+					};
+				}
+			});
+			netConfig.setReconnect(true);
+			netConfig.setReconnectMinDelay(10);
+			final WebSocket ws=new WebSocket(server.getUrl());
+			ws.setWireProtocol(WireProtocolRfc6455.INSTANCE);
+			ws.setNetConfig(netConfig);
+			final CountDownLatch failed=new CountDownLatch(1);
+			ws.addListener(new WebSocket.EventListener() {
+				public void handleEvent(WebSocket.Event event) {
+					if (event.getType()==WebSocket.EVENT_ERROR && event.getError() instanceof OutOfMemoryError) {
+						failed.countDown();
+					}
+				}
+			});
+			ws.connectAsync().get(10, TimeUnit.SECONDS);
+			server.dropConnections();
+			assertTrue(failed.await(10, TimeUnit.SECONDS));
+			ws.waitForReadyState(WebSocket.CLOSED);
+			
+			// Nothing is left counted as running
+			Thread aborter=new Thread() {
+				public void run() {
+					ws.abort();
+				}
+			};
+			aborter.start();
+			aborter.join(5000);
+			assertFalse(aborter.isAlive());
+			
+			// The shared timer survived and still runs reconnects
+			NetConfig other=new NetConfig();
+			other.setReconnect(true);
+			other.setReconnectMinDelay(10);
+			WebSocket second=new WebSocket(server.getUrl());
+			second.setWireProtocol(WireProtocolRfc6455.INSTANCE);
+			second.setNetConfig(other);
+			server.dropNext(1);
+			second.connectAsync().get(10, TimeUnit.SECONDS);
+			second.abort();
+		} finally {
+			server.close();
+		}
+	}
+	
+	@Test
+	public void testMaxAttempts() throws Exception {
+		// Nothing listens on a port that was just released
+		ServerSocket serverSocket=new ServerSocket(0, 1, InetAddress.getByName("127.0.0.1"));
+		int port=serverSocket.getLocalPort();
+		serverSocket.close();
+		
+		NetConfig netConfig=new NetConfig();
+		netConfig.setReconnect(true);
+		netConfig.setReconnectMinDelay(10);
+		netConfig.setReconnectMaxAttempts(3);
+		WebSocket ws=new WebSocket("ws://127.0.0.1:" + port + "/");
+		ws.setWireProtocol(WireProtocolRfc6455.INSTANCE);
+		ws.setNetConfig(netConfig);
+		final int[] reconnects=new int[1];
+		ws.addListener(new WebSocket.EventListener() {
+			public void handleEvent(WebSocket.Event event) {
+				if (event.getType()==WebSocket.EVENT_RECONNECTING) {
+					synchronized (reconnects) {
+						reconnects[0]++;
+					}
+				}
+			}
+		});
+		WebSocketFuture<Message> sent=ws.sendAsync(new Message("never"));
+		ws.start();
+		ws.waitForReadyState(WebSocket.CLOSED);
+		synchronized (reconnects) {
+			assertEquals(3, reconnects[0]);
+		}
+		assertTrue(sent.isDone());
+		assertFalse(sent.isSuccess());
+	}
+	
+	@Test
+	public void testCloseWhileWaiting() throws Exception {
+		ServerSocket serverSocket=new ServerSocket(0, 1, InetAddress.getByName("127.0.0.1"));
+		int port=serverSocket.getLocalPort();
+		serverSocket.close();
+		
+		NetConfig netConfig=new NetConfig();
+		netConfig.setReconnect(true);
+		netConfig.setReconnectMinDelay(60000);
+		WebSocket ws=new WebSocket("ws://127.0.0.1:" + port + "/");
+		ws.setWireProtocol(WireProtocolRfc6455.INSTANCE);
+		ws.setNetConfig(netConfig);
+		final boolean[] waiting=new boolean[1];
+		ws.addListener(new WebSocket.EventListener() {
+			public void handleEvent(WebSocket.Event event) {
+				if (event.getType()==WebSocket.EVENT_RECONNECTING) {
+					synchronized (waiting) {
+						waiting[0]=true;
+						waiting.notifyAll();
+					}
+				}
+			}
+		});
+		WebSocketFuture<Message> sent=ws.sendAsync(new Message("never"));
+		ws.start();
+		synchronized (waiting) {
+			if (!waiting[0]) waiting.wait(10000);
+			assertTrue(waiting[0]);
+		}
+		assertEquals(WebSocket.CONNECTING, ws.getReadyState());
+		assertFalse(sent.isDone());
+		
+		ws.close();
+		ws.waitForReadyState(WebSocket.CLOSED);
+		assertTrue(sent.isDone());
+		assertFalse(sent.isSuccess());
+	}
+}
@@ -0,0 +1,106 @@
+package net.rcode.wsclient;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares the thread per connection model with a SelectorEngine for many echo
+ * connections: client threads and heap per connection once they are all open, and
+ * message throughput across all of them.  Thread stacks are outside of the heap, so
+ * the thread count is reported separately.
+ * 
+ * @author stella
+ *
+ */
+public class SelectorEngineBenchmark {
+	private static final int CONNECTION_COUNT=300;
+	private static final int MESSAGES_PER_CONNECTION=200;
+	
+	public static void main(String[] args) throws Exception {
+		EchoServerRfc6455 server=new EchoServerRfc6455();
+		try {
+			run(server, null);
+			SelectorEngine engine=new SelectorEngine(2);
+			try {
+				run(server, engine);
+			} finally {
+				engine.shutdown();
+			}
+		} finally {
+			server.close();
+		}
+	}
+	
+	private static void run(EchoServerRfc6455 server, SelectorEngine engine) throws Exception {
+		String name=engine==null ? "Thread per connection" : "SelectorEngine(" + engine.getThreadCount() + ")";
+		long heapBefore=usedHeap();
+		int threadsBefore=countClientThreads();
+		
+		final CountDownLatch opened=new CountDownLatch(CONNECTION_COUNT);
+		final CountDownLatch echoed=new CountDownLatch(CONNECTION_COUNT*MESSAGES_PER_CONNECTION);
+		WebSocket.EventListener listener=new WebSocket.EventListener() {
+			public void handleEvent(WebSocket.Event event) {
+				if (event.getType()==WebSocket.EVENT_MESSAGE) echoed.countDown();
+				else if (event.getType()==WebSocket.EVENT_READYSTATE && event.getReadyState()==WebSocket.OPEN) opened.countDown();
+			}
+		};
+		
+		NetConfig netConfig=new NetConfig();
+		netConfig.setSelectorEngine(engine);
+		List<WebSocket> sockets=new ArrayList<WebSocket>();
+		for (int i=0; i<CONNECTION_COUNT; i++) {
+			WebSocket ws=new WebSocket(server.getUrl());
+			ws.setWireProtocol(WireProtocolRfc6455.INSTANCE);
+			ws.setNetConfig(netConfig);
+			ws.addListener(listener);
+			ws.start();
+			sockets.add(ws);
+		}
+		if (!opened.await(60, TimeUnit.SECONDS)) throw new IllegalStateException("Connections did not open");
+		
+		long heapPerConnection=(usedHeap()-heapBefore) / CONNECTION_COUNT;
+		int threads=countClientThreads()-threadsBefore;
+		
+		String payload="0123456789abcdef0123456789abcdef0123456789abcdef0123456789abcdef";
+		long start=System.nanoTime();
+		for (int j=0; j<MESSAGES_PER_CONNECTION; j++) {
+			for (WebSocket ws: sockets) {
+				ws.send(payload);
+			}
+		}
+		if (!echoed.await(120, TimeUnit.SECONDS)) throw new IllegalStateException("Echoes did not arrive");
+		long elapsed=System.nanoTime()-start;
+		
+		for (WebSocket ws: sockets) {
+			ws.close();
+		}
+		for (WebSocket ws: sockets) {
+			ws.waitForReadyState(WebSocket.CLOSED);
+		}
+		
+		System.out.println(name + ": " + CONNECTION_COUNT + " connections, " + threads + " client threads, " +
+				heapPerConnection + " heap bytes/connection, " +
+				(long)(CONNECTION_COUNT*(double)MESSAGES_PER_CONNECTION*1e9/elapsed) + " echoes/s");
+	}
+	
+	private static long usedHeap() throws InterruptedException {
+		Runtime runtime=Runtime.getRuntime();
+		for (int i=0; i<3; i++) {
+			System.gc();
+			Thread.sleep(50);
+		}
+		return runtime.totalMemory()-runtime.freeMemory();
+	}
+	
+	private static int countClientThreads() {
+		Thread[] threads=new Thread[Thread.activeCount()*2 + 16];
+		int count=Thread.enumerate(threads);
+		int ret=0;
+		for (int i=0; i<count; i++) {
+			if (threads[i].getName().startsWith("WebSocket")) ret++;
+		}
+		return ret;
+	}
+}
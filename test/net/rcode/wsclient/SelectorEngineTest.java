@@ -0,0 +1,147 @@
+package net.rcode.wsclient;
+
+import java.io.ByteArrayOutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+public class SelectorEngineTest {
+	private static final int CONNECTION_COUNT=40;
+	private static final int MESSAGE_COUNT=50;
+	
+	@Test
+	public void testEchoManyConnections() throws Exception {
+		EchoServerRfc6455 server=new EchoServerRfc6455();
+		SelectorEngine engine=new SelectorEngine(2);
+		try {
+			NetConfig netConfig=new NetConfig();
+			netConfig.setSelectorEngine(engine);
+			
+			final CountDownLatch echoed=new CountDownLatch(CONNECTION_COUNT*MESSAGE_COUNT);
+			final List<String> errors=new ArrayList<String>();
+			List<WebSocket> sockets=new ArrayList<WebSocket>();
+			for (int i=0; i<CONNECTION_COUNT; i++) {
+				WebSocket ws=new WebSocket(server.getUrl());
+				ws.setWireProtocol(WireProtocolRfc6455.INSTANCE);
+				ws.setNetConfig(netConfig);
+				ws.addListener(new WebSocket.EventListener() {
+					private int next;
+					public void handleEvent(WebSocket.Event event) {
+						if (event.getType()==WebSocket.EVENT_MESSAGE) {
+							String text=event.getMessage().getMessageText().toString();
+							if (!text.equals("message " + next++)) {
+								synchronized (errors) {
+									errors.add(text);
+								}
+							}
+							echoed.countDown();
+						} else if (event.getType()==WebSocket.EVENT_ERROR) {
+							synchronized (errors) {
+								errors.add(event.toString());
+							}
+						}
+					}
+				});
+				ws.start();
+				sockets.add(ws);
+			}
+			
+			// Queued before and after the handshakes complete
+			for (int j=0; j<MESSAGE_COUNT; j++) {
+				for (WebSocket ws: sockets) {
+					ws.send("message " + j);
+				}
+			}
+			
+			assertTrue(echoed.await(30, TimeUnit.SECONDS));
+			assertTrue(errors.toString(), errors.isEmpty());
+			assertEquals(CONNECTION_COUNT, engine.getConnectionCount());
+			
+			for (WebSocket ws: sockets) {
+				ws.close();
+			}
+			for (WebSocket ws: sockets) {
+				ws.waitForReadyState(WebSocket.CLOSED);
+				assertEquals(WebSocket.CLOSE_NORMAL, ws.getCloseCode());
+			}
+			assertEquals(0, engine.getConnectionCount());
+		} finally {
+			engine.shutdown();
+			server.close();
+		}
+	}
+	
+	@Test
+	public void testLargeMessage() throws Exception {
+		EchoServerRfc6455 server=new EchoServerRfc6455();
+		SelectorEngine engine=new SelectorEngine(1);
+		try {
+			WebSocket ws=new WebSocket(server.getUrl());
+			ws.setWireProtocol(WireProtocolRfc6455.INSTANCE);
+			ws.getNetConfig().setSelectorEngine(engine);
+			ws.getNetConfig().setFragmentSize(10000);
+			final List<Message> received=new ArrayList<Message>();
+			ws.addListener(new WebSocket.EventListener() {
+				public void handleEvent(WebSocket.Event event) {
+					if (event.getType()==WebSocket.EVENT_MESSAGE) {
+						synchronized (received) {
+							received.add(event.getMessage());
+							received.notifyAll();
+						}
+					}
+				}
+			});
+			ws.start();
+			
+			// Larger than every buffer, sent as fragments that come back as fragments
+			byte[] payload=new byte[300000];
+			for (int i=0; i<payload.length; i++) payload[i]=(byte)(i*31);
+			ws.send(new Message(Message.OPCODE_BINARY, payload, false));
+			ws.ping(new byte[] { 1, 2, 3 });
+			synchronized (received) {
+				long deadline=System.currentTimeMillis()+30000;
+				while (received.isEmpty() && System.currentTimeMillis()<deadline) received.wait(1000);
+			}
+			assertEquals(1, received.size());
+			assertArrayEquals(payload, received.get(0).getMessageBuffer());
+			
+			ws.abort();
+			assertEquals(WebSocket.CLOSED, ws.getReadyState());
+			assertEquals(0, engine.getConnectionCount());
+		} finally {
+			engine.shutdown();
+			server.close();
+		}
+	}
+	
+	@Test
+	public void testScanFrames() throws Exception {
+		WebSocket ws=new WebSocket("ws://localhost/");
+		ByteArrayOutputStream frames=new ByteArrayOutputStream();
+		frames.write(new byte[] { 0x01, 3, 'a', 'b', 'c' });			// first fragment
+		frames.write(new byte[] { (byte)0x89, 1, 'p' });				// ping between fragments
+		frames.write(new byte[] { (byte)0x80, 2, 'd', 'e' });			// last fragment
+		frames.write(new byte[] { (byte)0x82, 126, 0, (byte)200 });	// header of a 200 byte frame
+		byte[] bytes=frames.toByteArray();
+		
+		WireProtocol protocol=WireProtocolRfc6455.INSTANCE;
+		// Nothing can be read until the message is complete
+		assertEquals(0, protocol.scanFrames(ws, bytes, 0, 5));
+		assertEquals(0, protocol.scanFrames(ws, bytes, 0, 11));
+		assertEquals(12, protocol.scanFrames(ws, bytes, 0, 12));
+		assertEquals(12, protocol.scanFrames(ws, bytes, 0, bytes.length));
+		assertEquals(3, protocol.scanFrames(ws, bytes, 5, 5));
+		
+		// Frames that will be rejected only need their header
+		ws.getNetConfig().setMaxFrameSize(100);
+		assertEquals(16, protocol.scanFrames(ws, bytes, 0, bytes.length));
+		
+		// Draft 76: one text frame and part of another
+		byte[] draft76={ 0x00, 'h', 'i', (byte)0xff, 0x00, 'x' };
+		assertEquals(4, WireProtocolDraft76.INSTANCE.scanFrames(ws, draft76, 0, draft76.length));
+	}
+}
@@ -0,0 +1,61 @@
+package net.rcode.wsclient;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Compares the previous decode of a text message on every getMessageText() call
+ * (a Charset.decode into a new CharBuffer) with the cached decode, for a listener
+ * that reads the text of each message several times.
+ * 
+ * @author stella
+ *
+ */
+public class TextDecodingBenchmark {
+	private static final int MESSAGE_COUNT=200000;
+	private static final int READS_PER_MESSAGE=3;
+	
+	public static void main(String[] args) {
+		byte[] ascii=Util.getUTF8Bytes("{\"channel\":\"quotes\",\"symbol\":\"ACME\",\"bid\":101.25,\"ask\":101.5}");
+		byte[] multibyte=Util.getUTF8Bytes("{\"channel\":\"chat\",\"text\":\"gr\u00fc\u00dfe aus K\u00f6ln \u20ac\"}");
+		
+		// Warm up
+		runCharsetDecode(ascii, 20000);
+		runCached(ascii, 20000);
+		runCharsetDecode(multibyte, 20000);
+		runCached(multibyte, 20000);
+		
+		System.out.println("ASCII charset decode:     " + (long)runCharsetDecode(ascii, MESSAGE_COUNT) + " msg/s");
+		System.out.println("ASCII cached decode:      " + (long)runCached(ascii, MESSAGE_COUNT) + " msg/s");
+		System.out.println("Multibyte charset decode: " + (long)runCharsetDecode(multibyte, MESSAGE_COUNT) + " msg/s");
+		System.out.println("Multibyte cached decode:  " + (long)runCached(multibyte, MESSAGE_COUNT) + " msg/s");
+	}
+	
+	private static double runCharsetDecode(byte[] payload, int count) {
+		long start=System.nanoTime();
+		int total=0;
+		for (int i=0; i<count; i++) {
+			for (int j=0; j<READS_PER_MESSAGE; j++) {
+				total+=Util.UTF8.decode(ByteBuffer.wrap(payload)).length();
+			}
+		}
+		return rate(count, start, total);
+	}
+	
+	private static double runCached(byte[] payload, int count) {
+		long start=System.nanoTime();
+		int total=0;
+		for (int i=0; i<count; i++) {
+			Message message=new Message(Message.OPCODE_TEXT, payload, true);
+			for (int j=0; j<READS_PER_MESSAGE; j++) {
+				total+=message.getMessageText().length();
+			}
+		}
+		return rate(count, start, total);
+	}
+	
+	private static double rate(int count, long start, int total) {
+		long elapsed=System.nanoTime()-start;
+		if (total==0) throw new IllegalStateException();
+		return count * 1e9 / elapsed;
+	}
+}
@@ -0,0 +1,44 @@
+package net.rcode.wsclient;
+
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+public class TextDecodingTest {
+	@Test
+	public void testAsciiAndMultibyte() {
+		assertEquals("plain ascii", Util.decodeUTF8(Util.getUTF8Bytes("plain ascii"), 0, 11));
+		
+		String text="gr\u00fc\u00dfe \u20ac \ud83d\ude00";
+		byte[] bytes=Util.getUTF8Bytes(text);
+		assertEquals(text, Util.decodeUTF8(bytes, 0, bytes.length));
+		assertEquals(text, Util.fromUTF8Bytes(bytes).toString());
+	}
+	
+	@Test
+	public void testCachedText() {
+		Message message=new Message(Message.OPCODE_TEXT, Util.getUTF8Bytes("caf\u00e9"), true);
+		CharSequence first=message.getMessageText();
+		assertEquals("caf\u00e9", first.toString());
+		assertSame(first, message.getMessageText());
+		
+		// Outbound messages keep the text they were built from
+		String original="outbound";
+		assertSame(original, new Message(original).getMessageText());
+	}
+	
+	@Test
+	public void testMalformed() {
+		// Truncated two byte sequence after valid text
+		byte[] bytes=new byte[] { 'o', 'k', (byte)0xc3 };
+		try {
+			Util.decodeUTF8(bytes, 0, bytes.length);
+			fail();
+		} catch (IllegalArgumentException e) {
+			assertEquals("Invalid UTF-8 sequence at byte 2", e.getMessage());
+		}
+		
+		// Lenient decoding and toString still work
+		Message message=new Message(Message.OPCODE_TEXT, bytes, true);
+		assertEquals("ok\ufffd", message.toString());
+	}
+}
@@ -0,0 +1,84 @@
+package net.rcode.wsclient;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.util.Random;
+
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+public class TextEncodingTest {
+	private static byte[] charsetEncode(CharSequence s) {
+		ByteBuffer bb=Util.UTF8.encode(CharBuffer.wrap(s));
+		byte[] ret=new byte[bb.remaining()];
+		bb.get(ret);
+		return ret;
+	}
+	
+	private static String randomText(Random random, int length) {
+		StringBuilder ret=new StringBuilder();
+		for (int i=0; i<length; i++) {
+			switch (random.nextInt(6)) {
+			case 0: ret.append((char)(0x80 + random.nextInt(0x780))); break;
+			case 1: ret.append((char)(0x800 + random.nextInt(0xd000))); break;
+			case 2: ret.appendCodePoint(0x10000 + random.nextInt(0x100000)); break;
+			case 3: ret.append((char)(0xd800 + random.nextInt(0x800))); break;	// Stray surrogate
+			default: ret.append((char)random.nextInt(0x80));
+			}
+		}
+		return ret.toString();
+	}
+	
+	@Test
+	public void testMatchesCharset() {
+		Random random=new Random(12);
+		for (int i=0; i<500; i++) {
+			String text=randomText(random, random.nextInt(40));
+			byte[] expected=charsetEncode(text);
+			assertEquals(expected.length, Util.getUTF8Length(text));
+			assertArrayEquals(expected, Util.getUTF8Bytes(text));
+			assertArrayEquals(expected, Util.getUTF8Bytes(new StringBuilder(text)));
+		}
+	}
+	
+	@Test
+	public void testFrameOutputStream() throws Exception {
+		Random random=new Random(34);
+		for (int i=0; i<200; i++) {
+			String text=randomText(random, random.nextInt(100));
+			ByteArrayOutputStream sink=new ByteArrayOutputStream();
+			// A tiny buffer forces surrogate pairs onto buffer boundaries
+			FrameOutputStream out=new FrameOutputStream(sink, 8);
+			out.write(1);
+			out.writeUTF8(text);
+			out.flush();
+			
+			byte[] expected=charsetEncode(text);
+			byte[] actual=sink.toByteArray();
+			assertEquals(expected.length + 1, actual.length);
+			assertEquals(expected.length + 1, out.size());
+			for (int j=0; j<expected.length; j++) assertEquals(expected[j], actual[j+1]);
+		}
+	}
+	
+	@Test
+	public void testDeferredMessage() throws Exception {
+		String text="caf\u00e9 \ud83d\ude00";
+		Message message=new Message(text);
+		assertEquals(10, message.getBytes());
+		assertEquals(text, message.toString());
+		
+		WebSocket ws=new WebSocket("ws://localhost/");
+		ByteArrayOutputStream sink=new ByteArrayOutputStream();
+		FrameOutputStream out=new FrameOutputStream(sink, 1500);
+		WireProtocolDraft03.INSTANCE.sendMessage(ws, out, message);
+		out.flush();
+		byte[] frame=sink.toByteArray();
+		assertEquals(12, frame.length);
+		assertEquals(10, frame[1]);
+		
+		// Still available as bytes for anything that asks
+		assertArrayEquals(charsetEncode(text), message.getMessageData());
+	}
+}
@@ -0,0 +1,88 @@
+package net.rcode.wsclient;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+public class ThreadFactoryTest {
+	@Test
+	public void testCustomThreadFactory() throws Exception {
+		final ThreadGroup group=new ThreadGroup("sockets");
+		final List<Thread> created=new ArrayList<Thread>();
+		NetConfig netConfig=new NetConfig();
+		netConfig.setThreadFactory(new ThreadFactory() {
+			public Thread newThread(Runnable r) {
+				Thread thread=new Thread(group, r, "custom " + created.size());
+				synchronized (created) {
+					created.add(thread);
+				}
+				return thread;
+			}
+		});
+		
+		EchoServerRfc6455 server=new EchoServerRfc6455();
+		try {
+			WebSocket ws=echo(server, netConfig);
+			synchronized (created) {
+				assertEquals(2, created.size());
+				assertEquals("custom 0", created.get(0).getName());
+			}
+			
+			ws.abort();
+			assertEquals(WebSocket.CLOSED, ws.getReadyState());
+			synchronized (created) {
+				for (Thread thread: created) {
+					assertFalse(thread.isAlive());
+				}
+			}
+		} finally {
+			server.close();
+		}
+	}
+	
+	@Test
+	public void testVirtualThreads() throws Exception {
+		NetConfig netConfig=new NetConfig();
+		netConfig.setVirtualThreads(true);
+		assertEquals(NetConfig.isVirtualThreadsSupported(), netConfig.isVirtualThreads());
+		assertEquals(NetConfig.isVirtualThreadsSupported(), netConfig.getThreadFactory()!=null);
+		
+		// Runs on platform threads where virtual threads are not supported
+		EchoServerRfc6455 server=new EchoServerRfc6455();
+		try {
+			WebSocket ws=echo(server, netConfig);
+			ws.close();
+			ws.waitForReadyState(WebSocket.CLOSED);
+			assertEquals(WebSocket.CLOSE_NORMAL, ws.getCloseCode());
+		} finally {
+			server.close();
+		}
+		
+		netConfig.setVirtualThreads(false);
+		assertFalse(netConfig.isVirtualThreads());
+		assertNull(netConfig.getThreadFactory());
+	}
+	
+	private WebSocket echo(EchoServerRfc6455 server, NetConfig netConfig) throws Exception {
+		final CountDownLatch echoed=new CountDownLatch(1);
+		WebSocket ws=new WebSocket(server.getUrl());
+		ws.setWireProtocol(WireProtocolRfc6455.INSTANCE);
+		ws.setNetConfig(netConfig);
+		ws.addListener(new WebSocket.EventListener() {
+			public void handleEvent(WebSocket.Event event) {
+				if (event.getType()==WebSocket.EVENT_MESSAGE && "hello".equals(event.getMessage().getMessageText().toString())) {
+					echoed.countDown();
+				}
+			}
+		});
+		ws.start();
+		ws.send("hello");
+		assertTrue(echoed.await(10, TimeUnit.SECONDS));
+		return ws;
+	}
+}
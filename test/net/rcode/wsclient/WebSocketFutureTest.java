@@ -0,0 +1,202 @@
+package net.rcode.wsclient;
+
+import java.io.BufferedReader;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+public class WebSocketFutureTest {
+	@Test
+	public void testCompletion() throws Exception {
+		WebSocketFuture<String> future=new WebSocketFuture<String>();
+		try {
+			future.get(10, TimeUnit.MILLISECONDS);
+			fail();
+		} catch (TimeoutException e) {
+			// Expected
+		}
+		final AtomicInteger calls=new AtomicInteger();
+		future.addListener(new WebSocketFuture.Listener<String>() {
+			public void operationComplete(WebSocketFuture<String> f) {
+				calls.incrementAndGet();
+			}
+		});
+		
+		assertTrue(future.complete("done"));
+		assertFalse(future.fail(new Exception()));
+		assertEquals(1, calls.get());
+		assertTrue(future.isDone());
+		assertTrue(future.isSuccess());
+		assertEquals("done", future.get());
+		
+		// Added after completion, called right away
+		future.addListener(new WebSocketFuture.Listener<String>() {
+			public void operationComplete(WebSocketFuture<String> f) {
+				calls.incrementAndGet();
+			}
+		});
+		assertEquals(2, calls.get());
+		
+		WebSocketFuture<String> failed=new WebSocketFuture<String>();
+		Exception cause=new Exception("failed");
+		failed.fail(cause);
+		assertFalse(failed.isSuccess());
+		assertSame(cause, failed.getCause());
+		try {
+			failed.get();
+			fail();
+		} catch (ExecutionException e) {
+			assertSame(cause, e.getCause());
+		}
+	}
+	
+	@Test
+	public void testSendAsync() throws Exception {
+		runSendAsync(null);
+	}
+	
+	@Test
+	public void testSendAsyncSelectorEngine() throws Exception {
+		SelectorEngine engine=new SelectorEngine(1);
+		try {
+			runSendAsync(engine);
+		} finally {
+			engine.shutdown();
+		}
+	}
+	
+	private void runSendAsync(SelectorEngine engine) throws Exception {
+		EchoServerRfc6455 server=new EchoServerRfc6455();
+		try {
+			NetConfig netConfig=new NetConfig();
+			netConfig.setSelectorEngine(engine);
+			WebSocket ws=new WebSocket(server.getUrl());
+			ws.setWireProtocol(WireProtocolRfc6455.INSTANCE);
+			ws.setNetConfig(netConfig);
+			
+			List<WebSocketFuture<Message>> futures=new ArrayList<WebSocketFuture<Message>>();
+			for (int i=0; i<500; i++) {
+				futures.add(ws.sendAsync(new Message("message " + i)));
+			}
+			assertSame(ws, ws.connectAsync().get(10, TimeUnit.SECONDS));
+			for (int i=0; i<500; i++) {
+				Message message=futures.get(i).get(10, TimeUnit.SECONDS);
+				assertEquals("message " + i, message.getMessageText().toString());
+			}
+			
+			assertEquals(WebSocket.CLOSE_NORMAL, ws.closeAsync(10000).get(10, TimeUnit.SECONDS).intValue());
+			assertEquals(WebSocket.CLOSED, ws.getReadyState());
+			
+			WebSocketFuture<Message> late=ws.sendAsync(new Message("late"));
+			assertTrue(late.isDone());
+			assertFalse(late.isSuccess());
+		} finally {
+			server.close();
+		}
+	}
+	
+	@Test
+	public void testSendAsyncRefused() throws Exception {
+		WebSocket ws=new WebSocket("ws://127.0.0.1/");
+		MessageQueue queue=ws.getTransmissionQueue();
+		queue.setWatermarks(1, 2);
+		queue.setOverflowPolicy(MessageQueue.OVERFLOW_REJECT, 0);
+		ws.sendAsync(new Message("first"));
+		
+		Message message=new Message("second");
+		try {
+			ws.sendAsync(message);
+			fail();
+		} catch (QueueFullException e) {
+			// Expected
+		}
+		
+		// Once there is room the same message can be sent again
+		queue.remove(queue.peekNext());
+		WebSocketFuture<Message> future=ws.sendAsync(message);
+		assertFalse(future.isDone());
+		assertSame(message, queue.peekNext());
+	}
+	
+	@Test
+	public void testConnectFailure() throws Exception {
+		// Nothing listens on a port that was just released
+		ServerSocket serverSocket=new ServerSocket(0, 1, InetAddress.getByName("127.0.0.1"));
+		int port=serverSocket.getLocalPort();
+		serverSocket.close();
+		
+		WebSocket ws=new WebSocket("ws://127.0.0.1:" + port + "/");
+		ws.setWireProtocol(WireProtocolRfc6455.INSTANCE);
+		WebSocketFuture<Message> sent=ws.sendAsync(new Message("never"));
+		WebSocketFuture<WebSocket> connected=ws.connectAsync();
+		try {
+			connected.get(10, TimeUnit.SECONDS);
+			fail();
+		} catch (ExecutionException e) {
+			// Expected
+		}
+		try {
+			sent.get(10, TimeUnit.SECONDS);
+			fail();
+		} catch (ExecutionException e) {
+			// Expected
+		}
+		assertEquals(0, ws.getOutgoingDepth());
+	}
+	
+	@Test
+	public void testCloseTimeout() throws Exception {
+		// Completes the handshake and then never answers
+		final ServerSocket serverSocket=new ServerSocket(0, 1, InetAddress.getByName("127.0.0.1"));
+		Thread serverThread=new Thread() {
+			public void run() {
+				try {
+					Socket socket=serverSocket.accept();
+					BufferedReader in=new BufferedReader(new InputStreamReader(socket.getInputStream(), "ISO-8859-1"));
+					String key=null;
+					for (String line=in.readLine(); line!=null && line.length()>0; line=in.readLine()) {
+						if (line.regionMatches(true, 0, "Sec-WebSocket-Key: ", 0, 19)) key=line.substring(19);
+					}
+					OutputStream out=socket.getOutputStream();
+					out.write(("HTTP/1.1 101 Switching Protocols\r\n" +
+							"Upgrade: websocket\r\n" +
+							"Connection: Upgrade\r\n" +
+							"Sec-WebSocket-Accept: " + WireProtocolRfc6455.computeAccept(key) + "\r\n\r\n").getBytes("ISO-8859-1"));
+					out.flush();
+					while (in.read()>=0) {
+						// Ignore everything
+					}
+				} catch (Exception e) {
+					// Torn down
+				}
+			}
+		};
+		serverThread.setDaemon(true);
+		serverThread.start();
+		
+		try {
+			WebSocket ws=new WebSocket("ws://127.0.0.1:" + serverSocket.getLocalPort() + "/");
+			ws.setWireProtocol(WireProtocolRfc6455.INSTANCE);
+			ws.connectAsync().get(10, TimeUnit.SECONDS);
+			
+			long start=System.currentTimeMillis();
+			WebSocketFuture<Integer> closed=ws.closeAsync(200);
+			assertEquals(WebSocket.CLOSE_ABNORMAL, closed.get(10, TimeUnit.SECONDS).intValue());
+			long elapsed=System.currentTimeMillis()-start;
+			assertTrue("Took " + elapsed, elapsed>=150 && elapsed<5000);
+		} finally {
+			serverSocket.close();
+		}
+	}
+}
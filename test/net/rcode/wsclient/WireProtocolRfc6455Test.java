@@ -0,0 +1,232 @@
+package net.rcode.wsclient;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+public class WireProtocolRfc6455Test {
+	private static void frame(ByteArrayOutputStream out, int header1, byte[] payload) {
+		out.write(header1);
+		out.write(payload.length);
+		out.write(payload, 0, payload.length);
+	}
+	
+	private static Message read(WebSocket ws, ByteArrayOutputStream frames) throws Exception {
+		FrameInputStream in=new FrameInputStream(new ByteArrayInputStream(frames.toByteArray()), 64);
+		return WireProtocolRfc6455.INSTANCE.readMessage(ws, in);
+	}
+	
+	/**
+	 * Decode one client frame, checking that it is masked
+	 * @return the opcode byte followed by the unmasked payload
+	 */
+	private static byte[] unmask(byte[] frame, int offset) {
+		int length=frame[offset+1]&0x7f;
+		int pos=offset+2;
+		if (length==126) {
+			length=(frame[pos]&0xff)<<8 | (frame[pos+1]&0xff);
+			pos+=2;
+		}
+		assertTrue((frame[offset+1]&0x80)!=0);
+		byte[] key=new byte[4];
+		System.arraycopy(frame, pos, key, 0, 4);
+		pos+=4;
+		byte[] ret=new byte[length+1];
+		ret[0]=frame[offset];
+		for (int i=0; i<length; i++) ret[i+1]=(byte)(frame[pos+i] ^ key[i&3]);
+		return ret;
+	}
+	
+	@Test
+	public void testAccept() throws Exception {
+		// The example from section 1.3
+		assertEquals("s3pPLMBiTxaQ9kYGzzhZRbK+xOo=", WireProtocolRfc6455.computeAccept("dGhlIHNhbXBsZSBub25jZQ=="));
+	}
+	
+	@Test
+	public void testMask() {
+		Random random=new Random(5);
+		byte[] key=new byte[] { 0x12, (byte)0x9a, 0x55, (byte)0xf0 };
+		for (int i=0; i<200; i++) {
+			byte[] data=new byte[random.nextInt(100)];
+			random.nextBytes(data);
+			int offset=data.length==0 ? 0 : random.nextInt(data.length);
+			int length=data.length==0 ? 0 : random.nextInt(data.length-offset);
+			int phase=random.nextInt(4);
+			
+			byte[] expected=data.clone();
+			for (int j=0; j<length; j++) expected[offset+j]^=key[(phase+j)&3];
+			Util.mask(data, offset, length, key, phase);
+			assertArrayEquals(expected, data);
+		}
+	}
+	
+	@Test
+	public void testSendMasked() throws Exception {
+		WebSocket ws=new WebSocket("ws://localhost/");
+		ByteArrayOutputStream sink=new ByteArrayOutputStream();
+		FrameOutputStream out=new FrameOutputStream(sink, 64);
+		
+		byte[] binary=new byte[300];
+		for (int i=0; i<binary.length; i++) binary[i]=(byte)i;
+		WireProtocolRfc6455.INSTANCE.sendMessage(ws, out, new Message("caf\u00e9"));
+		WireProtocolRfc6455.INSTANCE.sendMessage(ws, out, new Message(binary));
+		out.flush();
+		
+		byte[] frames=sink.toByteArray();
+		byte[] text=unmask(frames, 0);
+		assertEquals(0x81, text[0]&0xff);
+		assertEquals("caf\u00e9", Util.decodeUTF8(text, 1, text.length-1));
+		
+		byte[] data=unmask(frames, 2 + 4 + 5);
+		assertEquals(0x82, data[0]&0xff);
+		assertEquals(301, data.length);
+		for (int i=0; i<binary.length; i++) assertEquals(binary[i], data[i+1]);
+		
+		// Any other stream also works
+		ByteArrayOutputStream plain=new ByteArrayOutputStream();
+		WireProtocolRfc6455.INSTANCE.sendMessage(ws, new DataOutputStream(plain), new Message(binary));
+		byte[] again=unmask(plain.toByteArray(), 0);
+		for (int i=0; i<binary.length; i++) assertEquals(binary[i], again[i+1]);
+	}
+	
+	@Test
+	public void testReceive() throws Exception {
+		ByteArrayOutputStream frames=new ByteArrayOutputStream();
+		frame(frames, 0x01, Util.getUTF8Bytes("Hello "));
+		frame(frames, 0x89, Util.getUTF8Bytes("ping"));
+		frame(frames, 0x80, Util.getUTF8Bytes("world"));
+		
+		WebSocket ws=new WebSocket("ws://localhost/");
+		Message message=read(ws, frames);
+		assertEquals("Hello world", message.getMessageText().toString());
+		Message pong=ws.getTransmissionQueue().peekNext();
+		assertEquals(Message.OPCODE_PONG, pong.getOpcode());
+		assertEquals("ping", pong.getMessageText().toString());
+	}
+	
+	@Test
+	public void testPeerClose() throws Exception {
+		ByteArrayOutputStream frames=new ByteArrayOutputStream();
+		byte[] reason=Util.getUTF8Bytes("bye");
+		byte[] payload=new byte[reason.length+2];
+		payload[0]=(byte)(WebSocket.CLOSE_GOING_AWAY>>8);
+		payload[1]=(byte)WebSocket.CLOSE_GOING_AWAY;
+		System.arraycopy(reason, 0, payload, 2, reason.length);
+		frame(frames, 0x88, payload);
+		
+		WebSocket ws=new WebSocket("ws://localhost/");
+		assertNull(read(ws, frames));
+		assertEquals(WebSocket.CLOSE_GOING_AWAY, ws.getCloseCode());
+		assertEquals("bye", ws.getCloseReason());
+		
+		// Echoed status code
+		Message echo=ws.getTransmissionQueue().peekNext();
+		assertEquals(Message.OPCODE_CLOSE, echo.getOpcode());
+		assertArrayEquals(new byte[] { 0x03, (byte)0xe9 }, echo.getMessageData());
+	}
+	
+	@Test(expected=IOException.class)
+	public void testMaskedServerFrame() throws Exception {
+		ByteArrayOutputStream frames=new ByteArrayOutputStream();
+		frames.write(0x81);
+		frames.write(0x80);
+		read(new WebSocket("ws://localhost/"), frames);
+	}
+	
+	@Test
+	public void testHandshakeAndEcho() throws Exception {
+		final ServerSocket server=new ServerSocket(0, 1, InetAddress.getByName("127.0.0.1"));
+		Thread serverThread=new Thread() {
+			public void run() {
+				try {
+					echoOnce(server);
+				} catch (IOException e) {
+					e.printStackTrace();
+				}
+			}
+		};
+		serverThread.start();
+		
+		WebSocket ws=new WebSocket("ws://127.0.0.1:" + server.getLocalPort() + "/chat", "chat");
+		ws.setWireProtocol(WireProtocolRfc6455.INSTANCE);
+		final List<String> received=new ArrayList<String>();
+		ws.addListener(new WebSocket.EventListener() {
+			public void handleEvent(WebSocket.Event event) {
+				if (event.getType()==WebSocket.EVENT_MESSAGE) {
+					synchronized (received) {
+						received.add(event.getMessage().getMessageText().toString());
+					}
+				}
+			}
+		});
+		ws.start();
+		ws.send("echo me");
+		ws.waitForReadyState(WebSocket.CLOSED);
+		serverThread.join();
+		server.close();
+		
+		assertEquals(1, received.size());
+		assertEquals("echo me", received.get(0));
+		assertEquals(WebSocket.CLOSE_NORMAL, ws.getCloseCode());
+		assertEquals("chat", ws.getResponseHeader("sec-websocket-protocol"));
+	}
+	
+	/**
+	 * Accept one client, echo its first frame, then close
+	 */
+	private static void echoOnce(ServerSocket server) throws IOException {
+		Socket socket=server.accept();
+		try {
+			DataInputStream in=new DataInputStream(socket.getInputStream());
+			OutputStream out=socket.getOutputStream();
+			
+			String key=null;
+			BufferedReader reader=new BufferedReader(new InputStreamReader(in, "ISO-8859-1"), 1);
+			for (;;) {
+				String line=reader.readLine();
+				if (line.length()==0) break;
+				if (line.startsWith("Sec-WebSocket-Key: ")) key=line.substring(19);
+			}
+			out.write(("HTTP/1.1 101 Switching Protocols\r\n" +
+					"Upgrade: websocket\r\n" +
+					"Connection: Upgrade\r\n" +
+					"Sec-WebSocket-Protocol: chat\r\n" +
+					"Sec-WebSocket-Accept: " + WireProtocolRfc6455.computeAccept(key) + "\r\n\r\n").getBytes("ISO-8859-1"));
+			
+			// One masked text frame
+			byte[] header=new byte[6];
+			in.readFully(header);
+			int length=header[1]&0x7f;
+			byte[] payload=new byte[length];
+			in.readFully(payload);
+			for (int i=0; i<length; i++) payload[i]^=header[2 + (i&3)];
+			out.write(0x81);
+			out.write(length);
+			out.write(payload);
+			
+			// Close with a status code and wait for the echo
+			out.write(new byte[] { (byte)0x88, 2, 0x03, (byte)0xe8 });
+			out.flush();
+			in.readFully(new byte[2+4+2]);
+		} catch (Exception e) {
+			throw new IOException(e.toString());
+		} finally {
+			socket.close();
+		}
+	}
+}
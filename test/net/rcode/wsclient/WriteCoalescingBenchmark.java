@@ -0,0 +1,45 @@
+package net.rcode.wsclient;
+
+/**
+ * Compares messages per second over loopback with a flush after every message
+ * against the coalescing writer.
+ * 
+ * @author stella
+ *
+ */
+public class WriteCoalescingBenchmark {
+	private static final int MESSAGE_COUNT=200000;
+	
+	public static void main(String[] args) throws Exception {
+		// Warm up both paths before measuring
+		run(1, 20000);
+		run(64, 20000);
+		
+		double unbatched=run(1, MESSAGE_COUNT);
+		double batched=run(64, MESSAGE_COUNT);
+		System.out.println("Flush per message: " + (long)unbatched + " msg/s");
+		System.out.println("Coalesced writes:  " + (long)batched + " msg/s");
+	}
+	
+	private static double run(int batchMessages, int count) throws Exception {
+		LoopbackServer server=new LoopbackServer();
+		WebSocket ws=new WebSocket(server.getUrl());
+		ws.setVerifyHandshake(false);
+		ws.getNetConfig().setWriteBatchMessages(batchMessages);
+		ws.start();
+		ws.waitForReadyState(WebSocket.OPEN);
+		
+		Message message=new Message("{\"tick\":12345}");
+		long start=System.nanoTime();
+		for (int i=0; i<count; i++) {
+			ws.send(message);
+		}
+		server.waitForFrames(count);
+		long elapsed=System.nanoTime()-start;
+		
+		if (server.getFrameCount()!=count) throw new IllegalStateException("Received " + server.getFrameCount() + " frames");
+		ws.abort();
+		server.close();
+		return count * 1e9 / elapsed;
+	}
+}